@@ -0,0 +1,262 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/** A multi-threaded stress test of the cache, in two parts.
+ *
+ * The first part measures how lookups scale with the number of threads: the cache is filled
+ * with A records for a set of names, and 1, 2, 4, ... threads then look up random names in the
+ * cache for a fixed duration, while a fraction of the operations refresh a record (so readers
+ * and writers contend for the same nodes). The lookups per second and the speedup over a single
+ * thread are reported for each number of threads.
+ *
+ * The second part checks that concurrent updates are not lost: all threads add records at the
+ * same time, both to nodes shared by every thread and to nodes of their own, while another
+ * thread repeatedly lists the cache. Afterwards, every record added must be cached, and the
+ * size of the cache, its records and its index of names must agree. The process exits with
+ * status 1 if any check fails.
+ *
+ * Usage: java ca.ubc.cs317.dnslookup.CacheStressTest [options], where options are:
+ * <pre>
+ * -threads n        maximum number of threads (default: number of processors)
+ * -d seconds        duration of each measurement (default 3)
+ * -names n          number of cached names looked up (default 10000)
+ * -writes fraction  fraction of operations that refresh a record (default 0.05)
+ * -records n        number of records added by each thread in the second part (default 20000)
+ * </pre>
+ */
+public class CacheStressTest {
+
+    private static final String ZONE = "stress.test";
+    private static final int ADDRESSES_PER_NAME = 2;
+    private static final long TTL = 3600;
+
+    private final DNSCache cache = DNSCache.getInstance();
+
+    /** Fills the cache with the records looked up by the throughput measurement.
+     *
+     * @param names Number of names to be cached.
+     * @return The nodes of the cached names.
+     */
+    private DNSNode[] fill(int names) throws Exception {
+        DNSNode[] nodes = new DNSNode[names];
+        for (int i = 0; i < names; i++) {
+            nodes[i] = new DNSNode("host" + i + ".lookup." + ZONE, RecordType.A);
+            for (int a = 0; a < ADDRESSES_PER_NAME; a++)
+                cache.addResult(new ResourceRecord(nodes[i].getHostName(), RecordType.A, TTL, address(1, a, i)));
+        }
+        return nodes;
+    }
+
+    /** Resolves random names from several threads for some time.
+     *
+     * @param nodes          Cached nodes to be looked up.
+     * @param threads        Number of threads.
+     * @param durationMillis Duration of the measurement.
+     * @param writeFraction  Fraction of operations that refresh a record instead of a lookup.
+     * @return The number of lookups per second, over all threads.
+     */
+    private double measure(DNSNode[] nodes, int threads, long durationMillis, double writeFraction) throws Exception {
+        LongAdder lookups = new LongAdder();
+        LongAdder misses = new LongAdder();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        CyclicBarrier start = new CyclicBarrier(threads + 1);
+        List<Thread> workers = new ArrayList<>();
+        long[] deadline = new long[1];
+
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    start.await();
+                    long end = deadline[0];
+                    long count = 0;
+                    while ((count & 0xff) != 0 || System.nanoTime() - end < 0) {
+                        int i = random.nextInt(nodes.length);
+                        if (random.nextDouble() < writeFraction) {
+                            cache.addResult(new ResourceRecord(nodes[i].getHostName(), RecordType.A, TTL,
+                                    address(1, random.nextInt(ADDRESSES_PER_NAME), i)));
+                        } else {
+                            if (cache.getCachedResults(nodes[i]).size() != ADDRESSES_PER_NAME)
+                                misses.increment();
+                            count++;
+                        }
+                    }
+                    lookups.add(count);
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+
+        deadline[0] = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        long begin = System.nanoTime();
+        start.await();
+        for (Thread worker : workers) worker.join();
+        long elapsed = System.nanoTime() - begin;
+
+        if (error.get() != null) throw new IllegalStateException("A lookup thread failed.", error.get());
+        if (misses.sum() > 0)
+            throw new IllegalStateException(misses.sum() + " lookups did not return every cached address.");
+        return lookups.sum() * 1e9 / elapsed;
+    }
+
+    /** Adds records from several threads at the same time, and checks that none was lost.
+     *
+     * @param threads          Number of threads adding records.
+     * @param recordsPerThread Number of records added by each thread.
+     * @return The number of failed checks.
+     */
+    private int checkConcurrentUpdates(int threads, int recordsPerThread) throws Exception {
+        int sharedNames = Math.max(1, recordsPerThread / 100);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger running = new AtomicInteger(threads);
+        List<Thread> workers = new ArrayList<>();
+
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < recordsPerThread; i++) {
+                        // even records go to names shared by all threads, odd records to names of
+                        // this thread only; each thread adds its own addresses
+                        String name = i % 2 == 0
+                                ? "shared" + (i / 2 % sharedNames) + ".updates." + ZONE
+                                : "own" + i + ".t" + thread + ".updates." + ZONE;
+                        cache.addResult(new ResourceRecord(name, RecordType.A, TTL, address(2 + thread, 0, i)));
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                } finally {
+                    running.decrementAndGet();
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+
+        Thread lister = new Thread(() -> {
+            try {
+                while (running.get() > 0) {
+                    cache.forEachNode("updates." + ZONE, (node, records) -> { });
+                    cache.forEachRecord((node, record) -> { });
+                }
+            } catch (Throwable e) {
+                error.compareAndSet(null, e);
+            }
+        });
+        lister.start();
+        start.countDown();
+        for (Thread worker : workers) worker.join();
+        lister.join();
+
+        int failures = 0;
+        if (error.get() != null) {
+            System.out.println("FAILED: a thread threw " + error.get());
+            failures++;
+        }
+
+        int lost = 0;
+        for (int t = 0; t < threads; t++)
+            for (int i = 0; i < recordsPerThread; i++) {
+                String name = i % 2 == 0
+                        ? "shared" + (i / 2 % sharedNames) + ".updates." + ZONE
+                        : "own" + i + ".t" + t + ".updates." + ZONE;
+                ResourceRecord expected = new ResourceRecord(name, RecordType.A, TTL, address(2 + t, 0, i));
+                if (!cache.getCachedResults(expected.getNode()).contains(expected)) lost++;
+            }
+        System.out.printf("Concurrent updates: %d threads added %d records, %d lost\n", threads,
+                threads * recordsPerThread, lost);
+        if (lost > 0) failures++;
+
+        Set<ResourceRecord> listed = new HashSet<>();
+        cache.forEachRecord((node, record) -> listed.add(record));
+        Set<ResourceRecord> listedByNode = new HashSet<>();
+        cache.forEachNode("", (node, records) -> listedByNode.addAll(records));
+        if (!listed.equals(listedByNode)) {
+            System.out.printf("FAILED: the cache lists %d records, but %d by node\n", listed.size(),
+                    listedByNode.size());
+            failures++;
+        }
+        if (listed.size() != cache.size()) {
+            System.out.printf("FAILED: the cache has %d records, but lists %d\n", cache.size(), listed.size());
+            failures++;
+        }
+
+        Set<DNSNode> cached = new HashSet<>();
+        cache.forEachRecord((node, record) -> cached.add(node));
+        Set<DNSNode> indexed = new HashSet<>();
+        cache.forEachNode("", (node, records) -> indexed.add(node));
+        if (!cached.equals(indexed)) {
+            System.out.printf("FAILED: %d names are cached, but %d are indexed\n", cached.size(), indexed.size());
+            failures++;
+        }
+        return failures;
+    }
+
+    private static InetAddress address(int first, int second, int index) {
+        try {
+            return InetAddress.getByAddress(new byte[]{10, (byte) (first * 4 + second), (byte) (index >>> 8), (byte) index});
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e); // not reachable, the length is valid
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("-") && i + 1 < args.length) options.put(args[i], args[++i]);
+            else {
+                System.err.println("Invalid option: " + args[i] + " (see the CacheStressTest documentation).");
+                System.exit(1);
+            }
+        }
+        int maxThreads = intOption(options, "-threads", Runtime.getRuntime().availableProcessors());
+        long durationMillis = 1000L * intOption(options, "-d", 3);
+        int names = intOption(options, "-names", 10000);
+        double writeFraction = doubleOption(options, "-writes", 0.05);
+        int recordsPerThread = intOption(options, "-records", 20000);
+        if (names > 65536 || recordsPerThread > 65536 || maxThreads > 60) {
+            System.err.println("At most 65536 names and records per thread, and 60 threads, are supported.");
+            System.exit(1);
+        }
+
+        CacheStressTest test = new CacheStressTest();
+        // large enough that nothing is evicted, so lookups never miss and no record is lost
+        test.cache.setMaxEntries(2 * (names * ADDRESSES_PER_NAME + maxThreads * recordsPerThread));
+        DNSNode[] nodes = test.fill(names);
+
+        // warm up before the first measurement, so that it does not include compilation
+        test.measure(nodes, 1, durationMillis, writeFraction);
+        double single = 0;
+        System.out.printf("%8s %14s %8s %11s\n", "threads", "lookups/s", "speedup", "efficiency");
+        for (int threads = 1; threads <= maxThreads; threads = threads == maxThreads ? threads + 1 : Math.min(2 * threads, maxThreads)) {
+            double rate = test.measure(nodes, threads, durationMillis, writeFraction);
+            if (threads == 1) single = rate;
+            System.out.printf("%8d %14.0f %7.2fx %10.0f%%\n", threads, rate, rate / single,
+                    100 * rate / single / threads);
+        }
+
+        int failures = test.checkConcurrentUpdates(Math.max(2, maxThreads), recordsPerThread);
+        System.out.println(failures == 0 ? "All checks passed." : failures + " checks failed.");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static int intOption(Map<String, String> options, String name, int defaultValue) {
+        return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+    }
+
+    private static double doubleOption(Map<String, String> options, String name, double defaultValue) {
+        return options.containsKey(name) ? Double.parseDouble(options.get(name)) : defaultValue;
+    }
+}
@@ -0,0 +1,166 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/** Checks the concurrent resolution of CNAME targets and of several record types, against a
+ * FakeDNSHierarchy whose servers all answer after a fixed latency.
+ *
+ * Each lookup must return the expected records, and must send the expected number of queries:
+ * lookups of several types for the same name share the referrals from the zones above the name
+ * (only the queries to the name's own zone are sent once per type), and threads resolving the
+ * same name at the same time share a single resolution. A name with two CNAME records pointing
+ * to two other zones must be resolved in about the time of a single target, since the targets
+ * are resolved concurrently.
+ *
+ * Usage: java ca.ubc.cs317.dnslookup.ConcurrentResolutionCheck [port]. The process exits with
+ * status 1 if any check fails.
+ */
+public class ConcurrentResolutionCheck {
+
+    private static final double LATENCY_MILLIS = 100;
+    private static final long TTL = 3600;
+    private static final int THREADS = 8;
+    private static final List<RecordType> DUAL_STACK = List.of(RecordType.A, RecordType.AAAA);
+
+    private final FakeDNSHierarchy hierarchy;
+    private int failures = 0;
+
+    private ConcurrentResolutionCheck(FakeDNSHierarchy hierarchy) {
+        this.hierarchy = hierarchy;
+    }
+
+    private void check(boolean condition, String description) {
+        if (!condition) {
+            System.out.println("FAILED: " + description);
+            failures++;
+        }
+    }
+
+    /** Resolves a name and checks its results and the number of queries sent for it.
+     *
+     * @param hostName        Host name to be resolved.
+     * @param types           Record types to be resolved.
+     * @param expected        Expected results, in the order of the types.
+     * @param expectedQueries Number of queries the lookup must send.
+     * @return The duration of the lookup, in milliseconds.
+     */
+    private long checkLookup(String hostName, List<RecordType> types, List<Set<ResourceRecord>> expected,
+                             int expectedQueries) {
+        long queries = hierarchy.getQueryCount();
+        long start = System.nanoTime();
+        Map<RecordType, Set<ResourceRecord>> results = DNSLookupService.getResults(hostName, types, new LookupBudget());
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        queries = hierarchy.getQueryCount() - queries;
+        System.out.printf("%-20s %-8s %2d queries in %4d ms\n", hostName, types.toString().replace(" ", ""),
+                queries, elapsedMillis);
+        for (int i = 0; i < types.size(); i++)
+            check(expected.get(i).equals(results.get(types.get(i))), hostName + " " + types.get(i) +
+                    ": expected " + expected.get(i) + ", got " + results.get(types.get(i)));
+        check(queries == expectedQueries, hostName + ": expected " + expectedQueries + " queries, got " + queries);
+        return elapsedMillis;
+    }
+
+    private void checkLookups() throws Exception {
+        // empty cache: the root and com referrals are shared by both types, zone0.com is queried
+        // once per type
+        checkLookup("host0.zone0.com", DUAL_STACK,
+                List.of(Set.of(a("host0.zone0.com", "10.0.0.1")), Set.of(aaaa("host0.zone0.com", "fd00::1"))), 4);
+
+        // com is cached; host1 has no AAAA record, which is cached as a negative result
+        checkLookup("host1.zone3.com", DUAL_STACK, List.of(Set.of(a("host1.zone3.com", "10.0.3.2")), Set.of()), 3);
+        check(DNSCache.getInstance().isNegativeResult(new DNSNode("host1.zone3.com", RecordType.AAAA)),
+                "host1.zone3.com AAAA is cached as a negative result");
+
+        // a CNAME chain within the zone is followed by the server, for each type; the root and
+        // net referrals are shared
+        checkLookup("chain0.zone4.net", DUAL_STACK,
+                List.of(Set.of(a("host0.zone4.net", "10.0.4.1")), Set.of(aaaa("host0.zone4.net", "fd00::5"))), 4);
+
+        // a CNAME to another zone (root, org and zone5.org) is resolved from the cached TLD of its
+        // target (com and zone6.com)
+        checkLookup("alias.zone5.org", List.of(RecordType.A), List.of(Set.of(a("host0.zone6.com", "10.0.6.1"))), 5);
+
+        // two CNAMEs to zones that are not cached: one query to zone0.com, then a referral and an
+        // answer for each target, resolved concurrently
+        long elapsedMillis = checkLookup("multi.zone0.com", List.of(RecordType.A),
+                List.of(Set.of(a("host0.zone7.net", "10.0.7.1"), a("host0.zone8.org", "10.0.8.1"))), 5);
+        check(elapsedMillis < 4 * LATENCY_MILLIS, "the CNAME targets of multi.zone0.com are resolved concurrently " +
+                "(3 round trips), took " + elapsedMillis + " ms");
+    }
+
+    /** Resolves the same name and types from several threads at the same time, and checks that
+     * they share a single resolution.
+     */
+    private void checkSharedResolution() throws Exception {
+        String hostName = "host0.zone10.net";
+        List<Set<ResourceRecord>> expected = List.of(Set.of(a(hostName, "10.0.10.1")), Set.of(aaaa(hostName, "fd00::b")));
+        long queries = hierarchy.getQueryCount();
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Map<RecordType, Set<ResourceRecord>>> results = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    results.add(DNSLookupService.getResults(hostName, DUAL_STACK, new LookupBudget()));
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) thread.join();
+        queries = hierarchy.getQueryCount() - queries;
+        System.out.printf("%-20s %-8s %2d queries for %d threads\n", hostName, "[A,AAAA]", queries, THREADS);
+
+        check(error.get() == null, "a lookup thread threw " + error.get());
+        for (Map<RecordType, Set<ResourceRecord>> result : results)
+            check(result.get(RecordType.A).equals(expected.get(0)) && result.get(RecordType.AAAA).equals(expected.get(1)),
+                    hostName + ": expected " + expected + ", got " + result);
+        // the net referral once, and zone10.net once per type
+        check(queries == 3, hostName + ": expected 3 queries for " + THREADS + " threads, got " + queries);
+    }
+
+    private static ResourceRecord a(String hostName, String address) throws UnknownHostException {
+        return new ResourceRecord(hostName, RecordType.A, TTL, InetAddress.getByName(address));
+    }
+
+    private static ResourceRecord aaaa(String hostName, String address) throws UnknownHostException {
+        return new ResourceRecord(hostName, RecordType.AAAA, TTL, InetAddress.getByName(address));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : FakeDNSHierarchy.DEFAULT_PORT;
+        List<FakeDNSHierarchy.Zone> zones = FakeDNSHierarchy.generate(12, 2, 3, 4, TTL);
+        for (FakeDNSHierarchy.Zone zone : zones)
+            if (zone.getOrigin().equals("zone0.com"))
+                zone.add("multi.zone0.com", RecordType.CNAME, TTL, "host0.zone7.net")
+                        .add("multi.zone0.com", RecordType.CNAME, TTL, "host0.zone8.org");
+
+        FakeDNSHierarchy hierarchy = new FakeDNSHierarchy(zones, port);
+        hierarchy.setImpairments(LATENCY_MILLIS, 0, 0, 0);
+        hierarchy.start();
+        DNSQueryHandler.setServerPort(port);
+        DNSQueryHandler.openSocket();
+        DNSLookupService.setRootServer(FakeDNSHierarchy.ROOT_SERVER);
+
+        ConcurrentResolutionCheck check = new ConcurrentResolutionCheck(hierarchy);
+        try {
+            check.checkLookups();
+            check.checkSharedResolution();
+        } finally {
+            DNSQueryHandler.closeSocket();
+            hierarchy.stop();
+        }
+        System.out.println(check.failures == 0 ? "All checks passed." : check.failures + " checks failed.");
+        System.exit(check.failures == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,644 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/** A stand-in for the DNS hierarchy (root, TLD and authoritative servers), running in the same
+ * process as the resolver, for reproducible offline performance tests. Each server listens on
+ * its own loopback address (e.g., 127.0.1.1) and on a common port, over UDP and TCP, and answers
+ * iteratively from the zones it serves: referrals (with glue) for delegated names, authoritative
+ * answers (following CNAME chains within the zone), and NODATA or NXDOMAIN responses with an SOA
+ * record for negative caching. A name may have several CNAME records (which is not valid in DNS,
+ * but is handled by the resolver), in which case all of them are returned and none is followed.
+ *
+ * Latency, loss and truncation can be injected in UDP responses: each response is delayed by a
+ * fixed latency plus a random jitter, dropped with a given probability, or replaced by a
+ * truncated response (TC bit set, no records) with a given probability, so the resolver retries
+ * over TCP. Responses larger than the client's payload size are always truncated.
+ *
+ * Zones are either generated (see generate) or read from a file in a simple format:
+ * <pre>
+ * $ZONE origin serverAddress [serverAddress...]
+ * owner ttl type data
+ * </pre>
+ * where owner is an absolute name (or @ for the origin), type is A, AAAA, NS or CNAME, and the
+ * records that follow a $ZONE line belong to that zone. Delegations are NS records (and glue)
+ * for a subzone in its parent zone, as in a master file. Listening on addresses other than
+ * 127.0.0.1 requires the whole 127.0.0.0/8 block to be routed to the loopback interface, as on
+ * Linux.
+ */
+public class FakeDNSHierarchy {
+
+    public static final int DEFAULT_PORT = 5300;
+    public static final InetAddress ROOT_SERVER = address("127.0.0.2");
+
+    private static final int RCODE_NAME_ERROR = 3;
+    private static final int RCODE_REFUSED = 5;
+    private static final int OPT_TYPE_CODE = 41;
+    private static final int MAX_UDP_SIZE = 512;
+    private static final int MAX_MESSAGE_SIZE = 0xFFFF;
+    private static final long NEGATIVE_TTL = 60;
+    private static final int MAX_CACHED_RESPONSES = 100_000;
+    private static final int MAX_CNAME_CHAIN = 16;
+
+    /** A record of a zone. Unlike ResourceRecord, its TTL does not decrease over time.
+     */
+    private static class Record {
+        private final String name;
+        private final RecordType type;
+        private final long ttl;
+        private final String data;
+
+        private Record(String name, RecordType type, long ttl, String data) {
+            this.name = name;
+            this.type = type;
+            this.ttl = ttl;
+            this.data = data;
+        }
+
+        private ResourceRecord toResourceRecord() {
+            if (type == RecordType.A || type == RecordType.AAAA)
+                return new ResourceRecord(name, type, ttl, address(data));
+            return new ResourceRecord(name, type, ttl, data);
+        }
+    }
+
+    /** A zone, with the addresses of the servers that are authoritative for it.
+     */
+    public static class Zone {
+        private final String origin;
+        private final List<InetAddress> servers;
+        private final Map<String, List<Record>> records = new HashMap<>();
+        private final Set<String> names = new HashSet<>();
+
+        public Zone(String origin, List<InetAddress> servers) {
+            this.origin = normalize(origin);
+            this.servers = servers;
+            this.names.add(this.origin);
+        }
+
+        public String getOrigin() {
+            return origin;
+        }
+
+        public List<InetAddress> getServers() {
+            return servers;
+        }
+
+        /** Adds a record to the zone.
+         *
+         * @param name Owner name of the record, which must be in the zone.
+         * @param type Record type (A, AAAA, NS or CNAME).
+         * @param ttl  TTL of the record, in seconds.
+         * @param data Address (A and AAAA) or host name (NS and CNAME) of the record.
+         * @return This zone.
+         */
+        public Zone add(String name, RecordType type, long ttl, String data) {
+            name = normalize(name);
+            if (!isSubdomain(name, origin))
+                throw new IllegalArgumentException(name + " is not in zone " + origin);
+            if (type != RecordType.A && type != RecordType.AAAA && type != RecordType.NS && type != RecordType.CNAME)
+                throw new IllegalArgumentException("Unsupported record type: " + type);
+            if (type == RecordType.A || type == RecordType.AAAA) address(data);
+            else data = normalize(data);
+            records.computeIfAbsent(name, key -> new ArrayList<>()).add(new Record(name, type, ttl, data));
+            // every ancestor of the name within the zone exists (possibly as an empty non-terminal)
+            for (String ancestor = name; !ancestor.equals(origin); ancestor = parent(ancestor))
+                names.add(ancestor);
+            return this;
+        }
+
+        private List<Record> get(String name, RecordType type) {
+            List<Record> result = new ArrayList<>();
+            for (Record record : records.getOrDefault(name, Collections.emptyList()))
+                if (record.type == type) result.add(record);
+            return result;
+        }
+
+        /** Writes the zone in the format read by load.
+         */
+        private void write(PrintStream out) {
+            out.print("$ZONE " + (origin.isEmpty() ? "." : origin));
+            for (InetAddress server : servers)
+                out.print(" " + server.getHostAddress());
+            out.println();
+            for (List<Record> list : records.values())
+                for (Record record : list)
+                    out.println((record.name.isEmpty() ? "." : record.name) + " " + record.ttl + " " +
+                            record.type + " " + record.data);
+        }
+    }
+
+    /** A cached response, with the end of its question section (where truncated responses end).
+     */
+    private static class Response {
+        private final byte[] message;
+        private final int questionEnd;
+
+        private Response(byte[] message, int questionEnd) {
+            this.message = message;
+            this.questionEnd = questionEnd;
+        }
+    }
+
+    private final int port;
+    private final Map<InetAddress, List<Zone>> zonesByServer = new HashMap<>();
+    private final ConcurrentHashMap<String, Response> responses = new ConcurrentHashMap<>();
+    private final List<DatagramChannel> udpChannels = new ArrayList<>();
+    private final List<ServerSocket> tcpSockets = new ArrayList<>();
+    private final ExecutorService threads = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "fake-dns");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ScheduledExecutorService delayedResponses = Executors.newScheduledThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "fake-dns-delay");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile long latencyMicros = 0;
+    private volatile long jitterMicros = 0;
+    private volatile double lossProbability = 0;
+    private volatile double truncationProbability = 0;
+
+    private final LongAdder queryCount = new LongAdder();
+    private final LongAdder tcpQueryCount = new LongAdder();
+    private final LongAdder droppedCount = new LongAdder();
+    private final LongAdder truncatedCount = new LongAdder();
+
+    /** Creates a hierarchy serving a set of zones. The servers are only started by start().
+     *
+     * @param zones Zones served by the hierarchy. One of them should be the root zone.
+     * @param port  Port on which every server listens.
+     */
+    public FakeDNSHierarchy(List<Zone> zones, int port) {
+        this.port = port;
+        for (Zone zone : zones)
+            for (InetAddress server : zone.servers)
+                zonesByServer.computeIfAbsent(server, key -> new ArrayList<>()).add(zone);
+    }
+
+    /** Generates a hierarchy of zones: the root zone, served by ROOT_SERVER, delegates the com,
+     * net and org TLDs, served by 127.0.1.1 to 127.0.1.3, which delegate zones zone0.com,
+     * zone1.net, zone2.org, etc., each served by two of the authoritative servers 127.0.2.1,
+     * 127.0.2.2, etc. Each zone contains:
+     * <ul>
+     *     <li>hosts host0 to host(hosts - 1), with an A record (host0 also has an AAAA record);</li>
+     *     <li>a chain of CNAME records chain0, chain1, ..., ending at host0;</li>
+     *     <li>alias, a CNAME record for host0 in the next zone.</li>
+     * </ul>
+     * One zone in ten (except zone0.com) is delegated to name servers in zone0.com, without glue,
+     * so the resolver has to resolve its name servers first.
+     *
+     * @param zoneCount   Number of zones below the TLDs.
+     * @param hosts       Number of hosts in each zone (at most 250).
+     * @param chainLength Number of CNAME records in each chain.
+     * @param servers     Number of authoritative servers shared by the zones (at most 250).
+     * @param ttl         TTL of every record, in seconds.
+     * @return The zones of the hierarchy.
+     */
+    public static List<Zone> generate(int zoneCount, int hosts, int chainLength, int servers, long ttl) {
+        if (zoneCount <= 0 || hosts <= 0 || hosts > 250 || chainLength < 0 || servers <= 0 || servers > 250)
+            throw new IllegalArgumentException("Invalid hierarchy parameters.");
+        String[] tlds = {"com", "net", "org"};
+        List<Zone> zones = new ArrayList<>();
+        Zone root = new Zone(".", List.of(ROOT_SERVER));
+        root.add(".", RecordType.NS, ttl, "a.root-servers.net");
+        zones.add(root);
+        Zone[] tldZones = new Zone[tlds.length];
+        for (int i = 0; i < tlds.length; i++) {
+            String tldServer = "127.0.1." + (i + 1);
+            tldZones[i] = new Zone(tlds[i], List.of(address(tldServer)));
+            tldZones[i].add(tlds[i], RecordType.NS, ttl, "a.nic." + tlds[i]);
+            zones.add(tldZones[i]);
+            root.add(tlds[i], RecordType.NS, ttl, "a.nic." + tlds[i]);
+            root.add("a.nic." + tlds[i], RecordType.A, ttl, tldServer);
+        }
+
+        Zone zone0 = null;
+        for (int k = 0; k < zoneCount; k++) {
+            int tld = k % tlds.length;
+            String origin = "zone" + k + "." + tlds[tld];
+            String[] serverAddresses = {"127.0.2." + (k % servers + 1), "127.0.2." + ((k + 1) % servers + 1)};
+            Zone zone = new Zone(origin, List.of(address(serverAddresses[0]), address(serverAddresses[1])));
+            boolean glueless = k % 10 == 9;
+            for (int n = 0; n < 2; n++) {
+                String nsName = glueless ? "ns" + k + "-" + (n + 1) + ".zone0.com" : "ns" + (n + 1) + "." + origin;
+                zone.add(origin, RecordType.NS, ttl, nsName);
+                tldZones[tld].add(origin, RecordType.NS, ttl, nsName);
+                if (glueless)
+                    zone0.add(nsName, RecordType.A, ttl, serverAddresses[n]);
+                else {
+                    zone.add(nsName, RecordType.A, ttl, serverAddresses[n]);
+                    tldZones[tld].add(nsName, RecordType.A, ttl, serverAddresses[n]);
+                }
+            }
+            for (int h = 0; h < hosts; h++)
+                zone.add("host" + h + "." + origin, RecordType.A, ttl,
+                        "10." + (k >> 8 & 0xFF) + "." + (k & 0xFF) + "." + (h + 1));
+            zone.add("host0." + origin, RecordType.AAAA, ttl, "fd00::" + Integer.toHexString(k + 1));
+            for (int c = 0; c < chainLength; c++)
+                zone.add("chain" + c + "." + origin, RecordType.CNAME, ttl,
+                        (c + 1 < chainLength ? "chain" + (c + 1) : "host0") + "." + origin);
+            int next = (k + 1) % zoneCount;
+            zone.add("alias." + origin, RecordType.CNAME, ttl, "host0.zone" + next + "." + tlds[next % tlds.length]);
+            if (k == 0) zone0 = zone;
+            zones.add(zone);
+        }
+        return zones;
+    }
+
+    /** Returns the names of the hosts, CNAME chains and aliases of a generated hierarchy, which
+     * are the names a load generator would usually query.
+     *
+     * @param zones Zones generated by generate.
+     * @return The owner names of every A and CNAME record below the TLDs, except name servers.
+     */
+    public static List<String> queryNames(List<Zone> zones) {
+        List<String> names = new ArrayList<>();
+        for (Zone zone : zones) {
+            if (zone.origin.indexOf('.') < 0) continue; // root and TLDs
+            for (List<Record> records : zone.records.values()) {
+                Record record = records.get(0);
+                if ((record.type == RecordType.A || record.type == RecordType.CNAME) && !record.name.startsWith("ns"))
+                    names.add(record.name);
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    /** Reads zones from a file, in the format described above.
+     *
+     * @param input Source of the zone file.
+     * @return The zones read from the file.
+     * @throws IOException if the file could not be read
+     * @throws IllegalArgumentException if the file is not valid
+     */
+    public static List<Zone> load(BufferedReader input) throws IOException {
+        List<Zone> zones = new ArrayList<>();
+        Zone zone = null;
+        String line;
+        int lineNumber = 0;
+        while ((line = input.readLine()) != null) {
+            lineNumber++;
+            line = line.split("#", 2)[0].trim();
+            if (line.isEmpty()) continue;
+            String[] fields = line.split("\\s+");
+            try {
+                if (fields[0].equalsIgnoreCase("$ZONE")) {
+                    if (fields.length < 3) throw new IllegalArgumentException("expected: $ZONE origin server...");
+                    List<InetAddress> servers = new ArrayList<>();
+                    for (int i = 2; i < fields.length; i++)
+                        servers.add(address(fields[i]));
+                    zone = new Zone(fields[1], servers);
+                    zones.add(zone);
+                } else {
+                    if (zone == null) throw new IllegalArgumentException("record outside of a zone");
+                    if (fields.length != 4) throw new IllegalArgumentException("expected: owner ttl type data");
+                    String owner = fields[0].equals("@") ? zone.origin : fields[0];
+                    zone.add(owner, RecordType.valueOf(fields[2].toUpperCase()), Long.parseLong(fields[1]), fields[3]);
+                }
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("line " + lineNumber + ": " + e.getMessage(), e);
+            }
+        }
+        return zones;
+    }
+
+    /** Writes zones in the format read by load.
+     *
+     * @param zones Zones to be written.
+     * @param out   Destination of the zone file.
+     */
+    public static void write(List<Zone> zones, PrintStream out) {
+        for (Zone zone : zones)
+            zone.write(out);
+    }
+
+    /** Changes the impairments applied to UDP responses. TCP responses are only delayed.
+     *
+     * @param latencyMillis         Fixed delay of each response, in milliseconds.
+     * @param jitterMillis          Maximum random delay added to each response, in milliseconds.
+     * @param lossProbability       Probability that a response is dropped.
+     * @param truncationProbability Probability that a response is truncated.
+     */
+    public void setImpairments(double latencyMillis, double jitterMillis, double lossProbability,
+                               double truncationProbability) {
+        if (latencyMillis < 0 || jitterMillis < 0 || lossProbability < 0 || lossProbability > 1 ||
+                truncationProbability < 0 || truncationProbability > 1)
+            throw new IllegalArgumentException("Invalid impairments.");
+        this.latencyMicros = (long) (latencyMillis * 1000);
+        this.jitterMicros = (long) (jitterMillis * 1000);
+        this.lossProbability = lossProbability;
+        this.truncationProbability = truncationProbability;
+    }
+
+    /** Binds the sockets of every server and starts answering queries.
+     *
+     * @throws IOException if a socket could not be bound (e.g., the address is not local)
+     */
+    public void start() throws IOException {
+        try {
+            for (InetAddress server : zonesByServer.keySet()) {
+                InetSocketAddress address = new InetSocketAddress(server, port);
+                DatagramChannel channel = DatagramChannel.open();
+                udpChannels.add(channel);
+                channel.bind(address);
+                ServerSocket socket = new ServerSocket();
+                tcpSockets.add(socket);
+                socket.bind(address);
+                threads.execute(() -> receiveUdpQueries(server, channel));
+                threads.execute(() -> acceptTcpConnections(server, socket));
+            }
+        } catch (IOException e) {
+            stop();
+            throw e;
+        }
+    }
+
+    /** Stops every server.
+     */
+    public void stop() {
+        for (DatagramChannel channel : udpChannels)
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        for (ServerSocket socket : tcpSockets)
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        threads.shutdownNow();
+        delayedResponses.shutdownNow();
+    }
+
+    public long getQueryCount() {
+        return queryCount.sum();
+    }
+
+    public long getTcpQueryCount() {
+        return tcpQueryCount.sum();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    public long getTruncatedCount() {
+        return truncatedCount.sum();
+    }
+
+    private void receiveUdpQueries(InetAddress server, DatagramChannel channel) {
+        ByteBuffer query = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+        while (channel.isOpen()) {
+            try {
+                query.clear();
+                SocketAddress client = channel.receive(query);
+                query.flip();
+                queryCount.increment();
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                if (random.nextDouble() < lossProbability) {
+                    droppedCount.increment();
+                    continue;
+                }
+                ByteBuffer response = respond(server, query, false, random.nextDouble() < truncationProbability);
+                if (response == null) continue;
+                long delay = latencyMicros + (jitterMicros > 0 ? random.nextLong(jitterMicros + 1) : 0);
+                if (delay == 0)
+                    channel.send(response, client);
+                else
+                    delayedResponses.schedule(() -> {
+                        try {
+                            channel.send(response, client);
+                        } catch (IOException ignored) {
+                        }
+                    }, delay, TimeUnit.MICROSECONDS);
+            } catch (ClosedChannelException | RejectedExecutionException e) {
+                break;
+            } catch (IOException e) {
+                // e.g., an ICMP error caused by a previous response; keep serving
+            }
+        }
+    }
+
+    private void acceptTcpConnections(InetAddress server, ServerSocket socket) {
+        while (!socket.isClosed()) {
+            try {
+                Socket connection = socket.accept();
+                threads.execute(() -> serveTcpConnection(server, connection));
+            } catch (IOException | RejectedExecutionException e) {
+                if (socket.isClosed()) break;
+            }
+        }
+    }
+
+    private void serveTcpConnection(InetAddress server, Socket socket) {
+        try (socket) {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            while (true) {
+                byte[] query = new byte[input.readUnsignedShort()];
+                input.readFully(query);
+                tcpQueryCount.increment();
+                ByteBuffer response = respond(server, ByteBuffer.wrap(query), true, false);
+                if (response == null) continue;
+                // pipelined queries are delayed independently, so responses may be sent out of order
+                Runnable send = () -> {
+                    synchronized (output) {
+                        try {
+                            output.writeShort(response.remaining());
+                            output.write(response.array(), response.arrayOffset(), response.remaining());
+                            output.flush();
+                        } catch (IOException ignored) {
+                            // the connection is closed by the reading thread
+                        }
+                    }
+                };
+                if (latencyMicros == 0) send.run();
+                else delayedResponses.schedule(send, latencyMicros, TimeUnit.MICROSECONDS);
+            }
+        } catch (IOException | RejectedExecutionException e) {
+            // client closed the connection, or the hierarchy was stopped
+        }
+    }
+
+    /** Builds the response of a server to a query. Responses are cached by server, question and
+     * payload size, so only the transaction ID and RD flag are patched for repeated queries.
+     *
+     * @param server   Address of the server the query was sent to.
+     * @param query    Buffer containing the query.
+     * @param tcp      Whether the query was received over TCP.
+     * @param truncate Whether the response should be truncated.
+     * @return A buffer containing the response, or null if the query should be ignored.
+     */
+    private ByteBuffer respond(InetAddress server, ByteBuffer query, boolean tcp, boolean truncate) {
+        if (query.remaining() < 12 || (query.get(2) & 0x80) != 0) return null;
+        String hostName;
+        int typeCode;
+        int clientSize = MAX_UDP_SIZE;
+        boolean edns = false;
+        try {
+            DNSMessageView view = new DNSMessageView().wrap(query);
+            if (view.getCount(DNSMessageView.QUESTION) != 1) return null;
+            hostName = DomainNameParser.parseName(query, view.getBase(), view.getQuestionNameOffset()).toLowerCase();
+            typeCode = view.getShort(view.skipName(view.getQuestionNameOffset()));
+            while (view.nextRecord())
+                if (view.getSection() == DNSMessageView.ADDITIONAL && view.getTypeCode() == OPT_TYPE_CODE) {
+                    edns = true;
+                    clientSize = Math.max(MAX_UDP_SIZE, view.getRecordClass());
+                }
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            return null;
+        }
+
+        String key = server.getHostAddress() + " " + hostName + " " + typeCode + " " + edns;
+        Response response = responses.get(key);
+        if (response == null) {
+            response = buildResponse(server, hostName, typeCode, edns);
+            if (responses.size() < MAX_CACHED_RESPONSES) responses.put(key, response);
+        }
+
+        byte[] message;
+        if (!tcp && (truncate || response.message.length > clientSize)) {
+            // only the question is sent, with the TC bit set and no record
+            truncatedCount.increment();
+            message = Arrays.copyOf(response.message, response.questionEnd);
+            message[2] |= 0x02;
+            for (int i = 6; i < 12; i++) message[i] = 0;
+        } else
+            message = response.message.clone();
+        message[0] = query.get(query.position());
+        message[1] = query.get(query.position() + 1);
+        message[2] |= query.get(query.position() + 2) & 0x01; // RD
+        return ByteBuffer.wrap(message);
+    }
+
+    private Response buildResponse(InetAddress server, String hostName, int typeCode, boolean edns) {
+        DNSMessageBuilder builder = new DNSMessageBuilder(MAX_MESSAGE_SIZE);
+        Zone zone = findZone(server, hostName);
+        if (zone == null) {
+            builder.writeHeader(0, 0x8000 | RCODE_REFUSED).setCount(DNSMessageView.QUESTION, 1)
+                    .writeQuestion(hostName, typeCode);
+            return finish(builder, builder.size(), edns, 0);
+        }
+
+        String cut = findZoneCut(zone, hostName);
+        if (cut != null) {
+            // referral: NS records of the subzone, and the addresses of its name servers if known
+            builder.writeHeader(0, 0x8000).setCount(DNSMessageView.QUESTION, 1).writeQuestion(hostName, typeCode);
+            int questionEnd = builder.size();
+            List<Record> nameServers = zone.get(cut, RecordType.NS);
+            for (Record record : nameServers)
+                builder.writeRecord(record.toResourceRecord());
+            builder.setCount(DNSMessageView.AUTHORITY, nameServers.size());
+            int glue = 0;
+            for (Record record : nameServers)
+                for (RecordType addressType : new RecordType[]{RecordType.A, RecordType.AAAA})
+                    for (Record address : zone.get(record.data, addressType)) {
+                        builder.writeRecord(address.toResourceRecord());
+                        glue++;
+                    }
+            return finish(builder, questionEnd, edns, glue);
+        }
+
+        // authoritative answer, following CNAME records within the zone
+        RecordType type = RecordType.getByCode(typeCode);
+        List<Record> answers = new ArrayList<>();
+        String name = hostName;
+        while (true) {
+            List<Record> records = zone.get(name, type);
+            if (!records.isEmpty() || type == RecordType.CNAME) {
+                answers.addAll(records);
+                break;
+            }
+            List<Record> aliases = zone.get(name, RecordType.CNAME);
+            if (aliases.isEmpty() || answers.size() > MAX_CNAME_CHAIN) break;
+            if (aliases.size() > 1) {
+                // several targets are not followed, the resolver resolves each of them
+                answers.addAll(aliases);
+                break;
+            }
+            answers.add(aliases.get(0));
+            name = aliases.get(0).data;
+            if (!isSubdomain(name, zone.origin) || findZoneCut(zone, name) != null) break;
+        }
+        int responseCode = answers.isEmpty() && !zone.names.contains(name) ? RCODE_NAME_ERROR : 0;
+        builder.writeHeader(0, 0x8400 | responseCode).setCount(DNSMessageView.QUESTION, 1)
+                .writeQuestion(hostName, typeCode);
+        int questionEnd = builder.size();
+        for (Record record : answers)
+            builder.writeRecord(record.toResourceRecord());
+        builder.setCount(DNSMessageView.ANSWER, answers.size());
+        if (answers.isEmpty())
+            builder.writeSoaRecord(zone.origin, NEGATIVE_TTL, NEGATIVE_TTL).setCount(DNSMessageView.AUTHORITY, 1);
+        return finish(builder, questionEnd, edns, 0);
+    }
+
+    private static Response finish(DNSMessageBuilder builder, int questionEnd, boolean edns, int additional) {
+        if (edns) {
+            builder.writeOptRecord(MAX_MESSAGE_SIZE);
+            additional++;
+        }
+        builder.setCount(DNSMessageView.ADDITIONAL, additional);
+        ByteBuffer message = builder.getMessage();
+        byte[] bytes = new byte[message.remaining()];
+        message.get(bytes);
+        return new Response(bytes, questionEnd);
+    }
+
+    /** Returns the most specific zone served by a server that contains a name, or null if the
+     * server is not authoritative for the name.
+     */
+    private Zone findZone(InetAddress server, String hostName) {
+        Zone best = null;
+        for (Zone zone : zonesByServer.getOrDefault(server, Collections.emptyList()))
+            if (isSubdomain(hostName, zone.origin) && (best == null || zone.origin.length() > best.origin.length()))
+                best = zone;
+        return best;
+    }
+
+    /** Returns the highest name between the origin of a zone (excluded) and a host name
+     * (included) that has NS records in the zone, i.e., the delegation to follow, or null if the
+     * name is not delegated.
+     */
+    private static String findZoneCut(Zone zone, String hostName) {
+        String cut = null;
+        for (String name = hostName; !name.equals(zone.origin) && !name.isEmpty(); name = parent(name))
+            if (!zone.get(name, RecordType.NS).isEmpty()) cut = name;
+        return cut;
+    }
+
+    private static boolean isSubdomain(String name, String zone) {
+        return zone.isEmpty() || name.equals(zone) || name.endsWith("." + zone);
+    }
+
+    private static String parent(String name) {
+        int dot = name.indexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1);
+    }
+
+    private static String normalize(String name) {
+        name = name.toLowerCase();
+        return name.endsWith(".") ? name.substring(0, name.length() - 1) : name;
+    }
+
+    private static InetAddress address(String literal) {
+        // only literal addresses are accepted, so no name is resolved through the system
+        if (!literal.matches("[0-9a-fA-F:.]+"))
+            throw new IllegalArgumentException("Invalid address: " + literal);
+        try {
+            return InetAddress.getByName(literal);
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Invalid address: " + literal, e);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+
+/** Checks the LabelTrie index of cached names: the nodes visited for a zone, the closest zone
+ * found for a name, the zone membership test, and the pruning of entries once their last node
+ * is removed, first from a single thread and then with several threads adding and removing
+ * names in the same zones at the same time.
+ *
+ * The number of entries in the trie is not visible through its interface, so it is counted
+ * through reflection to check that removed names leave no entry behind.
+ *
+ * Usage: java ca.ubc.cs317.dnslookup.LabelTrieCheck [options], where options are:
+ * <pre>
+ * -threads n  number of threads adding and removing names (default 4)
+ * -names n    number of names added by each thread (default 20000)
+ * </pre>
+ * The process exits with status 1 if any check fails.
+ */
+public class LabelTrieCheck {
+
+    private int failures = 0;
+
+    private void check(boolean condition, String description) {
+        if (!condition) {
+            System.out.println("FAILED: " + description);
+            failures++;
+        }
+    }
+
+    private static Set<DNSNode> nodes(LabelTrie trie, String zone) {
+        Set<DNSNode> nodes = new HashSet<>();
+        trie.forEachNode(zone, nodes::add);
+        return nodes;
+    }
+
+    private void checkNodes(LabelTrie trie, String zone, Set<DNSNode> expected) {
+        Set<DNSNode> visited = nodes(trie, zone);
+        check(visited.equals(expected), "nodes of zone \"" + zone + "\": expected " + expected + ", got " + visited);
+    }
+
+    private void checkForEachNode() throws Exception {
+        LabelTrie trie = new LabelTrie();
+        DNSNode www = new DNSNode("www.example.com", RecordType.A);
+        DNSNode www6 = new DNSNode("www.example.com", RecordType.AAAA);
+        DNSNode zone = new DNSNode("example.com", RecordType.NS);
+        DNSNode mail = new DNSNode("mail.example.com", RecordType.MX);
+        DNSNode other = new DNSNode("other.org", RecordType.A);
+        for (DNSNode node : List.of(www, www6, zone, mail, other)) trie.add(node);
+        trie.add(new DNSNode("WWW.Example.COM.", RecordType.A)); // the same node as www
+
+        checkNodes(trie, "example.com", Set.of(www, www6, zone, mail));
+        checkNodes(trie, "EXAMPLE.com.", Set.of(www, www6, zone, mail));
+        checkNodes(trie, "com", Set.of(www, www6, zone, mail));
+        checkNodes(trie, "", Set.of(www, www6, zone, mail, other));
+        checkNodes(trie, ".", Set.of(www, www6, zone, mail, other));
+        checkNodes(trie, "www.example.com", Set.of(www, www6));
+        checkNodes(trie, "ample.com", Set.of()); // not a label boundary
+        checkNodes(trie, "missing.example.com", Set.of());
+        check(countEntries(trie) == 6, "entries of com, example.com, www, mail, org and other.org, got " +
+                countEntries(trie));
+
+        // removing one type keeps the other; removing a name keeps the zone above it
+        trie.remove(www6);
+        checkNodes(trie, "www.example.com", Set.of(www));
+        trie.remove(www);
+        trie.remove(www); // removing a node twice has no effect
+        checkNodes(trie, "example.com", Set.of(zone, mail));
+        check(countEntries(trie) == 5, "the entry of www.example.com is pruned, got " + countEntries(trie) + " entries");
+
+        // a name without types is kept while a name below it is indexed, and pruned with it
+        trie.remove(zone);
+        checkNodes(trie, "example.com", Set.of(mail));
+        check(countEntries(trie) == 5, "example.com is kept for mail.example.com, got " + countEntries(trie) + " entries");
+        trie.remove(new DNSNode("MAIL.example.com.", RecordType.MX));
+        check(countEntries(trie) == 2, "com and its names are pruned, got " + countEntries(trie) + " entries");
+        trie.remove(new DNSNode("missing.example.com", RecordType.A)); // not indexed
+        trie.remove(other);
+        check(countEntries(trie) == 0, "every entry is pruned, got " + countEntries(trie));
+        checkNodes(trie, "", Set.of());
+    }
+
+    private void checkFindClosestZone() {
+        LabelTrie trie = new LabelTrie();
+        for (String zone : List.of("", "com", "example.com", "sub.example.com"))
+            trie.add(new DNSNode(zone, RecordType.NS));
+        trie.add(new DNSNode("host.example.com", RecordType.A)); // not a zone
+        trie.add(new DNSNode("org", RecordType.A)); // not a zone either
+
+        checkZone(trie, "a.b.sub.example.com", zone -> true, "sub.example.com");
+        checkZone(trie, "A.B.Sub.Example.COM.", zone -> true, "sub.example.com");
+        checkZone(trie, "sub.example.com", zone -> true, "sub.example.com");
+        checkZone(trie, "xsub.example.com", zone -> true, "example.com");
+        checkZone(trie, "x.host.example.com", zone -> true, "example.com");
+        checkZone(trie, "a.sub.example.com", zone -> !zone.equals("sub.example.com"), "example.com");
+        checkZone(trie, "a.sub.example.com", zone -> zone.equals("com"), "com");
+        checkZone(trie, "a.sub.example.com", zone -> false, null);
+        checkZone(trie, "www.example.org", zone -> true, null); // the root zone is never returned
+        checkZone(trie, "net", zone -> true, null);
+
+        List<String> tested = new ArrayList<>();
+        trie.findClosestZone("a.sub.example.com", zone -> {
+            tested.add(zone);
+            return false;
+        });
+        check(tested.equals(List.of("sub.example.com", "example.com", "com")),
+                "zones are tested deepest first, got " + tested);
+    }
+
+    private void checkZone(LabelTrie trie, String hostName, Predicate<String> accept, String expected) {
+        String zone = trie.findClosestZone(hostName, accept);
+        check(Objects.equals(zone, expected), "closest zone of " + hostName + ": expected " + expected + ", got " + zone);
+    }
+
+    private void checkIsWithin() {
+        String[][] within = {{"www.example.com", "example.com"}, {"example.com", "example.com"},
+                {"WWW.EXAMPLE.COM.", "example.com"}, {"www.example.com", "Example.Com."}, {"www.example.com", ""},
+                {"www.example.com", "."}, {"", ""}, {"a.b.c.example.com", "com"}};
+        String[][] outside = {{"badexample.com", "example.com"}, {"com", "example.com"},
+                {"example.com", "www.example.com"}, {"example.org", "example.com"}, {"", "com"}};
+        for (String[] pair : within)
+            check(LabelTrie.isWithin(pair[0], pair[1]), "\"" + pair[0] + "\" is within \"" + pair[1] + "\"");
+        for (String[] pair : outside)
+            check(!LabelTrie.isWithin(pair[0], pair[1]), "\"" + pair[0] + "\" is not within \"" + pair[1] + "\"");
+    }
+
+    /** Adds and removes names from several threads at the same time, in zones shared by all
+     * threads, so that entries are pruned while other threads add names below them. Each thread
+     * finally keeps one name in three, which must then be indexed, and nothing else.
+     *
+     * @param threads Number of threads.
+     * @param names   Number of names added by each thread.
+     */
+    private void checkConcurrentUpdates(int threads, int names) throws Exception {
+        LabelTrie trie = new LabelTrie();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                    // add and remove every name, add them again, then remove two names in three
+                    for (int round = 0; round < 4; round++)
+                        for (int i = 0; i < names; i++) {
+                            if (round % 2 == 0) trie.add(concurrentNode(thread, i));
+                            else if (round == 1 || i % 3 != 0) trie.remove(concurrentNode(thread, i));
+                        }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        Thread lister = new Thread(() -> {
+            try {
+                while (workers.stream().anyMatch(Thread::isAlive)) {
+                    trie.forEachNode("trie.test", node -> { });
+                    trie.findClosestZone("host.z1.trie.test", zone -> true);
+                }
+            } catch (Throwable e) {
+                error.compareAndSet(null, e);
+            }
+        });
+        start.countDown();
+        lister.start();
+        for (Thread worker : workers) worker.join();
+        lister.join();
+
+        check(error.get() == null, "a thread threw " + error.get());
+        Set<DNSNode> expected = new HashSet<>();
+        for (int t = 0; t < threads; t++)
+            for (int i = 0; i < names; i += 3) expected.add(concurrentNode(t, i));
+        Set<DNSNode> visited = nodes(trie, "");
+        System.out.printf("Concurrent updates: %d threads, %d names kept, %d indexed\n", threads, expected.size(),
+                visited.size());
+        check(visited.equals(expected), "the names kept are indexed, and only those");
+
+        for (DNSNode node : expected) trie.remove(node);
+        check(countEntries(trie) == 0, "every entry is pruned once all names are removed, got " + countEntries(trie));
+    }
+
+    /** Returns the node used by a thread for a name: threads share the zones z0 to z15 (and the
+     * subzones below them), but each thread has its own names.
+     */
+    private static DNSNode concurrentNode(int thread, int index) {
+        String name = "h" + index + ".t" + thread + ".s" + (index % 4) + ".z" + (index % 16) + ".trie.test";
+        return new DNSNode(name, index % 2 == 0 ? RecordType.A : RecordType.AAAA);
+    }
+
+    /** Counts the entries of a trie, other than its root, by reading its private fields.
+     */
+    private static int countEntries(LabelTrie trie) throws ReflectiveOperationException {
+        Field rootField = LabelTrie.class.getDeclaredField("root");
+        rootField.setAccessible(true);
+        Object root = rootField.get(trie);
+        Field childrenField = root.getClass().getDeclaredField("children");
+        childrenField.setAccessible(true);
+
+        int count = 0;
+        Deque<Object> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Map<?, ?> children = (Map<?, ?>) childrenField.get(pending.pop());
+            if (children == null) continue;
+            count += children.size();
+            children.values().forEach(pending::push);
+        }
+        return count;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("-") && i + 1 < args.length) options.put(args[i], args[++i]);
+            else {
+                System.err.println("Invalid option: " + args[i] + " (see the LabelTrieCheck documentation).");
+                System.exit(1);
+            }
+        }
+        int threads = Integer.parseInt(options.getOrDefault("-threads", "4"));
+        int names = Integer.parseInt(options.getOrDefault("-names", "20000"));
+
+        LabelTrieCheck check = new LabelTrieCheck();
+        check.checkForEachNode();
+        check.checkFindClosestZone();
+        check.checkIsWithin();
+        check.checkConcurrentUpdates(threads, names);
+        System.out.println(check.failures == 0 ? "All checks passed." : check.failures + " checks failed.");
+        System.exit(check.failures == 0 ? 0 : 1);
+    }
+}
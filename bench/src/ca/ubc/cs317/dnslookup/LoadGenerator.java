@@ -0,0 +1,272 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/** A load generator in the style of dnsperf: a number of clients resolve names through
+ * DNSLookupService, back to back (or at a limited total rate), against a FakeDNSHierarchy
+ * running in the same process, and the throughput and latency percentiles are reported. Since
+ * the hierarchy is local, the results are reproducible and do not depend on the Internet.
+ *
+ * Names are chosen at random from a list of queries (by default, every host, CNAME chain and
+ * alias of the generated hierarchy), optionally mixed with names that do not exist. Every lookup
+ * starts with the same cache, so the first queries follow referrals from the root and later
+ * queries are mostly answered from the cache, unless the TTL is short or the cache is small.
+ * A query for several record types (e.g., A,AAAA) resolves the types concurrently, as a single
+ * lookup.
+ *
+ * Usage: java ca.ubc.cs317.dnslookup.LoadGenerator [options], where options are:
+ * <pre>
+ * -c clients        number of concurrent clients (default 16)
+ * -d seconds        duration of the test (default 10)
+ * -Q qps            maximum total queries per second (default: unlimited)
+ * -queries file     queries to send, one "name [type[,type...]]" per line (default: generated names)
+ * -types list       record types of generated queries, e.g., A,AAAA (default A)
+ * -nx fraction      fraction of queries for names that do not exist (default 0)
+ * -zones file       zones to serve (default: a generated hierarchy, see FakeDNSHierarchy.generate)
+ * -zonecount n      number of generated zones (default 100)
+ * -hosts n          number of hosts per generated zone (default 10)
+ * -chain n          length of the CNAME chains of generated zones (default 2)
+ * -servers n        number of generated authoritative servers (default 4)
+ * -ttl seconds      TTL of generated records (default 300)
+ * -latency ms       delay of each response (default 0)
+ * -jitter ms        maximum random delay added to each response (default 0)
+ * -loss p           probability that a UDP response is dropped (default 0)
+ * -truncate p       probability that a UDP response is truncated (default 0)
+ * -port n           port of the fake servers (default 5300)
+ * -cache n          maximum number of cached records (default: cache default)
+ * -print-zones      print the zones in the format read by -zones, and exit
+ * </pre>
+ */
+public class LoadGenerator {
+
+    private static final int NX_QUERY_SPACE = 1_000_000;
+
+    private final List<Query> queries;
+    private final List<String> zoneOrigins;
+    private final double nxFraction;
+    private final Histogram latency = new Histogram();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder negatives = new LongAdder();
+    private final DNSCache cache = DNSCache.getInstance();
+
+    /** A query sent by the load generator: a host name and one or more record types.
+     */
+    public static class Query {
+        private final String hostName;
+        private final List<RecordType> types;
+
+        public Query(String hostName, List<RecordType> types) {
+            this.hostName = hostName;
+            this.types = types;
+        }
+    }
+
+    /** Creates a load generator.
+     *
+     * @param queries     Queries chosen at random by the clients.
+     * @param zoneOrigins Zones in which names that do not exist are generated.
+     * @param nxFraction  Fraction of the queries for names that do not exist.
+     */
+    public LoadGenerator(List<Query> queries, List<String> zoneOrigins, double nxFraction) {
+        if (queries.isEmpty())
+            throw new IllegalArgumentException("No query to send.");
+        if (nxFraction < 0 || nxFraction > 1 || (nxFraction > 0 && zoneOrigins.isEmpty()))
+            throw new IllegalArgumentException("Invalid fraction of non-existent names.");
+        this.queries = queries;
+        this.zoneOrigins = zoneOrigins;
+        this.nxFraction = nxFraction;
+    }
+
+    /** Sends queries from a number of clients for a fixed duration, printing the throughput of
+     * each second, then a summary.
+     *
+     * @param clients        Number of concurrent clients.
+     * @param durationMillis Duration of the test, in milliseconds.
+     * @param maxQps         Maximum total number of queries per second, or 0 for no limit. With
+     *                       a limit, the latency of each query is measured from the time it was
+     *                       scheduled, so queries delayed by slow queries are not omitted.
+     * @throws InterruptedException if interrupted while waiting for the clients
+     */
+    public void run(int clients, long durationMillis, double maxQps) throws InterruptedException {
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        long interval = maxQps > 0 ? (long) (1e9 / maxQps) : 0;
+        AtomicLong nextSlot = new AtomicLong(start);
+        ExecutorService executor = Executors.newFixedThreadPool(clients, runnable -> {
+            Thread thread = new Thread(runnable, "load-client");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < clients; i++)
+            executor.execute(() -> {
+                while (!Thread.currentThread().isInterrupted()) {
+                    long scheduled = interval == 0 ? System.nanoTime() : nextSlot.getAndAdd(interval);
+                    if (scheduled - end >= 0) break;
+                    long wait = scheduled - System.nanoTime();
+                    if (wait > 0) LockSupport.parkNanos(wait);
+                    lookup(nextQuery(), scheduled);
+                }
+            });
+        executor.shutdown();
+
+        long lastCount = 0;
+        for (int second = 1; ; second++) {
+            long tick = Math.min(start + TimeUnit.SECONDS.toNanos(second), end);
+            if (executor.awaitTermination(Math.max(0, tick - System.nanoTime()), TimeUnit.NANOSECONDS)) break;
+            if (tick == end) {
+                // lookups still running have their own deadline; wait for them
+                executor.awaitTermination(LookupBudget.DEFAULT_TIME_MILLIS, TimeUnit.MILLISECONDS);
+                break;
+            }
+            long count = latency.getCount();
+            System.out.printf("%4ds %10d queries %10d qps\n", second, count, count - lastCount);
+            lastCount = count;
+        }
+        printSummary((System.nanoTime() - start) / 1e9);
+    }
+
+    private Query nextQuery() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Query query = queries.get(random.nextInt(queries.size()));
+        if (nxFraction > 0 && random.nextDouble() < nxFraction)
+            return new Query("nx" + random.nextInt(NX_QUERY_SPACE) + "." +
+                    zoneOrigins.get(random.nextInt(zoneOrigins.size())), query.types);
+        return query;
+    }
+
+    private void lookup(Query query, long scheduled) {
+        LookupBudget budget = new LookupBudget();
+        Map<RecordType, Set<ResourceRecord>> results;
+        if (query.types.size() == 1) {
+            RecordType type = query.types.get(0);
+            results = Map.of(type, DNSLookupService.getResults(new DNSNode(query.hostName, type), 0, budget));
+        } else
+            results = DNSLookupService.getResults(query.hostName, query.types, budget);
+        latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - scheduled));
+
+        boolean negative = false;
+        for (Map.Entry<RecordType, Set<ResourceRecord>> entry : results.entrySet()) {
+            if (!entry.getValue().isEmpty()) return;
+            negative |= cache.isNegativeResult(new DNSNode(query.hostName, entry.getKey()));
+        }
+        if (negative) negatives.increment();
+        else failures.increment();
+    }
+
+    private void printSummary(double seconds) {
+        ResolverMetrics metrics = ResolverMetrics.getInstance();
+        long count = latency.getCount();
+        System.out.printf("Queries: %d in %.2f s (%.0f qps), %d negative, %d failed\n", count, seconds,
+                count / seconds, negatives.sum(), failures.sum());
+        System.out.printf("Latency: mean %.3f p50 %.3f p90 %.3f p99 %.3f p99.9 %.3f max %.3f ms\n",
+                latency.getMean() / 1000, latency.getPercentile(0.5) / 1000.0,
+                latency.getPercentile(0.9) / 1000.0, latency.getPercentile(0.99) / 1000.0,
+                latency.getPercentile(0.999) / 1000.0, latency.getMax() / 1000.0);
+        System.out.printf("Upstream: %d UDP, %d TCP queries (%.3f per lookup), %d timeouts, responses %s\n",
+                metrics.getQueriesSent(), metrics.getTcpQueriesSent(),
+                count == 0 ? 0.0 : (double) (metrics.getQueriesSent() + metrics.getTcpQueriesSent()) / count,
+                metrics.getTimeouts(), metrics.getResponseCodes());
+        System.out.printf("Cache: hit ratio %.1f%%, %d records, %d evictions, %d expirations\n",
+                100 * metrics.getCacheHitRatio(), metrics.getCacheSize(), metrics.getCacheEvictions(),
+                metrics.getCacheExpirations());
+    }
+
+    /** Reads queries in the format used by BatchLookup: a host name, optionally followed by a
+     * record type (A by default) or a comma-separated list of types, per line.
+     */
+    private static List<Query> readQueries(BufferedReader input) throws IOException {
+        List<Query> queries = new ArrayList<>();
+        String line;
+        while ((line = input.readLine()) != null) {
+            line = line.split("#", 2)[0].trim();
+            if (line.isEmpty()) continue;
+            String[] fields = line.split("\\s+");
+            if (fields.length > 2)
+                throw new IllegalArgumentException("Invalid line (expected: hostName [type]): " + line);
+            queries.add(new Query(fields[0], parseTypes(fields.length == 2 ? fields[1] : "A")));
+        }
+        return queries;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-print-zones")) options.put(args[i], "");
+            else if (args[i].startsWith("-") && i + 1 < args.length) options.put(args[i], args[++i]);
+            else {
+                System.err.println("Invalid option: " + args[i] + " (see the LoadGenerator documentation).");
+                System.exit(1);
+            }
+        }
+
+        List<FakeDNSHierarchy.Zone> zones;
+        if (options.containsKey("-zones"))
+            try (BufferedReader input = new BufferedReader(new FileReader(options.get("-zones")))) {
+                zones = FakeDNSHierarchy.load(input);
+            }
+        else
+            zones = FakeDNSHierarchy.generate(intOption(options, "-zonecount", 100), intOption(options, "-hosts", 10),
+                    intOption(options, "-chain", 2), intOption(options, "-servers", 4),
+                    intOption(options, "-ttl", 300));
+        if (options.containsKey("-print-zones")) {
+            FakeDNSHierarchy.write(zones, System.out);
+            return;
+        }
+
+        List<Query> queries = new ArrayList<>();
+        if (options.containsKey("-queries"))
+            try (BufferedReader input = new BufferedReader(new FileReader(options.get("-queries")))) {
+                queries = readQueries(input);
+            }
+        else {
+            List<RecordType> types = parseTypes(options.getOrDefault("-types", "A"));
+            for (String name : FakeDNSHierarchy.queryNames(zones))
+                queries.add(new Query(name, types));
+        }
+        List<String> origins = new ArrayList<>();
+        for (FakeDNSHierarchy.Zone zone : zones)
+            if (zone.getOrigin().indexOf('.') >= 0) origins.add(zone.getOrigin());
+
+        int port = intOption(options, "-port", FakeDNSHierarchy.DEFAULT_PORT);
+        FakeDNSHierarchy hierarchy = new FakeDNSHierarchy(zones, port);
+        hierarchy.setImpairments(doubleOption(options, "-latency", 0), doubleOption(options, "-jitter", 0),
+                doubleOption(options, "-loss", 0), doubleOption(options, "-truncate", 0));
+        hierarchy.start();
+
+        if (options.containsKey("-cache"))
+            DNSCache.getInstance().setMaxEntries(intOption(options, "-cache", 0));
+        DNSQueryHandler.setServerPort(port);
+        DNSQueryHandler.openSocket();
+        DNSLookupService.setRootServer(FakeDNSHierarchy.ROOT_SERVER);
+
+        LoadGenerator generator = new LoadGenerator(queries, origins, doubleOption(options, "-nx", 0));
+        generator.run(intOption(options, "-c", 16), 1000L * intOption(options, "-d", 10),
+                doubleOption(options, "-Q", 0));
+        System.out.printf("Servers: %d queries (%d TCP), %d dropped, %d truncated\n", hierarchy.getQueryCount(),
+                hierarchy.getTcpQueryCount(), hierarchy.getDroppedCount(), hierarchy.getTruncatedCount());
+
+        DNSQueryHandler.closeSocket();
+        hierarchy.stop();
+        System.exit(0);
+    }
+
+    private static List<RecordType> parseTypes(String types) {
+        List<RecordType> parsed = new ArrayList<>();
+        for (String type : types.split(","))
+            parsed.add(RecordType.valueOf(type.toUpperCase()));
+        return parsed;
+    }
+
+    private static int intOption(Map<String, String> options, String name, int defaultValue) {
+        return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+    }
+
+    private static double doubleOption(Map<String, String> options, String name, double defaultValue) {
+        return options.containsKey(name) ? Double.parseDouble(options.get(name)) : defaultValue;
+    }
+}
@@ -0,0 +1,207 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/** Checks the encodings of cached records, in two parts.
+ *
+ * The first part stores records in CompactRecordSets and reads them back: expirations (written
+ * through a VarHandle view of the set's byte array, including at offsets that are not aligned to
+ * 8 bytes) must be read back exactly, lifetimes must be rounded up to a second and clamped, A and
+ * AAAA addresses must survive as raw bytes, and replacing, finding and expiring records must keep
+ * the other records (and their results) intact.
+ *
+ * The second part serializes ResourceRecords, whose expiration is written as a wall-clock time
+ * after the default fields. A record read back must be equal to the original (with the same
+ * hash code, so it can be found in a set), expire at the same wall-clock time, and keep both
+ * forms of its result; an expired record must still be expired once read back.
+ *
+ * Usage: java ca.ubc.cs317.dnslookup.RecordEncodingCheck. The process exits with status 1 if
+ * any check fails.
+ */
+public class RecordEncodingCheck {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private int failures = 0;
+
+    private void check(boolean condition, String description) {
+        if (!condition) {
+            System.out.println("FAILED: " + description);
+            failures++;
+        }
+    }
+
+    /** Checks that every record of a set matches the expected records, in order.
+     *
+     * @param set      Set to be checked.
+     * @param expected Records expected in the set, with the lifetimes they should have.
+     * @param name     Description of the set.
+     */
+    private void checkContents(CompactRecordSet set, List<ResourceRecord> expected, String name) {
+        check(set.size() == expected.size(), name + ": expected " + expected.size() + " records, got " + set.size());
+        for (int i = 0; i < Math.min(set.size(), expected.size()); i++) {
+            ResourceRecord record = set.toRecord(i);
+            ResourceRecord original = expected.get(i);
+            check(record.equals(original), name + " #" + i + ": expected " + original.getTextResult() +
+                    ", got " + record.getTextResult());
+            check(set.getExpirationNanos(i) == original.getExpirationNanos(), name + " #" + i +
+                    ": expiration " + Long.toHexString(original.getExpirationNanos()) + " read back as " +
+                    Long.toHexString(set.getExpirationNanos(i)));
+            check(record.getNode() == set.getNode(), name + " #" + i + ": the record shares the node of the set");
+        }
+    }
+
+    private void checkCompactRecordSets() throws Exception {
+        long now = System.nanoTime();
+
+        DNSNode v4 = new DNSNode("compact.check.test", RecordType.A);
+        CompactRecordSet empty = CompactRecordSet.empty(v4);
+        check(empty.isEmpty() && empty.size() == 0, "a new set is empty");
+        check(empty.getEarliestExpirationNanos() == Long.MAX_VALUE, "an empty set never expires");
+
+        // expirations whose bytes all differ, so an expiration that overlaps the lifetime or the
+        // address shows up, and negative and extreme values of System.nanoTime()
+        long[] expirations = {0x0102030405060708L, -2, Long.MIN_VALUE + 1, Long.MAX_VALUE, now + 60 * SECOND};
+        List<ResourceRecord> v4Records = new ArrayList<>();
+        CompactRecordSet v4Set = empty;
+        for (int i = 0; i < expirations.length; i++) {
+            ResourceRecord record = new ResourceRecord(v4, expirations[i], 60 * SECOND, null,
+                    InetAddress.getByAddress(new byte[]{(byte) 192, 0, 2, (byte) (250 + i)}));
+            v4Records.add(record);
+            v4Set = v4Set.with(-1, record);
+        }
+        checkContents(v4Set, v4Records, "A set");
+        check(empty.isEmpty(), "adding a record does not change the original set");
+
+        // an AAAA record takes 28 bytes, so the expiration of every other record is not aligned
+        DNSNode v6 = new DNSNode("compact.check.test", RecordType.AAAA);
+        List<ResourceRecord> v6Records = new ArrayList<>();
+        CompactRecordSet v6Set = CompactRecordSet.empty(v6);
+        for (int i = 0; i < expirations.length; i++) {
+            byte[] address = new byte[16];
+            for (int b = 0; b < address.length; b++) address[b] = (byte) (0xF0 + b + 16 * i);
+            ResourceRecord record = new ResourceRecord(v6, expirations[i], 60 * SECOND, null,
+                    InetAddress.getByAddress(address));
+            v6Records.add(record);
+            v6Set = v6Set.with(-1, record);
+        }
+        checkContents(v6Set, v6Records, "AAAA set");
+        check(Arrays.equals(v6Set.getInetResult(3).getAddress(), v6Records.get(3).getInetResult().getAddress()),
+                "the address of an AAAA record is stored as raw bytes");
+
+        // only addresses of the right length can be stored
+        check(!CompactRecordSet.canStore(new ResourceRecord("compact.check.test", RecordType.A, 60,
+                v6Records.get(0).getInetResult())), "an IPv6 address cannot be stored in an A set");
+        check(CompactRecordSet.canStore(v6Records.get(0)), "an AAAA record can be stored");
+
+        // an IPv4-mapped address (::ffff:192.0.2.1) is decoded as an Inet4Address, but an AAAA
+        // record holding it is stored, and read back, as its 16 bytes
+        byte[] mappedAddress = new byte[16];
+        mappedAddress[10] = mappedAddress[11] = (byte) 0xFF;
+        mappedAddress[12] = (byte) 192;
+        mappedAddress[14] = 2;
+        mappedAddress[15] = 1;
+        ResourceRecord mapped = new ResourceRecord(v6, now + 60 * SECOND, 60 * SECOND, null,
+                InetAddress.getByAddress(mappedAddress));
+        check(CompactRecordSet.canStore(mapped), "an AAAA record with an IPv4-mapped address can be stored");
+        check(Arrays.equals(mapped.getAddressData(), mappedAddress), "the record data of an IPv4-mapped address " +
+                "has 16 bytes");
+        CompactRecordSet mappedSet = v6Set.with(-1, mapped);
+        List<ResourceRecord> withMapped = new ArrayList<>(v6Records);
+        withMapped.add(mapped);
+        checkContents(mappedSet, withMapped, "AAAA set with an IPv4-mapped address");
+        check(mappedSet.indexOf(mapped) == v6Records.size(), "indexOf finds the IPv4-mapped address");
+
+        // lifetimes are stored in whole seconds, rounded up and clamped
+        long[][] lifetimes = {{60 * SECOND, 60 * SECOND}, {SECOND + 1, 2 * SECOND}, {-5 * SECOND, 0},
+                {(Integer.MAX_VALUE + 10L) * SECOND, Integer.MAX_VALUE * SECOND}};
+        CompactRecordSet lifetimeSet = CompactRecordSet.empty(v4);
+        for (int i = 0; i < lifetimes.length; i++)
+            lifetimeSet = lifetimeSet.with(-1, new ResourceRecord(v4, now, lifetimes[i][0], null,
+                    v4Records.get(i).getInetResult()));
+        for (int i = 0; i < lifetimes.length; i++)
+            check(lifetimeSet.getLifetimeNanos(i) == lifetimes[i][1], "lifetime of " + lifetimes[i][0] +
+                    " ns: expected " + lifetimes[i][1] + ", got " + lifetimeSet.getLifetimeNanos(i));
+
+        // replacing a record only changes its expiration and lifetime
+        ResourceRecord refreshed = new ResourceRecord(v6, now + 300 * SECOND, 300 * SECOND, null,
+                v6Records.get(2).getInetResult());
+        int index = v6Set.indexOf(refreshed);
+        check(index == 2, "indexOf finds an equal AAAA record, got " + index);
+        CompactRecordSet replaced = v6Set.with(index, refreshed);
+        List<ResourceRecord> expected = new ArrayList<>(v6Records);
+        expected.set(2, refreshed);
+        checkContents(replaced, expected, "AAAA set with a replaced record");
+        check(replaced.getLifetimeNanos(2) == 300 * SECOND, "lifetime of the replaced record");
+        check(v6Set.getExpirationNanos(2) == expirations[2], "replacing a record does not change the original set");
+        check(v6Set.indexOf(new ResourceRecord("compact.check.test", RecordType.AAAA, 60,
+                InetAddress.getByName("2001:db8::1"))) == -1, "indexOf of a missing record");
+
+        // records expired for longer than the retention time are removed, the others keep their order
+        DNSNode ns = new DNSNode("check.test", RecordType.NS);
+        String[] names = {"expired.check.test", "stale.check.test", "valid.check.test"};
+        long[] nsExpirations = {now - 10 * SECOND, now - SECOND, now + 10 * SECOND};
+        List<ResourceRecord> nsRecords = new ArrayList<>();
+        CompactRecordSet nsSet = CompactRecordSet.empty(ns);
+        for (int i = 0; i < names.length; i++) {
+            ResourceRecord record = new ResourceRecord(ns, nsExpirations[i], 60 * SECOND, names[i], null);
+            nsRecords.add(record);
+            nsSet = nsSet.with(-1, record);
+        }
+        checkContents(nsSet, nsRecords, "NS set");
+        check(nsSet.getEarliestExpirationNanos() == nsExpirations[0], "earliest expiration of the NS set");
+        check(nsSet.getTextResult(0) == NameTable.getInstance().intern(new String(names[0])),
+                "the names of NS records are shared through the NameTable");
+        check(nsSet.getInetResult(0) == null, "an NS record has no address");
+        CompactRecordSet pruned = nsSet.withoutExpired(now, 5 * SECOND);
+        checkContents(pruned, nsRecords.subList(1, 3), "NS set without expired records");
+        check(pruned.withoutExpired(now, 5 * SECOND) == pruned, "a set without expired records is returned as is");
+        check(nsSet.withExpiryCheck(now).withoutExpired(now, 0).getExpiryCheckNanos() == now,
+                "the expiry check is kept when records are removed");
+        check(v4Set.withoutExpired(now, Long.MAX_VALUE) == v4Set, "nothing is removed with an unlimited retention");
+    }
+
+    private ResourceRecord serializeAndRead(ResourceRecord record) throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(record);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (ResourceRecord) in.readObject();
+        }
+    }
+
+    private void checkSerialization() throws Exception {
+        ResourceRecord address = new ResourceRecord("serial.check.test", RecordType.AAAA, 3600,
+                InetAddress.getByName("2001:db8::53"));
+        ResourceRecord name = new ResourceRecord("serial.check.test", RecordType.CNAME, 120, "target.check.test");
+        ResourceRecord expired = new ResourceRecord("serial.check.test", RecordType.NS, -30, "ns.check.test");
+
+        for (ResourceRecord record : List.of(address, name, expired)) {
+            String description = record.getType() + " record";
+            ResourceRecord copy = serializeAndRead(record);
+            check(copy.equals(record) && copy.hashCode() == record.hashCode(), description + " is equal once read back");
+            check(new HashSet<>(List.of(record)).contains(copy), description + " read back is found in a set");
+            check(Objects.equals(copy.getInetResult(), record.getInetResult()) &&
+                    copy.getTextResult().equals(record.getTextResult()), description + " keeps its result, got " +
+                    copy.getTextResult());
+            long drift = Math.abs(copy.getExpirationTime().getTime() - record.getExpirationTime().getTime());
+            check(drift <= 5, description + " expires at the same wall-clock time, " + drift + " ms apart");
+            check(copy.isStillValid() == record.isStillValid(), description + " is " +
+                    (record.isStillValid() ? "valid" : "expired") + " once read back");
+            check(Math.abs(copy.getTTL() - record.getTTL()) <= 1, description + ": TTL " + record.getTTL() +
+                    " read back as " + copy.getTTL());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        RecordEncodingCheck check = new RecordEncodingCheck();
+        check.checkCompactRecordSets();
+        check.checkSerialization();
+        System.out.println(check.failures == 0 ? "All checks passed." : check.failures + " checks failed.");
+        System.exit(check.failures == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,234 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/** Checks the retransmission timeout (RTO) computed by ServerStatistics, in two parts.
+ *
+ * The first part feeds known RTT samples and failures to a new statistics table and compares
+ * the smoothed RTT, RTT variance and RTO with the values computed by hand from RFC 6298: the
+ * first sample R gives SRTT = R and RTTVAR = R / 2, each later sample R' gives
+ * RTTVAR = 3/4 RTTVAR + 1/4 |SRTT - R'| and SRTT = 7/8 SRTT + 1/8 R', and the RTO is
+ * SRTT + 4 RTTVAR, rounded up, doubled for each failure since the last sample, and kept
+ * between 20 ms and 5 s (1 s for an unknown server).
+ *
+ * The second part runs against a FakeDNSHierarchy with a fixed latency: after a lookup, the
+ * root server must have an RTT close to that latency, and once every response is dropped, a
+ * query to the root must be transmitted five times, each time waiting twice as long as the
+ * previous one, starting from the root's RTO, and the root's RTO must then stay backed off for
+ * later queries. Before the lookup, a query is hedged across servers that refuse it (REFUSED,
+ * since they do not serve the name): the next server must be queried as soon as a server
+ * refuses, each server only once, and the query must only fail once every server has refused it.
+ *
+ * Usage: java ca.ubc.cs317.dnslookup.RetransmissionTimeoutCheck [port]. The process exits with
+ * status 1 if any check fails.
+ */
+public class RetransmissionTimeoutCheck {
+
+    private static final double LATENCY_MILLIS = 40;
+    private static final int TRANSMISSIONS = 5;
+
+    private int failures = 0;
+
+    private void check(boolean condition, String description) {
+        if (!condition) {
+            System.out.println("FAILED: " + description);
+            failures++;
+        }
+    }
+
+    private void checkValue(double actual, double expected, String description) {
+        check(Math.abs(actual - expected) < 1e-9, description + ": expected " + expected + ", got " + actual);
+    }
+
+    /** Checks the statistics of servers given known samples, without sending any query.
+     */
+    private void checkFormulas() {
+        ServerStatistics statistics = new ServerStatistics();
+        InetAddress server = address(1);
+        checkValue(statistics.getRetransmissionTimeout(server), 1000, "RTO of an unknown server");
+        checkValue(statistics.getSmoothedRTT(server), -1, "SRTT of an unknown server");
+        checkValue(statistics.getRTTVariance(server), -1, "RTTVAR of an unknown server");
+
+        statistics.recordSuccess(server, millis(100));
+        checkValue(statistics.getSmoothedRTT(server), 100, "SRTT after the first sample");
+        checkValue(statistics.getRTTVariance(server), 50, "RTTVAR after the first sample");
+        checkValue(statistics.getRetransmissionTimeout(server), 300, "RTO after the first sample");
+
+        // RTTVAR = 0.75 * 50 + 0.25 * |100 - 200| = 62.5, SRTT = 0.875 * 100 + 0.125 * 200 = 112.5
+        statistics.recordSuccess(server, millis(200));
+        checkValue(statistics.getRTTVariance(server), 62.5, "RTTVAR after the second sample");
+        checkValue(statistics.getSmoothedRTT(server), 112.5, "SRTT after the second sample");
+        checkValue(statistics.getRetransmissionTimeout(server), 363, "RTO after the second sample (362.5 rounded up)");
+
+        // a timeout does not change the RTT of a server that has already responded, but doubles
+        // its RTO until the next sample: RTTVAR = 0.75 * 62.5 + 0.25 * |112.5 - 112.5| = 46.875
+        statistics.recordFailure(server, millis(363));
+        checkValue(statistics.getSmoothedRTT(server), 112.5, "SRTT after a failure");
+        checkValue(statistics.getRetransmissionTimeout(server), 726, "RTO after a failure");
+        statistics.recordFailure(server, millis(726));
+        checkValue(statistics.getRetransmissionTimeout(server), 1452, "RTO after a second failure");
+        double[] recentFailures = new double[1];
+        statistics.forEachServer((address, values) -> {
+            if (address.equals(server)) recentFailures[0] = values[2];
+        });
+        check(recentFailures[0] > 1.99 && recentFailures[0] <= 2, "two recent failures, got " + recentFailures[0]);
+        statistics.recordSuccess(server, millis(112.5));
+        checkValue(statistics.getRTTVariance(server), 46.875, "RTTVAR after a sample following failures");
+        checkValue(statistics.getRetransmissionTimeout(server), 300, "RTO after a sample following failures");
+
+        // a server that never responded gets three times its first timeout (SRTT = T, RTTVAR = T / 2),
+        // then backs off from there
+        InetAddress silent = address(2);
+        statistics.recordFailure(silent, millis(1000));
+        checkValue(statistics.getSmoothedRTT(silent), 1000, "SRTT after a first failure");
+        checkValue(statistics.getRetransmissionTimeout(silent), 3000, "RTO after a first failure");
+        statistics.recordFailure(silent, millis(3000));
+        checkValue(statistics.getRetransmissionTimeout(silent), 5000, "RTO after a second failure (upper bound)");
+
+        // constant samples make the variance vanish, so the RTO converges to the lower bound...
+        InetAddress fast = address(3);
+        for (int i = 0; i < 200; i++) statistics.recordSuccess(fast, millis(1));
+        check(statistics.getRTTVariance(fast) < 1e-6, "RTTVAR of constant samples vanishes");
+        checkValue(statistics.getRetransmissionTimeout(fast), 20, "RTO of a 1 ms server (lower bound)");
+
+        // ... or to the upper bound
+        InetAddress slow = address(4);
+        statistics.recordSuccess(slow, millis(4000));
+        checkValue(statistics.getRetransmissionTimeout(slow), 5000, "RTO of a 4 s server (upper bound)");
+        for (int i = 0; i < 200; i++) statistics.recordSuccess(slow, millis(4000));
+        checkValue(statistics.getRetransmissionTimeout(slow), 4000, "RTO of a steady 4 s server");
+    }
+
+    /** Checks the RTT measured from, and the retransmissions sent to, a FakeDNSHierarchy.
+     *
+     * @param port Port of the fake servers.
+     */
+    private void checkRetransmissions(int port) throws Exception {
+        List<FakeDNSHierarchy.Zone> zones = FakeDNSHierarchy.generate(3, 1, 0, 2, 3600);
+        FakeDNSHierarchy hierarchy = new FakeDNSHierarchy(zones, port);
+        hierarchy.setImpairments(LATENCY_MILLIS, 0, 0, 0);
+        hierarchy.start();
+        DNSQueryHandler.setServerPort(port);
+        DNSQueryHandler.openSocket();
+        DNSLookupService.setRootServer(FakeDNSHierarchy.ROOT_SERVER);
+        try {
+            checkErrorResponses(hierarchy, zones);
+            check(!DNSLookupService.getResults(new DNSNode("host0.zone0.com", RecordType.A), 0).isEmpty(),
+                    "host0.zone0.com resolves");
+            ServerStatistics statistics = ServerStatistics.getInstance();
+            double smoothedRTT = statistics.getSmoothedRTT(FakeDNSHierarchy.ROOT_SERVER);
+            long timeout = statistics.getRetransmissionTimeout(FakeDNSHierarchy.ROOT_SERVER);
+            System.out.printf("Root server: SRTT %.1f ms, RTTVAR %.1f ms, RTO %d ms\n", smoothedRTT,
+                    statistics.getRTTVariance(FakeDNSHierarchy.ROOT_SERVER), timeout);
+            check(smoothedRTT >= LATENCY_MILLIS && smoothedRTT < LATENCY_MILLIS + 100,
+                    "SRTT of the root close to the latency, got " + smoothedRTT);
+            check(timeout >= smoothedRTT && timeout <= 4 * smoothedRTT,
+                    "RTO of the root between SRTT and 4 SRTT, got " + timeout);
+
+            // the root is the only server queried, so every retransmission goes to it, with the
+            // timeout doubled each time: RTO * (1 + 2 + 4 + 8 + 16) in total
+            hierarchy.setImpairments(LATENCY_MILLIS, 0, 1, 0);
+            long dropped = hierarchy.getDroppedCount();
+            long expectedMillis = 0;
+            for (int i = 0; i < TRANSMISSIONS; i++) expectedMillis += Math.min(timeout << i, 5000);
+            long start = System.nanoTime();
+            CompletableFuture<DNSServerResponse> response = DNSQueryHandler.sendHedgedQuery(
+                    List.of(FakeDNSHierarchy.ROOT_SERVER), new DNSNode("unreachable.zone1.net", RecordType.A),
+                    new LookupBudget(60_000, LookupBudget.DEFAULT_MAX_QUERIES));
+            try {
+                response.get();
+                check(false, "a query with every response dropped fails");
+            } catch (ExecutionException e) {
+                check(e.getCause() instanceof DNSLookupException, "the failure is reported as a DNSLookupException, got " + e.getCause());
+            }
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            long transmissions = hierarchy.getDroppedCount() - dropped;
+            System.out.printf("Dropped responses: %d transmissions in %d ms (expected %d in %d ms)\n",
+                    transmissions, elapsedMillis, TRANSMISSIONS, expectedMillis);
+            check(transmissions == TRANSMISSIONS, TRANSMISSIONS + " transmissions, got " + transmissions);
+            check(elapsedMillis >= expectedMillis && elapsedMillis < expectedMillis + 500,
+                    "retransmissions back off exponentially, took " + elapsedMillis + " ms");
+            // the next lookup starts from the backed-off RTO (at least four failures are recorded
+            // by the time the query fails)
+            long backedOff = statistics.getRetransmissionTimeout(FakeDNSHierarchy.ROOT_SERVER);
+            check(backedOff >= Math.min(timeout << 4, 5000), "the RTO of the root stays backed off, got " + backedOff);
+        } finally {
+            DNSQueryHandler.closeSocket();
+            hierarchy.stop();
+        }
+    }
+
+    /** Checks hedged queries sent to servers that respond with an error (REFUSED).
+     *
+     * @param hierarchy Fake servers, with a fixed latency and no loss.
+     * @param zones     Zones of the fake servers.
+     */
+    private void checkErrorResponses(FakeDNSHierarchy hierarchy, List<FakeDNSHierarchy.Zone> zones) throws Exception {
+        // the servers of zone0.com (which also serve the other zones below the TLDs) refuse
+        // queries for names in any other zone
+        List<InetAddress> refusing = null;
+        for (FakeDNSHierarchy.Zone zone : zones)
+            if (zone.getOrigin().equals("zone0.com")) refusing = zone.getServers();
+        DNSNode node = new DNSNode("www.example.com", RecordType.A);
+        ServerStatistics statistics = ServerStatistics.getInstance();
+        double[] failures = new double[1];
+        InetAddress firstRefusing = refusing.get(0);
+
+        // a refusal sends the query to the root at once, without waiting for the hedging delay
+        long queries = hierarchy.getQueryCount();
+        long start = System.nanoTime();
+        DNSServerResponse response = DNSQueryHandler.sendHedgedQuery(List.of(firstRefusing,
+                FakeDNSHierarchy.ROOT_SERVER), node, new LookupBudget()).get();
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        check(DNSQueryHandler.getResponseError(response, node) == null, "the root's response wins the hedge");
+        DNSQueryHandler.releaseResponse(response);
+        queries = hierarchy.getQueryCount() - queries;
+        System.out.printf("One server refusing: %d queries in %d ms\n", queries, elapsedMillis);
+        check(queries == 2, "one query to each server, got " + queries);
+        // two round trips, well before the 200 ms hedging delay of a server that was never queried
+        check(elapsedMillis < 5 * LATENCY_MILLIS, "the root is queried once the first server refuses, took " +
+                elapsedMillis + " ms");
+        statistics.forEachServer((address, values) -> {
+            if (address.equals(firstRefusing)) failures[0] = values[2];
+        });
+        check(failures[0] > 0.99, "the refusal is recorded as a failure of the server, got " + failures[0]);
+
+        // once every server has refused, the query fails without retransmissions
+        queries = hierarchy.getQueryCount();
+        try {
+            DNSQueryHandler.sendHedgedQuery(refusing, node, new LookupBudget()).get();
+            check(false, "a query refused by every server fails");
+        } catch (ExecutionException e) {
+            check(e.getCause() instanceof DNSLookupException && e.getCause().getMessage().startsWith("REFUSED"),
+                    "the failure names the response code, got " + e.getCause());
+        }
+        queries = hierarchy.getQueryCount() - queries;
+        check(queries == refusing.size(), "one query to each refusing server, got " + queries);
+    }
+
+    private static long millis(double millis) {
+        return (long) (millis * 1e6);
+    }
+
+    private static InetAddress address(int index) {
+        try {
+            return InetAddress.getByAddress(new byte[]{(byte) 192, 0, 2, (byte) index});
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e); // not reachable, the length is valid
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : FakeDNSHierarchy.DEFAULT_PORT;
+        RetransmissionTimeoutCheck check = new RetransmissionTimeoutCheck();
+        check.checkFormulas();
+        check.checkRetransmissions(port);
+        System.out.println(check.failures == 0 ? "All checks passed." : check.failures + " checks failed.");
+        System.exit(check.failures == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,129 @@
+package ca.ubc.cs317.dnslookup.bench;
+
+import ca.ubc.cs317.dnslookup.DNSCache;
+import ca.ubc.cs317.dnslookup.RecordType;
+import ca.ubc.cs317.dnslookup.ResourceRecord;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/** The response decoder used before responses were decoded in place through DNSMessageView,
+ * kept so that ResponseDecodingBenchmark can compare both. Like the original, it copies the
+ * whole message into a byte[], builds the String of every owner name label by label (a new
+ * array and String per label, and a concatenation per label), and copies the RDATA of every A
+ * and AAAA record before creating its address. Every record it understands is cached, and the
+ * NS records of the authority section are returned.
+ *
+ * The original decoded each section in its own loop with the same steps; here one loop walks
+ * the three sections. The TTL is decoded correctly (the original had an operator precedence
+ * error), so that the cached records expire as they do with the current decoder.
+ */
+class BaselineResponseDecoder {
+
+    private BaselineResponseDecoder() {
+    }
+
+    /** Decodes a response and caches its records, consuming the buffer.
+     *
+     * @param responseBuffer Response in wire format, between its position and limit.
+     * @param cache          Cache in which the records are stored.
+     * @return The NS records of the authority section, or null if the response is an error.
+     */
+    static Set<ResourceRecord> decodeAndCacheResponse(ByteBuffer responseBuffer, DNSCache cache) {
+        Set<ResourceRecord> nameServers = new HashSet<ResourceRecord>();
+        byte[] b = new byte[responseBuffer.remaining()];
+        responseBuffer.get(b, 0, responseBuffer.remaining());
+
+        boolean hasError = (0xf & b[3]) != 0;
+        if (hasError) return null;
+        int queryCount = (0xff & b[4]) << 8 | (0xff & b[5]);
+        int[] counts = {(0xff & b[6]) << 8 | (0xff & b[7]), (0xff & b[8]) << 8 | (0xff & b[9]),
+                (0xff & b[10]) << 8 | (0xff & b[11])};
+
+        int[] length = new int[1];
+        int pos = 12;
+        for (int i = 0; i < queryCount; i++) {
+            parseName(b, pos, length);
+            pos += length[0] + 4; // QTYPE and QCLASS
+        }
+
+        for (int section = 0; section < counts.length; section++) {
+            for (int i = 0; i < counts[section]; i++) {
+                String hostName = parseName(b, pos, length);
+                pos += length[0];
+
+                RecordType type = RecordType.getByCode((0xff & b[pos++]) << 8 | (0xff & b[pos++]));
+                pos += 2; // class
+                long ttl = ((0xffL & b[pos++]) << 24) | ((0xff & b[pos++]) << 16) | ((0xff & b[pos++]) << 8)
+                        | (0xff & b[pos++]);
+                int dataLength = (0xff & b[pos++]) << 8 | (0xff & b[pos++]);
+
+                ResourceRecord record = null;
+                switch (type) {
+                    case A:
+                    case AAAA:
+                        try {
+                            byte[] ipBytes = Arrays.copyOfRange(b, pos, pos + dataLength);
+                            record = new ResourceRecord(hostName, type, ttl, InetAddress.getByAddress(ipBytes));
+                        } catch (UnknownHostException e) {
+                            // invalid address length, the record is ignored
+                        }
+                        break;
+                    case CNAME:
+                    case SOA:
+                    case NS:
+                        record = new ResourceRecord(hostName, type, ttl, parseName(b, pos, length));
+                        break;
+                    case MX:
+                        record = new ResourceRecord(hostName, type, ttl, parseName(b, pos + 2, length));
+                        break;
+                    default:
+                        break;
+                }
+                pos += dataLength;
+
+                if (record == null) continue;
+                cache.addResult(record);
+                if (section == 1 && type == RecordType.NS) nameServers.add(record);
+            }
+        }
+        return nameServers;
+    }
+
+    /** Parses a (possibly compressed) name the way the original DomainNameParser did.
+     *
+     * @param b      Message.
+     * @param pos    Position of the name in the message.
+     * @param length Receives the length of the name at its position, up to the first pointer.
+     * @return The name, without a trailing dot.
+     */
+    private static String parseName(byte[] b, int pos, int[] length) {
+        int dataLength = 1;
+        String domainName = "";
+        boolean isCompressed = false;
+        int curPos = pos;
+        int label = b[curPos++];
+
+        while (label != 0) {
+            if (label > 0) {
+                domainName += new String(Arrays.copyOfRange(b, curPos, curPos + label));
+                curPos += label;
+                if (!isCompressed) dataLength += label;
+                label = b[curPos++];
+                if (!isCompressed) dataLength++;
+                if (label != 0) domainName += ".";
+            } else {
+                curPos = ((label & 0x3F) << 8) | (b[curPos] & 0xFF);
+                label = b[curPos++];
+                if (!isCompressed) dataLength++;
+                isCompressed = true;
+            }
+        }
+        length[0] = dataLength;
+        return domainName;
+    }
+}
@@ -0,0 +1,63 @@
+package ca.ubc.cs317.dnslookup.bench;
+
+import ca.ubc.cs317.dnslookup.DNSCache;
+import ca.ubc.cs317.dnslookup.DNSNode;
+import ca.ubc.cs317.dnslookup.RecordType;
+import ca.ubc.cs317.dnslookup.ResourceRecord;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/** Measures reads and writes of the shared DNSCache. The cache is filled with a fixed set of
+ * nodes; reads pick a random cached node (or a node that is not cached), and writes replace the
+ * record of a random node with a fresh one. Run with -t to measure contention between threads
+ * (the bench target of the Makefile runs it with 1, 2, 4 and 8 threads).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CacheBenchmark {
+
+    private static final int NODES = 10_000;
+
+    private final DNSCache cache = DNSCache.getInstance();
+    private DNSNode[] nodes;
+    private DNSNode[] missingNodes;
+    private InetAddress[] addresses;
+
+    @Setup
+    public void setUp() throws UnknownHostException {
+        nodes = new DNSNode[NODES];
+        missingNodes = new DNSNode[NODES];
+        addresses = new InetAddress[NODES];
+        for (int i = 0; i < NODES; i++) {
+            nodes[i] = new DNSNode("host" + i + ".example.com", RecordType.A);
+            missingNodes[i] = new DNSNode("missing" + i + ".example.com", RecordType.A);
+            addresses[i] = InetAddress.getByAddress(new byte[]{10, (byte) (i >> 16), (byte) (i >> 8), (byte) i});
+            cache.addResult(new ResourceRecord(nodes[i].getHostName(), RecordType.A, 3600, addresses[i]));
+        }
+    }
+
+    @Benchmark
+    public Set<ResourceRecord> getHit() {
+        return cache.getCachedResults(nodes[ThreadLocalRandom.current().nextInt(NODES)]);
+    }
+
+    @Benchmark
+    public Set<ResourceRecord> getMiss() {
+        return cache.getCachedResults(missingNodes[ThreadLocalRandom.current().nextInt(NODES)]);
+    }
+
+    @Benchmark
+    public void addReplace() {
+        int i = ThreadLocalRandom.current().nextInt(NODES);
+        cache.addResult(new ResourceRecord(nodes[i].getHostName(), RecordType.A, 3600, addresses[i]));
+    }
+}
@@ -0,0 +1,63 @@
+package ca.ubc.cs317.dnslookup.bench;
+
+import ca.ubc.cs317.dnslookup.DomainNameParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/** Measures the parsing of compressed names, both from an array and from a direct buffer. The
+ * message contains a chain of names, each made of one label followed by a pointer to the
+ * previous name, so parsing the last name follows one pointer per level of the chain.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class DomainNameParserBenchmark {
+
+    @Param({"1", "4", "16", "32"})
+    public int depth;
+
+    private byte[] message;
+    private ByteBuffer directMessage;
+    private int namePos;
+
+    @Setup
+    public void setUp() {
+        ByteBuffer buffer = ByteBuffer.allocate(12 + 5 + 6 * depth);
+        buffer.position(12); // header
+        int previous = buffer.position();
+        buffer.put((byte) 3).put("com".getBytes()).put((byte) 0);
+        for (int i = 0; i < depth; i++) {
+            int current = buffer.position();
+            buffer.put((byte) 3).put(String.format("l%02d", i).getBytes());
+            buffer.putShort((short) (0xC000 | previous));
+            previous = current;
+        }
+        namePos = previous;
+        message = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(message);
+
+        directMessage = ByteBuffer.allocateDirect(message.length);
+        directMessage.put(message).flip();
+    }
+
+    @Benchmark
+    public DomainNameParser.ParsedName parseArray() {
+        return DomainNameParser.parse(message, namePos);
+    }
+
+    @Benchmark
+    public String parseDirectBuffer() {
+        return DomainNameParser.parseName(directMessage, 0, namePos);
+    }
+
+    @Benchmark
+    public int skipDirectBuffer() {
+        return DomainNameParser.nameLength(directMessage, 0, namePos);
+    }
+}
@@ -0,0 +1,54 @@
+package ca.ubc.cs317.dnslookup.bench;
+
+import ca.ubc.cs317.dnslookup.DNSLookupException;
+import ca.ubc.cs317.dnslookup.DNSNode;
+import ca.ubc.cs317.dnslookup.DNSQueryHandler;
+import ca.ubc.cs317.dnslookup.RecordType;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/** Measures the encoding of queries, i.e., the work done by sendQuery before the query
+ * is handed to the network (which is not involved here). Queries for a node that was queried
+ * before reuse its cached template; queries for many distinct nodes mostly miss the template
+ * cache and encode the question from scratch.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class QueryEncodingBenchmark {
+
+    private static final int DISTINCT_NODES = 100_000;
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(512);
+    private final DNSNode popularNode = new DNSNode("www.example.com", RecordType.A);
+    private DNSNode[] distinctNodes;
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        distinctNodes = new DNSNode[DISTINCT_NODES];
+        for (int i = 0; i < DISTINCT_NODES; i++)
+            distinctNodes[i] = new DNSNode("host" + i + ".example.com", RecordType.A);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeCachedTemplate() throws DNSLookupException {
+        buffer.clear();
+        DNSQueryHandler.encodeQuery(buffer, 0x1234, popularNode);
+        return buffer;
+    }
+
+    @Benchmark
+    public ByteBuffer encodeDistinctNodes() throws DNSLookupException {
+        buffer.clear();
+        DNSNode node = distinctNodes[next];
+        next = next + 1 == DISTINCT_NODES ? 0 : next + 1;
+        DNSQueryHandler.encodeQuery(buffer, 0x1234, node);
+        return buffer;
+    }
+}
@@ -0,0 +1,95 @@
+package ca.ubc.cs317.dnslookup.bench;
+
+import ca.ubc.cs317.dnslookup.DNSCache;
+import ca.ubc.cs317.dnslookup.DNSLookupException;
+import ca.ubc.cs317.dnslookup.DNSQueryHandler;
+import ca.ubc.cs317.dnslookup.ResourceRecord;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/** Measures decodeAndCacheResponse on two responses in wire format: a small authoritative answer
+ * with a single A record, and a referral from a root server to the com servers, with 13 NS
+ * records and 26 glue records (plus an OPT record) in the additional section. The responses
+ * were reconstructed from real captures, including their name compression. Since the same
+ * records are cached again on every call, the cache does not grow during the benchmark.
+ *
+ * The baseline benchmarks decode the same responses with BaselineResponseDecoder, the decoder
+ * used before responses were decoded in place, to compare the throughput and allocation rate
+ * (-prof gc) of both.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseDecodingBenchmark {
+
+    private static final String SMALL_ANSWER =
+            "12348580000100010000000003777777076578616d706c6503636f6d0000010001c00c000100010000012c00045db8d7" +
+            "0e";
+
+    private static final String ROOT_REFERRAL =
+            "5678800000010000000d001b03777777076578616d706c6503636f6d0000010001c018000200010002a300001401610c" +
+            "67746c642d73657276657273036e657400c018000200010002a30000040162c02fc018000200010002a30000040163c0" +
+            "2fc018000200010002a30000040164c02fc018000200010002a30000040165c02fc018000200010002a30000040166c0" +
+            "2fc018000200010002a30000040167c02fc018000200010002a30000040168c02fc018000200010002a30000040169c0" +
+            "2fc018000200010002a3000004016ac02fc018000200010002a3000004016bc02fc018000200010002a3000004016cc0" +
+            "2fc018000200010002a3000004016dc02fc02d000100010002a3000004c005061ec04d000100010002a3000004c0210e" +
+            "1ec05d000100010002a3000004c01a5c1ec06d000100010002a3000004c01f501ec07d000100010002a3000004c00c5e" +
+            "1ec08d000100010002a3000004c023331ec09d000100010002a3000004c02a5d1ec0ad000100010002a3000004c03670" +
+            "1ec0bd000100010002a3000004c02bac1ec0cd000100010002a3000004c0304f1ec0dd000100010002a3000004c034b2" +
+            "1ec0ed000100010002a3000004c029a21ec0fd000100010002a3000004c037531ec02d001c00010002a3000010200105" +
+            "03a83e00000000000000020030c04d001c00010002a300001020010503231d00000000000000020030c05d001c000100" +
+            "02a30000102001050383eb00000000000000000030c06d001c00010002a300001020010500856e000000000000000000" +
+            "30c07d001c00010002a3000010200105021ca100000000000000000030c08d001c00010002a300001020010503d41400" +
+            "000000000000000030c09d001c00010002a300001020010503eea300000000000000000030c0ad001c00010002a30000" +
+            "102001050208cc00000000000000000030c0bd001c00010002a30000102001050339c100000000000000000030c0cd00" +
+            "1c00010002a300001020010502709400000000000000000030c0dd001c00010002a3000010200105030d2d0000000000" +
+            "0000000030c0ed001c00010002a300001020010500d93700000000000000000030c0fd001c00010002a3000010200105" +
+            "01b1f90000000000000000003000002904d0000000000000";
+
+    private final DNSCache cache = DNSCache.getInstance();
+    private ByteBuffer smallAnswer;
+    private ByteBuffer rootReferral;
+
+    @Setup
+    public void setUp() {
+        smallAnswer = directBuffer(SMALL_ANSWER);
+        rootReferral = directBuffer(ROOT_REFERRAL);
+    }
+
+    @Benchmark
+    public Set<ResourceRecord> decodeSmallAnswer() throws DNSLookupException {
+        return DNSQueryHandler.decodeAndCacheResponse(0x1234, smallAnswer, cache);
+    }
+
+    @Benchmark
+    public Set<ResourceRecord> decodeRootReferral() throws DNSLookupException {
+        return DNSQueryHandler.decodeAndCacheResponse(0x5678, rootReferral, cache);
+    }
+
+    @Benchmark
+    public Set<ResourceRecord> baselineDecodeSmallAnswer() {
+        return BaselineResponseDecoder.decodeAndCacheResponse(smallAnswer.rewind(), cache);
+    }
+
+    @Benchmark
+    public Set<ResourceRecord> baselineDecodeRootReferral() {
+        return BaselineResponseDecoder.decodeAndCacheResponse(rootReferral.rewind(), cache);
+    }
+
+    /** Converts a message in hexadecimal into a direct buffer, like the buffers responses are
+     * received in.
+     */
+    static ByteBuffer directBuffer(String hex) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(hex.length() / 2);
+        for (int i = 0; i < hex.length(); i += 2)
+            buffer.put((byte) Integer.parseInt(hex.substring(i, i + 2), 16));
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,123 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Resolves a list of host names in parallel. Each line of the input contains a host name,
+ * optionally followed by a record type (A by default), in the same format used by the lookup
+ * command. Results are printed as soon as each lookup completes, so the output order does not
+ * necessarily match the input order. Once all names are resolved, a summary with the throughput
+ * and latency percentiles is printed on the standard error, so the standard output only contains
+ * results.
+ */
+public class BatchLookup {
+
+    public static final int DEFAULT_CONCURRENCY = 64;
+
+    private final int concurrency;
+    private final AtomicInteger failures = new AtomicInteger();
+    private long[] latencies = new long[1024];
+    private int count = 0;
+
+    /**
+     * Creates a batch with a maximum number of lookups running at the same time.
+     *
+     * @param concurrency Maximum number of concurrent lookups.
+     */
+    public BatchLookup(int concurrency) {
+        if (concurrency <= 0)
+            throw new IllegalArgumentException("Concurrency must be a positive integer.");
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Resolves every name read from the input, printing results as they become available.
+     * Returns once all lookups are complete.
+     *
+     * @param input Source of names to be resolved, one per line.
+     * @throws IOException if the input could not be read
+     */
+    public void run(BufferedReader input) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency, runnable -> {
+            Thread thread = new Thread(runnable, "batch-lookup");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Semaphore permits = new Semaphore(concurrency);
+        long start = System.nanoTime();
+        try {
+            String line;
+            while ((line = input.readLine()) != null) {
+                line = line.trim().split("#", 2)[0];
+                if (line.trim().isEmpty()) continue;
+
+                String[] fields = line.trim().split("\\s+");
+                RecordType type = RecordType.A;
+                if (fields.length > 2) {
+                    System.err.println("Invalid line (expected: hostName [type]): " + line);
+                    continue;
+                } else if (fields.length == 2) {
+                    try {
+                        type = RecordType.valueOf(fields[1].toUpperCase());
+                    } catch (IllegalArgumentException ex) {
+                        System.err.println("Invalid query type: " + line);
+                        continue;
+                    }
+                }
+
+                DNSNode node = new DNSNode(fields[0], type);
+                permits.acquireUninterruptibly();
+                executor.execute(() -> {
+                    try {
+                        lookup(node);
+                    } finally {
+                        permits.release();
+                    }
+                });
+            }
+            permits.acquireUninterruptibly(concurrency);
+        } finally {
+            executor.shutdownNow();
+        }
+        printSummary(System.nanoTime() - start);
+    }
+
+    private void lookup(DNSNode node) {
+        long start = System.nanoTime();
+        LookupBudget budget = new LookupBudget();
+        Set<ResourceRecord> results = DNSLookupService.getResults(node, 0, budget);
+        long latency = System.nanoTime() - start;
+
+        String output = DNSLookupService.formatResults(node, results);
+        if (results.isEmpty() && budget.getLastError() != null)
+            System.err.println("Lookup of " + node + " failed: " + budget.getLastError().getMessage());
+        synchronized (this) {
+            if (count == latencies.length)
+                latencies = Arrays.copyOf(latencies, count * 2);
+            latencies[count++] = latency;
+            System.out.print(output);
+        }
+        if (results.isEmpty()) failures.incrementAndGet();
+    }
+
+    private synchronized void printSummary(long elapsedNanos) {
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        System.out.flush();
+        System.err.printf("Resolved %d names (%d without results) in %.3f s: %.1f lookups/s\n",
+                count, failures.get(), elapsedNanos / 1e9,
+                elapsedNanos == 0 ? 0.0 : count * 1e9 / elapsedNanos);
+        if (count > 0)
+            System.err.printf("Latency (ms): p50 %.2f  p90 %.2f  p99 %.2f  max %.2f\n",
+                    percentile(sorted, 0.50), percentile(sorted, 0.90),
+                    percentile(sorted, 0.99), sorted[sorted.length - 1] / 1e6);
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+}
@@ -0,0 +1,61 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** A pool of direct byte buffers of a fixed size, used to send and receive DNS messages without
+ * allocating a new buffer for every query. Buffers are handed out cleared, and must be returned
+ * with release once they are no longer used. If the pool is empty a new buffer is allocated, and
+ * if the pool is full a released buffer is simply left to the garbage collector, so the pool
+ * never holds more than a fixed number of idle buffers.
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final int maxIdleBuffers;
+    private final Queue<ByteBuffer> idleBuffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    /** Creates an empty pool.
+     *
+     * @param bufferSize     Capacity of each buffer, in bytes.
+     * @param maxIdleBuffers Maximum number of buffers kept in the pool while not in use.
+     */
+    public BufferPool(int bufferSize, int maxIdleBuffers) {
+        this.bufferSize = bufferSize;
+        this.maxIdleBuffers = maxIdleBuffers;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /** Returns a cleared buffer, either taken from the pool or newly allocated.
+     *
+     * @return A buffer with position 0 and limit equal to the buffer size.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = idleBuffers.poll();
+        if (buffer == null)
+            return ByteBuffer.allocateDirect(bufferSize);
+        idleCount.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /** Returns a buffer to the pool. The buffer must not be used by the caller afterwards.
+     * Buffers of a different size (or null) are ignored.
+     *
+     * @param buffer Buffer previously obtained from acquire.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize || !buffer.isDirect()) return;
+        if (idleCount.incrementAndGet() > maxIdleBuffers) {
+            idleCount.decrementAndGet();
+            return;
+        }
+        idleBuffers.add(buffer);
+    }
+}
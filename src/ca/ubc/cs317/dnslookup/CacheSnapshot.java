@@ -0,0 +1,199 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/** Saves the content of the DNS cache to a file, and restores it, so that the cache does not
+ * start empty after a restart. The snapshot uses a compact binary format: a header followed by
+ * one entry per record, each with its host name, record type, absolute expiration time and
+ * either an address or a textual result. Since expiration times are absolute, records that
+ * expired while the application was not running are skipped when the snapshot is loaded,
+ * without decoding their name or result.
+ *
+ * Snapshots are read through a memory-mapped buffer, so the file is paged in by the operating
+ * system as it is decoded rather than copied through an input stream. Loading is not lazy: every
+ * record that has not expired is decoded and added to the cache, since the cache only holds
+ * decoded records and can then evict the least useful ones. Snapshots are written to
+ * a temporary file that replaces the previous snapshot once complete, and writing only iterates
+ * over the (concurrent) cache, so lookups are not paused while a snapshot is saved.
+ */
+public class CacheSnapshot {
+
+    private static final int MAGIC = 0x444E5343; // "DNSC"
+    private static final int VERSION = 1;
+    private static final byte TEXT_RESULT = 0;
+    private static final byte INET_RESULT = 1;
+
+    private static ScheduledExecutorService scheduler;
+    private static ScheduledFuture<?> periodicSave;
+
+    /**
+     * Saves all valid records in the cache to a file, replacing any existing snapshot.
+     *
+     * @param cache Cache to be saved.
+     * @param file  File in which the snapshot is saved.
+     * @return The number of records saved.
+     * @throws IOException if the snapshot could not be written
+     */
+    public static int save(DNSCache cache, Path file) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        int[] count = new int[1];
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            try {
+                cache.forEachRecord((node, record) -> {
+                    try {
+                        writeRecord(out, record);
+                        count[0]++;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count[0];
+    }
+
+    /**
+     * Adds all records in a snapshot that have not expired yet to the cache.
+     *
+     * @param cache Cache in which the records are added.
+     * @param file  File containing the snapshot.
+     * @return The number of records the cache accepted, which excludes records that were already
+     *         cached with a later expiration, and records evicted right away because the cache is
+     *         full. If the cache is smaller than the snapshot, records accepted early may still be
+     *         evicted by records loaded later.
+     * @throws IOException if the snapshot could not be read or is not a valid snapshot
+     */
+    public static int load(DNSCache cache, Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 8 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+                throw new IOException("Not a cache snapshot: " + file);
+
+            int count = 0;
+            long now = System.currentTimeMillis();
+            try {
+                while (buffer.hasRemaining()) {
+                    int namePosition = skipField(buffer);
+                    RecordType type = RecordType.getByCode(buffer.getShort() & 0xFFFF);
+                    Date expirationTime = new Date(buffer.getLong());
+                    byte kind = buffer.get();
+                    int resultPosition = skipField(buffer);
+                    if (expirationTime.getTime() <= now) continue;
+
+                    String hostName = NameTable.getInstance().intern(new String(readField(buffer, namePosition),
+                            StandardCharsets.UTF_8));
+                    byte[] result = readField(buffer, resultPosition);
+                    ResourceRecord record;
+                    if (kind == INET_RESULT)
+                        record = new ResourceRecord(hostName, type, expirationTime, InetAddress.getByAddress(result));
+                    else
+                        record = new ResourceRecord(hostName, type, expirationTime,
+                                NameTable.getInstance().intern(new String(result, StandardCharsets.UTF_8)));
+                    if (cache.addResult(record)) count++;
+                }
+            } catch (BufferUnderflowException | IllegalArgumentException | UnknownHostException e) {
+                throw new IOException("Corrupt cache snapshot: " + file, e);
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Saves a snapshot of the cache periodically on a background thread, replacing any
+     * previously scheduled periodic save. Errors are reported on the standard error.
+     *
+     * @param cache           Cache to be saved.
+     * @param file            File in which the snapshot is saved.
+     * @param intervalSeconds Time between two snapshots, in seconds.
+     */
+    public static synchronized void startPeriodicSave(DNSCache cache, Path file, long intervalSeconds) {
+        stopPeriodicSave();
+        if (scheduler == null)
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "cache-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+        periodicSave = scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                save(cache, file);
+            } catch (IOException e) {
+                System.err.println("Could not save cache snapshot (" + e.getMessage() + ").");
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops saving snapshots periodically, if it was enabled.
+     */
+    public static synchronized void stopPeriodicSave() {
+        if (periodicSave != null) {
+            periodicSave.cancel(false);
+            periodicSave = null;
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, ResourceRecord record) throws IOException {
+        writeString(out, record.getHostName());
+        out.writeShort(record.getType().getCode());
+        out.writeLong(record.getExpirationTime().getTime());
+        byte[] result;
+        if (record.getInetResult() != null) {
+            out.writeByte(INET_RESULT);
+            result = record.getInetResult().getAddress();
+        } else {
+            out.writeByte(TEXT_RESULT);
+            result = record.getTextResult().getBytes(StandardCharsets.UTF_8);
+        }
+        out.writeShort(result.length);
+        out.write(result);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    /** Skips a field made of a 2-byte length followed by its content.
+     *
+     * @return The position of the field (of its length).
+     */
+    private static int skipField(MappedByteBuffer buffer) {
+        int position = buffer.position();
+        int length = buffer.getShort() & 0xFFFF;
+        buffer.position(buffer.position() + length);
+        return position;
+    }
+
+    /** Reads the content of a field made of a 2-byte length followed by its content.
+     *
+     * @param position Position of the field (of its length).
+     */
+    private static byte[] readField(MappedByteBuffer buffer, int position) {
+        byte[] bytes = new byte[buffer.getShort(position) & 0xFFFF];
+        buffer.get(position + 2, bytes);
+        return bytes;
+    }
+}
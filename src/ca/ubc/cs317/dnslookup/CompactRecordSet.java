@@ -0,0 +1,258 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/** The records cached for a single node, stored in a compact form. A ResourceRecord keeps its
+ * own node, an address and its textual form, and several objects per record; a cached A record
+ * therefore takes a few hundred bytes. This class instead keeps all records of a node in a
+ * single byte array, with for each record:
+ *
+ *  - its expiration time, as a primitive long based on System.nanoTime();
+ *  - its lifetime (the TTL it was added with), in seconds;
+ *  - for A and AAAA records, the raw 4- or 16-byte address.
+ *
+ * The textual results of other records (e.g., the name of a name server) are kept in a separate
+ * array, and are shared through the NameTable, so a name server that serves many zones is stored
+ * once. The node itself (and therefore the owner name) is shared by all records of the set. Full
+ * ResourceRecord objects are only created when records are read.
+ *
+ * Sets are immutable: adding or removing a record returns a new set, so a set can be replaced
+ * atomically in the cache and read without locking. Each set also carries the deadline at which
+ * the cache has scheduled its next expiry check, so the cache keeps a single pending expiry per
+ * node rather than one per record added.
+ */
+public class CompactRecordSet {
+
+    private static final VarHandle LONG_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final VarHandle INT_VIEW = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.nativeOrder());
+    private static final int EXPIRATION_OFFSET = 0;
+    private static final int LIFETIME_OFFSET = 8;
+    private static final int ADDRESS_OFFSET = 12;
+    private static final byte[] NO_DATA = new byte[0];
+    private static final String[] NO_TEXTS = new String[0];
+
+    private final DNSNode node;
+    private final byte[] data;
+    private final String[] texts;
+    private final long expiryCheckNanos;
+
+    private CompactRecordSet(DNSNode node, byte[] data, String[] texts, long expiryCheckNanos) {
+        this.node = node;
+        this.data = data;
+        this.texts = texts;
+        this.expiryCheckNanos = expiryCheckNanos;
+    }
+
+    /** Creates an empty set for a node.
+     *
+     * @param node Node (host name and record type) whose records are stored in the set.
+     * @return An empty set.
+     */
+    public static CompactRecordSet empty(DNSNode node) {
+        return new CompactRecordSet(node, NO_DATA, isAddressType(node.getType()) ? null : NO_TEXTS, Long.MAX_VALUE);
+    }
+
+    /** Returns true if a record can be stored in a set. Address records (A and AAAA) can only be
+     * stored if their record data has the right length for their type, so an A record cannot hold
+     * an IPv6 address, while an AAAA record holding an IPv4-mapped address is stored as its raw
+     * 16 bytes.
+     *
+     * @param record Record to be checked.
+     * @return true if the record can be stored, false otherwise.
+     */
+    public static boolean canStore(ResourceRecord record) {
+        if (!isAddressType(record.getType())) return record.getTextResult() != null;
+        byte[] address = record.getAddressData();
+        return address != null && address.length == addressLength(record.getType());
+    }
+
+    public DNSNode getNode() {
+        return node;
+    }
+
+    public int size() {
+        return data.length / stride();
+    }
+
+    public boolean isEmpty() {
+        return data.length == 0;
+    }
+
+    /** Returns the time at which the next expiry check of this set is scheduled.
+     *
+     * @return The deadline of the check, based on System.nanoTime(), or Long.MAX_VALUE if no check
+     *         is scheduled.
+     */
+    public long getExpiryCheckNanos() {
+        return expiryCheckNanos;
+    }
+
+    /** Returns a set with the same records, whose next expiry check is scheduled at another time.
+     *
+     * @param expiryCheckNanos Deadline of the check, based on System.nanoTime().
+     * @return A new set.
+     */
+    public CompactRecordSet withExpiryCheck(long expiryCheckNanos) {
+        return new CompactRecordSet(node, data, texts, expiryCheckNanos);
+    }
+
+    /** Returns the earliest expiration time among the records of the set.
+     *
+     * @return The earliest monotonic expiration deadline, in nanoseconds, or Long.MAX_VALUE if the
+     *         set is empty.
+     */
+    public long getEarliestExpirationNanos() {
+        if (isEmpty()) return Long.MAX_VALUE;
+        long earliest = getExpirationNanos(0);
+        for (int i = 1; i < size(); i++)
+            if (getExpirationNanos(i) - earliest < 0) earliest = getExpirationNanos(i);
+        return earliest;
+    }
+
+    /** Returns the time at which a record expires.
+     *
+     * @param index Index of the record in the set.
+     * @return The monotonic expiration deadline of the record, in nanoseconds.
+     */
+    public long getExpirationNanos(int index) {
+        return (long) LONG_VIEW.get(data, index * stride() + EXPIRATION_OFFSET);
+    }
+
+    /** Returns the time a record was valid for when it was added, rounded up to a second.
+     *
+     * @param index Index of the record in the set.
+     * @return The lifetime of the record, in nanoseconds.
+     */
+    public long getLifetimeNanos(int index) {
+        return TimeUnit.SECONDS.toNanos((int) INT_VIEW.get(data, index * stride() + LIFETIME_OFFSET));
+    }
+
+    /** Returns the textual result of a record that is not an address record.
+     *
+     * @param index Index of the record in the set.
+     * @return The textual result of the record, or null for address records.
+     */
+    public String getTextResult(int index) {
+        return texts == null ? null : texts[index];
+    }
+
+    /** Returns the address of an address record. A new InetAddress is created on each call.
+     *
+     * @param index Index of the record in the set.
+     * @return The address of the record, or null if the record is not an address record.
+     */
+    public InetAddress getInetResult(int index) {
+        if (texts != null) return null;
+        int offset = index * stride() + ADDRESS_OFFSET;
+        try {
+            return InetAddress.getByAddress(Arrays.copyOfRange(data, offset, offset + addressLength(node.getType())));
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e); // not reachable, lengths are checked when added
+        }
+    }
+
+    /** Creates a ResourceRecord for a record in the set.
+     *
+     * @param index Index of the record in the set.
+     * @return A new record, sharing the node of the set.
+     */
+    public ResourceRecord toRecord(int index) {
+        return toRecord(index, getExpirationNanos(index), getLifetimeNanos(index));
+    }
+
+    /** Creates a ResourceRecord for a record in the set, with a different expiration (e.g., a stale
+     * record served with a short TTL).
+     *
+     * @param index           Index of the record in the set.
+     * @param expirationNanos Monotonic expiration deadline of the new record, in nanoseconds.
+     * @param lifetimeNanos   Lifetime of the new record, in nanoseconds.
+     * @return A new record, sharing the node of the set.
+     */
+    public ResourceRecord toRecord(int index, long expirationNanos, long lifetimeNanos) {
+        return new ResourceRecord(node, expirationNanos, lifetimeNanos, getTextResult(index), getInetResult(index));
+    }
+
+    /** Finds a record with the same result as another record.
+     *
+     * @param record Record to be searched, which must be storable in this set.
+     * @return The index of the equivalent record, or -1 if the set has no equivalent record.
+     */
+    public int indexOf(ResourceRecord record) {
+        if (texts == null) {
+            byte[] address = record.getAddressData();
+            for (int i = 0, offset = ADDRESS_OFFSET; offset < data.length; i++, offset += stride())
+                if (Arrays.equals(data, offset, offset + address.length, address, 0, address.length))
+                    return i;
+        } else {
+            String text = record.getTextResult();
+            for (int i = 0; i < texts.length; i++)
+                if (texts[i].equals(text)) return i;
+        }
+        return -1;
+    }
+
+    /** Returns a set in which a record is added, or replaces the record at an index.
+     *
+     * @param index  Index of the record being replaced, or -1 to add the record.
+     * @param record Record to be stored, which must be storable in this set.
+     * @return A new set containing the record.
+     */
+    public CompactRecordSet with(int index, ResourceRecord record) {
+        int offset = (index < 0 ? size() : index) * stride();
+        byte[] newData = Arrays.copyOf(data, Math.max(data.length, offset + stride()));
+        LONG_VIEW.set(newData, offset + EXPIRATION_OFFSET, record.getExpirationNanos());
+        long lifetimeSeconds = (record.getLifetimeNanos() + 999_999_999) / 1_000_000_000L;
+        INT_VIEW.set(newData, offset + LIFETIME_OFFSET, (int) Math.max(0, Math.min(Integer.MAX_VALUE, lifetimeSeconds)));
+        if (index >= 0) return new CompactRecordSet(node, newData, texts, expiryCheckNanos);
+
+        if (texts == null) {
+            byte[] address = record.getAddressData();
+            System.arraycopy(address, 0, newData, offset + ADDRESS_OFFSET, address.length);
+            return new CompactRecordSet(node, newData, null, expiryCheckNanos);
+        }
+        String[] newTexts = Arrays.copyOf(texts, texts.length + 1);
+        newTexts[texts.length] = NameTable.getInstance().intern(record.getTextResult());
+        return new CompactRecordSet(node, newData, newTexts, expiryCheckNanos);
+    }
+
+    /** Returns a set without the records that expired at least some time ago.
+     *
+     * @param nowNanos    Current time, based on System.nanoTime().
+     * @param retainNanos Time for which records are kept after they expire.
+     * @return This set if no record is removed, otherwise a new (possibly empty) set.
+     */
+    public CompactRecordSet withoutExpired(long nowNanos, long retainNanos) {
+        int kept = 0;
+        for (int i = 0; i < size(); i++)
+            if (nowNanos - getExpirationNanos(i) < retainNanos) kept++;
+        if (kept == size()) return this;
+
+        byte[] newData = new byte[kept * stride()];
+        String[] newTexts = texts == null ? null : new String[kept];
+        for (int i = 0, j = 0; i < size(); i++) {
+            if (nowNanos - getExpirationNanos(i) >= retainNanos) continue;
+            System.arraycopy(data, i * stride(), newData, j * stride(), stride());
+            if (newTexts != null) newTexts[j] = texts[i];
+            j++;
+        }
+        return new CompactRecordSet(node, newData, newTexts, expiryCheckNanos);
+    }
+
+    private int stride() {
+        return texts == null ? ADDRESS_OFFSET + addressLength(node.getType()) : ADDRESS_OFFSET;
+    }
+
+    private static boolean isAddressType(RecordType type) {
+        return type == RecordType.A || type == RecordType.AAAA;
+    }
+
+    private static int addressLength(RecordType type) {
+        return type == RecordType.AAAA ? 16 : 4;
+    }
+}
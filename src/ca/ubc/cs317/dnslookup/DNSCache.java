@@ -1,19 +1,125 @@
 package ca.ubc.cs317.dnslookup;
 
+import java.net.InetAddress;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 /** This class handles a cache of DNS results. It is based on a map that links nodes (queries)
  * to a set of resource records (results). Cached results are only maintained for the duration
- * of the TTL (time-to-live) returned by the server, and are deleted before being returned to
- * the user.
+ * of the TTL (time-to-live) returned by the server. Expired records are removed in the
+ * background by a timing wheel, and are filtered out (but not removed) if they are read before
+ * the wheel reaches them.
+ *
+ * The cache may be used by multiple threads at the same time. Nodes are kept in a concurrent
+ * skip list (sorted the same way as before), and the records of each node are stored in an
+ * immutable set that is replaced atomically on every change. Readers therefore never lock and
+ * always see a consistent set of records for a node, while writers only contend with other
+ * writers updating the same node.
+ *
+ * Records are stored in a compact form (see CompactRecordSet): primitive expiration times, raw
+ * addresses, and names shared through the NameTable. ResourceRecord objects are only created
+ * when records are read, and records are never retained by the cache itself.
+ *
+ * The cached nodes are also indexed in a trie of labels (see LabelTrie), so the closest
+ * enclosing zone of a name is found in one step per label, and the nodes of a zone can be
+ * visited or flushed without scanning the whole cache. Lookups continue while a zone is flushed.
+ *
+ * The number of cached records is bounded, and whole nodes are evicted once the limit is
+ * exceeded, following W-TinyLFU. New nodes first enter a small admission window, in insertion
+ * order, so the records a lookup has just obtained are always kept long enough to be read. When
+ * the window is full, its oldest node competes with the oldest node of the main queue: the one
+ * used less often (as estimated by a TinyLFU frequency sketch) is evicted, and the other stays
+ * in (or moves to) the main queue. Frequently used records, such as the NS and glue records of
+ * popular zones, therefore survive a scan of names that are only looked up once.
+ *
+ * The cache also keeps negative results (RFC 2308): names that do not exist (NXDOMAIN), and
+ * queries for which a name exists but has no record of the requested type (NODATA). Negative
+ * results are kept for the TTL obtained from the SOA record returned with the response.
+ *
+ * Popular nodes may be refreshed ahead of their expiration. Once a node that was read often
+ * (according to the frequency sketch) is read within the last fraction of its records' TTL, a
+ * refresh handler is asked to resolve it again in the background. Refreshes are rate limited,
+ * and a node is only refreshed once at a time.
+ *
+ * Optionally, expired records may be kept for a bounded time after they expire, so they can be
+ * served (RFC 8767) when a fresh answer cannot be obtained in time. Stale records are never
+ * returned by getCachedResults, only by getStaleResults.
  */
 public class DNSCache {
 
+    private static final long EXPIRY_TICK_MILLIS = 1000;
+    private static final int DEFAULT_MAX_ENTRIES = 100_000;
+    private static final int MIN_WINDOW_NODES = 64;
+    private static final int WINDOW_PERCENT = 1;
+    private static final int MIN_QUEUE_PURGE_LENGTH = 1024;
+    private static final double DEFAULT_REFRESH_FRACTION = 0.1;
+    private static final int DEFAULT_MAX_REFRESHES_PER_SECOND = 20;
+    private static final int MIN_REFRESH_FREQUENCY = 3;
+    private static final long STALE_TTL_SECONDS = 30;
+
     private static DNSCache instance = new DNSCache();
 
+    private ConcurrentNavigableMap<DNSNode, CompactRecordSet> cachedResults = new ConcurrentSkipListMap<>();
+    private TimerWheel<DNSNode> expiryWheel = new TimerWheel<>(EXPIRY_TICK_MILLIS, this::expire);
+    private final LabelTrie index = new LabelTrie();
+
+    private ConcurrentHashMap<Object, NegativeResult> negativeResults = new ConcurrentHashMap<>();
+    private TimerWheel<NegativeResult> negativeExpiryWheel =
+            new TimerWheel<>(EXPIRY_TICK_MILLIS, result -> negativeResults.remove(result.key, result));
+
+    private volatile int maxEntries = DEFAULT_MAX_ENTRIES;
+    private final FrequencySketch sketch = new FrequencySketch(DEFAULT_MAX_ENTRIES);
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger nodeCount = new AtomicInteger();
+    private final ConcurrentLinkedQueue<DNSNode> windowQueue = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<DNSNode> mainQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger windowLength = new AtomicInteger();
+    private final AtomicInteger mainLength = new AtomicInteger();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private final LongAdder insertCount = new LongAdder();
+    private final LongAdder expirationCount = new LongAdder();
+
+    private volatile Function<DNSNode, CompletableFuture<?>> refreshHandler;
+    private volatile double refreshFraction = DEFAULT_REFRESH_FRACTION;
+    private volatile long refreshIntervalNanos = TimeUnit.SECONDS.toNanos(1) / DEFAULT_MAX_REFRESHES_PER_SECOND;
+    private final AtomicLong nextRefreshNanos = new AtomicLong(System.nanoTime());
+    private final Set<DNSNode> refreshing = ConcurrentHashMap.newKeySet();
+    private final LongAdder refreshCount = new LongAdder();
+
+    private volatile long maxStaleNanos = 0;
+    private final LongAdder staleCount = new LongAdder();
+
+    /** A negative result. The key is either a lower-case host name (for names that do not exist)
+     * or a node (for names that have no record of a specific type).
+     */
+    private static class NegativeResult {
+        private final Object key;
+        private final long expirationNanos;
+
+        private NegativeResult(Object key, long expirationNanos) {
+            this.key = key;
+            this.expirationNanos = expirationNanos;
+        }
+    }
 
-    private Map<DNSNode, Map<ResourceRecord, ResourceRecord>> cachedResults = new TreeMap<>();
+    private DNSCache() {
+        expiryWheel.start();
+        negativeExpiryWheel.start();
+    }
 
     /** Singleton retrieval method. Only one instance of the DNS cache can be created. This
      * method returns the single DNS cache instance.
@@ -25,69 +131,646 @@ public class DNSCache {
     }
 
     /** Returns a set of resource records already cached for a particular query. If no results
-     * are cached for the specified query, returns an empty set. Expired results are removed
-     * from the cache before being returned. This method does not perform the query itself, it
-     * only returns previously cached results.
+     * are cached for the specified query, returns an empty set. Expired results are not
+     * returned, even if they have not been removed from the cache yet. This method does not
+     * perform the query itself, it only returns previously cached results.
      *
      * @param node DNS query (host name and record type) to obtain cached results.
      * @return A potentially empty set of resources associated to the query.
      */
     public Set<ResourceRecord> getCachedResults(DNSNode node) {
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(node);
-        if (results == null)
-            return Collections.emptySet();
+        return getCachedResults(node, true);
+    }
 
-        results.keySet().removeIf(record -> !record.isStillValid());
-        return Collections.unmodifiableSet(results.keySet());
+    /** Returns a set of resource records already cached for a particular query, as in
+     * getCachedResults, but only counts the read as a hit or miss if requested. Reads made on
+     * behalf of a lookup that was already counted (e.g., its CNAME records, or the addresses of
+     * the name servers it queries) should not be counted again, so that the hit ratio reflects
+     * the lookups themselves. The frequency of the node is recorded either way.
+     *
+     * @param node        DNS query (host name and record type) to obtain cached results.
+     * @param countLookup true to count the read as a hit (if any record is returned) or a miss.
+     * @return A potentially empty set of resources associated to the query.
+     */
+    public Set<ResourceRecord> getCachedResults(DNSNode node, boolean countLookup) {
+        sketch.increment(node);
+        CompactRecordSet records = cachedResults.get(node);
+        Set<ResourceRecord> results = records == null ? Collections.emptySet() : toValidRecords(records);
+        if (results.isEmpty()) {
+            if (countLookup) missCount.increment();
+            return results;
+        }
+
+        if (countLookup) hitCount.increment();
+        if (refreshHandler != null) refreshIfExpiring(node, records);
+        return results;
+    }
+
+    /** Counts a lookup as a cache hit or miss, for lookups whose records are read without being
+     * counted (e.g., a lookup answered from cached CNAME records is a hit, although no record of
+     * its own type is cached).
+     *
+     * @param hit true if the lookup was answered from the cache.
+     */
+    public void recordLookup(boolean hit) {
+        if (hit) hitCount.increment();
+        else missCount.increment();
+    }
+
+    /** Returns the records cached for a node that expired recently, i.e., no longer than the
+     * maximum stale time ago, along with any records that are still valid. The returned records
+     * are copies with a short TTL (as recommended by RFC 8767), and are not added to the cache.
+     *
+     * @param node DNS query (host name and record type) to obtain stale results.
+     * @return A potentially empty set of stale resources associated to the query. The set is
+     *         always empty if serving stale records is disabled.
+     */
+    public Set<ResourceRecord> getStaleResults(DNSNode node) {
+        long maxStale = maxStaleNanos;
+        CompactRecordSet records = cachedResults.get(node);
+        if (maxStale == 0 || records == null) return Collections.emptySet();
+
+        long now = System.nanoTime();
+        long staleLifetime = TimeUnit.SECONDS.toNanos(STALE_TTL_SECONDS);
+        Set<ResourceRecord> stale = new HashSet<>();
+        for (int i = 0; i < records.size(); i++)
+            if (now - records.getExpirationNanos(i) < maxStale)
+                stale.add(records.toRecord(i, now + staleLifetime, staleLifetime));
+        if (!stale.isEmpty()) staleCount.increment();
+        return stale;
+    }
+
+    /** Changes how long records are kept after they expire, so they can be served stale. The new
+     * time applies to all records still in the cache, but records that were already removed are
+     * not restored. Serving stale records is disabled if the time is zero.
+     *
+     * @param maxStaleSeconds Number of seconds expired records are kept, or 0 to disable.
+     */
+    public void setMaxStale(long maxStaleSeconds) {
+        if (maxStaleSeconds < 0)
+            throw new IllegalArgumentException("Maximum stale time must not be negative.");
+        this.maxStaleNanos = TimeUnit.SECONDS.toNanos(maxStaleSeconds);
+    }
+
+    public long getMaxStale() {
+        return TimeUnit.NANOSECONDS.toSeconds(maxStaleNanos);
+    }
+
+    public boolean isServingStale() {
+        return maxStaleNanos > 0;
+    }
+
+    public long getStaleCount() {
+        return staleCount.sum();
+    }
+
+    /** Sets the handler used to refresh popular nodes before they expire. The handler should
+     * resolve the node again (adding the new records to the cache) and return a future that is
+     * completed once it is done. Refreshing is disabled if the handler is null.
+     *
+     * @param refreshHandler Handler that resolves a node in the background, or null.
+     */
+    public void setRefreshHandler(Function<DNSNode, CompletableFuture<?>> refreshHandler) {
+        this.refreshHandler = refreshHandler;
+    }
+
+    /** Changes how early popular nodes are refreshed, and how many refreshes may be started per
+     * second.
+     *
+     * @param refreshFraction      Fraction of a record's TTL (between 0 and 1) before its expiration
+     *                             in which reading it triggers a refresh.
+     * @param maxRefreshesPerSecond Maximum number of refreshes started per second.
+     */
+    public void setRefreshPolicy(double refreshFraction, int maxRefreshesPerSecond) {
+        if (!(refreshFraction > 0 && refreshFraction < 1))
+            throw new IllegalArgumentException("Refresh fraction must be between 0 and 1.");
+        if (maxRefreshesPerSecond <= 0)
+            throw new IllegalArgumentException("Maximum refresh rate must be a positive integer.");
+        this.refreshFraction = refreshFraction;
+        this.refreshIntervalNanos = TimeUnit.SECONDS.toNanos(1) / maxRefreshesPerSecond;
+    }
+
+    public double getRefreshFraction() {
+        return refreshFraction;
+    }
+
+    public int getMaxRefreshesPerSecond() {
+        return (int) (TimeUnit.SECONDS.toNanos(1) / refreshIntervalNanos);
+    }
+
+    public long getRefreshCount() {
+        return refreshCount.sum();
+    }
+
+    /** Starts a background refresh of a node if it is popular, one of its records is within the
+     * last fraction of its TTL, it is not being refreshed already, and the refresh rate allows it.
+     *
+     * @param node    Node that was just read.
+     * @param records Records cached for the node.
+     */
+    private void refreshIfExpiring(DNSNode node, CompactRecordSet records) {
+        long now = System.nanoTime();
+        boolean expiring = false;
+        for (int i = 0; i < records.size(); i++) {
+            long remaining = records.getExpirationNanos(i) - now;
+            if (remaining > 0 && remaining < refreshFraction * records.getLifetimeNanos(i)) {
+                expiring = true;
+                break;
+            }
+        }
+        if (!expiring || sketch.frequency(node) < MIN_REFRESH_FREQUENCY) return;
+
+        Function<DNSNode, CompletableFuture<?>> handler = refreshHandler;
+        if (handler == null || refreshing.contains(node) || !tryAcquireRefresh(now)) return;
+        if (!refreshing.add(node)) return;
+        refreshCount.increment();
+        try {
+            handler.apply(node).whenComplete((result, error) -> refreshing.remove(node));
+        } catch (RuntimeException e) {
+            refreshing.remove(node);
+        }
+    }
+
+    /** Takes a refresh from a token bucket that allows a burst of refreshes equal to one
+     * second's worth, and otherwise one refresh per refresh interval.
+     *
+     * @param now Current value of System.nanoTime().
+     * @return true if a refresh may be started, or false if the rate limit was reached.
+     */
+    private boolean tryAcquireRefresh(long now) {
+        long interval = refreshIntervalNanos;
+        while (true) {
+            long next = nextRefreshNanos.get();
+            if (next - now > 0) return false;
+            long earliest = now - TimeUnit.SECONDS.toNanos(1);
+            long updated = (next - earliest < 0 ? earliest : next) + interval;
+            if (nextRefreshNanos.compareAndSet(next, updated)) return true;
+        }
     }
 
     /** Adds a specific resource record to the DNS cache. If the cache already has an equivalent
      * resource record, the existing record is replaced if the new one expires after the existing
-     * record, otherwise the existing record is maintained.
+     * record, otherwise the existing record is maintained. Address records (A and AAAA) are only
+     * cached if their address has the right length for their type.
      *
      * @param record Resource record, possibly obtained from a DNS server, containing the result
      *               of a DNS query.
+     * @return true if the record was stored (added, or replacing an equivalent record that expires
+     *         earlier) and its node was not evicted right away, false otherwise.
+     */
+    public boolean addResult(ResourceRecord record) {
+
+        if (!record.isStillValid() || !CompactRecordSet.canStore(record)) return false;
+
+        // the node is kept as the key of the cache entry, so its name is shared through the name table
+        DNSNode key = new DNSNode(NameTable.getInstance().intern(record.getHostName()), record.getType());
+        long expiryCheck = record.getExpirationNanos() + maxStaleNanos;
+        boolean[] added = new boolean[4];
+        CompactRecordSet updated = cachedResults.compute(key, (node, records) -> {
+            added[0] = records == null;
+            added[3] = false;
+            if (records == null) records = CompactRecordSet.empty(node);
+
+            int index = records.indexOf(record);
+            added[1] = index < 0;
+            added[2] = index < 0 || records.getExpirationNanos(index) - record.getExpirationNanos() < 0;
+            if (!added[2]) return records;
+
+            // a single expiry check is pending per node, only an earlier deadline needs a new one
+            records = records.with(index, record);
+            added[3] = isBefore(expiryCheck, records.getExpiryCheckNanos());
+            return added[3] ? records.withExpiryCheck(expiryCheck) : records;
+        });
+        if (added[2]) insertCount.increment();
+        if (added[3]) expiryWheel.schedule(updated.getNode(), expiryCheck);
+
+        if (added[1]) size.incrementAndGet();
+        if (added[0]) {
+            nodeCount.incrementAndGet();
+            index.add(updated.getNode());
+            windowQueue.add(updated.getNode());
+            windowLength.incrementAndGet();
+        }
+        if (added[0] || size.get() > maxEntries)
+            evict();
+        return added[2] && cachedResults.containsKey(key);
+    }
+
+    /** Records that a host name does not exist (NXDOMAIN), so that no query for this name,
+     * regardless of its type, has to be sent to a server until the negative result expires.
+     *
+     * @param hostName Host name that does not exist.
+     * @param ttl      Number of seconds the negative result is kept.
+     */
+    public void addNonExistentName(String hostName, long ttl) {
+        addNegativeResult(hostName.toLowerCase(), ttl);
+    }
+
+    /** Records that a host name exists, but has no record of a specific type (NODATA).
+     *
+     * @param node Host name and record type for which no record exists.
+     * @param ttl  Number of seconds the negative result is kept.
+     */
+    public void addNoDataResult(DNSNode node, long ttl) {
+        addNegativeResult(node, ttl);
+    }
+
+    /** Returns true if a query is known to have no result, either because its host name does not
+     * exist or because the name has no record of the requested type, and the negative result has
+     * not expired yet.
+     *
+     * @param node DNS query (host name and record type).
+     * @return true if a valid negative result is cached for the query, false otherwise.
      */
-    public void addResult(ResourceRecord record) {
+    public boolean isNegativeResult(DNSNode node) {
+        return getNegativeTTL(node) >= 0;
+    }
 
-        if (!record.isStillValid()) return;
+    /** Returns the time left before the negative result of a query expires, e.g., to limit the
+     * TTL of the SOA record sent with a negative response (RFC 2308).
+     *
+     * @param node DNS query (host name and record type).
+     * @return The number of seconds left (rounded down), or -1 if no valid negative result is
+     *         cached for the query.
+     */
+    public long getNegativeTTL(DNSNode node) {
+        long now = System.nanoTime();
+        long remaining = 0;
+        NegativeResult result = negativeResults.get(node);
+        if (result != null) remaining = Math.max(remaining, result.expirationNanos - now);
+        result = negativeResults.get(node.getHostName().toLowerCase());
+        if (result != null) remaining = Math.max(remaining, result.expirationNanos - now);
+        return remaining > 0 ? TimeUnit.NANOSECONDS.toSeconds(remaining) : -1;
+    }
 
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(record.getNode());
-        if (results == null) {
-            results = new HashMap<>();
-            cachedResults.put(record.getNode(), results);
+    /** Returns the SOA record cached for the closest zone enclosing a host name (or the name
+     * itself), e.g., the zone that answered a negative response for the name. Cache statistics
+     * and frequencies are not affected.
+     *
+     * @param hostName Host name, with or without a trailing dot.
+     * @return A valid SOA record, or null if none is cached for the name or its ancestors.
+     */
+    public ResourceRecord getClosestSoaRecord(String hostName) {
+        String name = hostName.endsWith(".") ? hostName.substring(0, hostName.length() - 1) : hostName;
+        long now = System.nanoTime();
+        while (true) {
+            CompactRecordSet records = cachedResults.get(new DNSNode(name, RecordType.SOA));
+            if (records != null)
+                for (int i = 0; i < records.size(); i++)
+                    if (records.getExpirationNanos(i) - now > 0) return records.toRecord(i);
+            if (name.isEmpty()) return null;
+            int dot = name.indexOf('.');
+            name = dot < 0 ? "" : name.substring(dot + 1);
         }
+    }
 
-        ResourceRecord oldRecord = results.get(record);
-        if (oldRecord == null || oldRecord.expiresBefore(record))
-            results.put(record, record);
+    /** Returns true if a host name is known not to exist (NXDOMAIN), regardless of type.
+     *
+     * @param hostName Host name being searched.
+     * @return true if a valid negative result exists for the name itself.
+     */
+    public boolean isNonExistentName(String hostName) {
+        NegativeResult result = negativeResults.get(hostName.toLowerCase());
+        return result != null && result.expirationNanos - System.nanoTime() > 0;
+    }
+
+    /** Finds the closest enclosing zone of a host name for which both the NS records and the
+     * addresses (glue) of at least one of its name servers are cached. Iterative resolution may
+     * start at the servers of this zone instead of the root. The zone may be the host name
+     * itself. Cache statistics and frequencies are not affected.
+     *
+     * @param hostName Host name being resolved.
+     * @return The name of the closest zone (without a trailing dot), or null if no enclosing zone
+     *         has cached name servers with addresses.
+     */
+    public String getClosestZone(String hostName) {
+        return index.findClosestZone(hostName, zone -> !getNameServerAddresses(zone).isEmpty());
+    }
+
+    /** Returns the cached addresses of the name servers of a zone. Cache statistics and
+     * frequencies are not affected.
+     *
+     * @param zone Name of the zone.
+     * @return The addresses of the name servers of the zone whose A records are cached.
+     */
+    public List<InetAddress> getNameServerAddresses(String zone) {
+        CompactRecordSet nameServers = cachedResults.get(new DNSNode(zone, RecordType.NS));
+        if (nameServers == null) return Collections.emptyList();
+
+        List<InetAddress> addresses = new ArrayList<>();
+        long now = System.nanoTime();
+        for (int i = 0; i < nameServers.size(); i++) {
+            if (nameServers.getExpirationNanos(i) - now <= 0) continue;
+            CompactRecordSet glue = cachedResults.get(new DNSNode(nameServers.getTextResult(i), RecordType.A));
+            if (glue == null) continue;
+            for (int j = 0; j < glue.size(); j++)
+                if (glue.getExpirationNanos(j) - now > 0) addresses.add(glue.getInetResult(j));
+        }
+        return addresses;
+    }
+
+    private void addNegativeResult(Object key, long ttl) {
+        if (ttl <= 0 || negativeResults.size() >= maxEntries) return;
+        NegativeResult result = new NegativeResult(key, System.nanoTime() + TimeUnit.SECONDS.toNanos(ttl));
+        negativeResults.put(key, result);
+        negativeExpiryWheel.schedule(result, result.expirationNanos);
+    }
+
+    /** Changes the maximum number of records kept in the cache. If the cache currently holds more
+     * records than the new limit, nodes are evicted immediately.
+     *
+     * @param maxEntries Maximum number of records in the cache.
+     */
+    public void setMaxEntries(int maxEntries) {
+        if (maxEntries <= 0)
+            throw new IllegalArgumentException("The cache must hold at least one record.");
+        this.maxEntries = maxEntries;
+        sketch.setCapacity(maxEntries);
+        evict();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /** Returns the number of records currently in the cache, including expired records that
+     * have not yet been removed.
+     *
+     * @return Number of records in the cache.
+     */
+    public int size() {
+        return size.get();
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    /** Returns the number of records stored in the cache, either as new records or replacing
+     * equivalent records that expire earlier.
+     *
+     * @return Number of records inserted since the cache was created.
+     */
+    public long getInsertCount() {
+        return insertCount.sum();
+    }
+
+    /** Returns the number of records removed from the cache because they expired (after being
+     * kept for serve-stale, if enabled).
+     *
+     * @return Number of records expired since the cache was created.
+     */
+    public long getExpirationCount() {
+        return expirationCount.sum();
     }
 
     /** Perform a specific action for each query and its set of cached records. This action can
-     * be specified using a lambda expression or method name. Expired records are removed before
-     * the action is performed.
+     * be specified using a lambda expression or method name. Expired records are not included.
      *
      * @param consumer Action to be performed for each query and set of records.
      */
     public void forEachNode(BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            if (!entry.getValue().keySet().isEmpty())
-                consumer.accept(entry.getKey(), entry.getValue().keySet());
+        for (Map.Entry<DNSNode, CompactRecordSet> entry : cachedResults.entrySet()) {
+            Set<ResourceRecord> results = toValidRecords(entry.getValue());
+            if (!results.isEmpty())
+                consumer.accept(entry.getKey(), results);
+        }
+    }
+
+    /** Perform a specific action for each query in a zone (the name of the zone and all names
+     * below it) and its set of cached records, in the same order as forEachNode. Only the nodes
+     * of the zone are visited, not the whole cache. Expired records are not included.
+     *
+     * @param zone     Name of the zone, or "." for the whole cache.
+     * @param consumer Action to be performed for each query and set of records.
+     */
+    public void forEachNode(String zone, BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
+        List<DNSNode> nodes = new ArrayList<>();
+        index.forEachNode(zone, nodes::add);
+        Collections.sort(nodes);
+        for (DNSNode node : nodes) {
+            CompactRecordSet records = cachedResults.get(node);
+            if (records == null) continue;
+            Set<ResourceRecord> results = toValidRecords(records);
+            if (!results.isEmpty())
+                consumer.accept(records.getNode(), results);
+        }
+    }
+
+    /** Removes all records of a zone (the name of the zone and all names below it) from the
+     * cache, along with the negative results for these names, e.g., after the zone was
+     * misconfigured. Lookups are not stopped while the zone is flushed; records of the zone
+     * added while it is being flushed may be kept. Negative results are kept in a hash map, so
+     * all of them are checked; records are found through the index.
+     *
+     * @param zone Name of the zone, or "." to flush the whole cache.
+     * @return The number of records removed (not including negative results).
+     */
+    public int flushZone(String zone) {
+        List<DNSNode> nodes = new ArrayList<>();
+        index.forEachNode(zone, nodes::add);
+        int flushed = 0;
+        for (DNSNode node : nodes) {
+            CompactRecordSet records = cachedResults.remove(node);
+            if (records == null) continue;
+            size.addAndGet(-records.size());
+            flushed += records.size();
+            nodeRemoved(node);
         }
+        negativeResults.keySet().removeIf(key ->
+                LabelTrie.isWithin(key instanceof DNSNode ? ((DNSNode) key).getHostName() : (String) key, zone));
+        return flushed;
+    }
+
+    /** Updates the node count and the index after a node was removed from the cache. Its entry in
+     * the eviction queues is left in place, and dropped once it is polled or purged. If the node
+     * was added back to the cache in the meantime, it is added back to the index, since the
+     * thread that added it may have updated the index before it was removed.
+     *
+     * @param node Node removed from the cache.
+     */
+    private void nodeRemoved(DNSNode node) {
+        nodeCount.decrementAndGet();
+        index.remove(node);
+        if (cachedResults.containsKey(node))
+            index.add(node);
     }
 
     /** Perform a specific action for each query and individual record. This action can be
-     * specified using a lambda expression or method name. Expired records are removed before
-     * the action is performed.
+     * specified using a lambda expression or method name. Expired records are not included.
      *
      * @param consumer Action to be performed for each query and record.
      */
     public void forEachRecord(BiConsumer<DNSNode, ResourceRecord> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            entry.getValue().keySet().forEach(record -> consumer.accept(entry.getKey(), record));
+        for (Map.Entry<DNSNode, CompactRecordSet> entry : cachedResults.entrySet())
+            toValidRecords(entry.getValue()).forEach(record -> consumer.accept(entry.getKey(), record));
+    }
+
+    /** Creates the records of a cached set that have not expired yet. The cache is never modified
+     * by this method; expired records are only removed by the expiry wheel.
+     *
+     * @param records Current (immutable) set of records cached for a node.
+     * @return An immutable set of the records that have not expired yet.
+     */
+    private static Set<ResourceRecord> toValidRecords(CompactRecordSet records) {
+        long now = System.nanoTime();
+        if (records.size() == 1)
+            return records.getExpirationNanos(0) - now > 0 ? Set.of(records.toRecord(0)) : Collections.emptySet();
+
+        ResourceRecord[] valid = new ResourceRecord[records.size()];
+        int count = 0;
+        for (int i = 0; i < records.size(); i++)
+            if (records.getExpirationNanos(i) - now > 0) valid[count++] = records.toRecord(i);
+        return count == 0 ? Collections.emptySet() : Set.of(Arrays.copyOf(valid, count));
+    }
+
+    /** Removes the expired records of a node from the cache. Called by the expiry wheel once the
+     * deadline of the node's expiry check is reached. Records are only removed once they have
+     * been expired for longer than the maximum stale time; a record that has been replaced by an
+     * equivalent record that expires later is therefore kept. If records remain, the next check
+     * is scheduled for the earliest of them. Checks that were superseded by an earlier check
+     * (i.e., whose node's next check is still in the future) are ignored.
+     *
+     * @param node Node whose deadline has been reached.
+     */
+    private void expire(DNSNode node) {
+        long now = System.nanoTime();
+        long maxStale = maxStaleNanos;
+        int[] removed = new int[1];
+        boolean[] rescheduled = new boolean[1];
+        CompactRecordSet remaining = cachedResults.computeIfPresent(node, (key, records) -> {
+            removed[0] = 0;
+            rescheduled[0] = false;
+            if (isBefore(now, records.getExpiryCheckNanos())) return records;
+            CompactRecordSet valid = records.withoutExpired(now, maxStale);
+            removed[0] = records.size() - valid.size();
+            if (valid.isEmpty()) return null;
+            rescheduled[0] = true;
+            return valid.withExpiryCheck(valid.getEarliestExpirationNanos() + maxStale);
+        });
+        if (removed[0] > 0) {
+            size.addAndGet(-removed[0]);
+            expirationCount.add(removed[0]);
+        }
+        if (removed[0] > 0 && remaining == null)
+            nodeRemoved(node);
+        if (rescheduled[0])
+            expiryWheel.schedule(remaining.getNode(), remaining.getExpiryCheckNanos());
+    }
+
+    /** Compares two deadlines based on System.nanoTime(), where Long.MAX_VALUE means no deadline.
+     *
+     * @param deadline One deadline.
+     * @param other    Another deadline, or Long.MAX_VALUE.
+     * @return true if the first deadline is before the other one.
+     */
+    private static boolean isBefore(long deadline, long other) {
+        return other == Long.MAX_VALUE || deadline - other < 0;
+    }
+
+    /** Moves nodes out of the admission window, and evicts nodes until the number of cached
+     * records is within the limit. While the window holds more nodes than allowed, its oldest
+     * node is moved to the main queue if the cache is not full. Otherwise, it competes with the
+     * oldest node of the main queue, and whichever is estimated to be used less often is
+     * evicted (the window's node wins ties, so recent nodes are favoured). If the cache is still
+     * too large, the oldest nodes of the main queue (then of the window) are evicted.
+     *
+     * Queue entries are only valid while the same cache entry exists, i.e., while the cache's
+     * key is the same object as the queued node; other entries (for nodes that expired, were
+     * flushed, or were added again since) are dropped. Only one thread evicts at a time; other
+     * threads simply skip eviction while it happens.
+     */
+    private void evict() {
+        if (!evictionLock.tryLock()) return;
+        try {
+            int windowNodes = Math.max(MIN_WINDOW_NODES, maxEntries * WINDOW_PERCENT / 100);
+            while (windowLength.get() > windowNodes) {
+                DNSNode candidate = pollLive(windowQueue, windowLength);
+                if (candidate == null) break;
+                DNSNode victim = size.get() > maxEntries ? peekLive(mainQueue, mainLength) : null;
+                if (victim != null && sketch.frequency(victim) > sketch.frequency(candidate)) {
+                    remove(candidate);
+                    continue;
+                }
+                if (victim != null) {
+                    pollLive(mainQueue, mainLength);
+                    remove(victim);
+                }
+                mainQueue.add(candidate);
+                mainLength.incrementAndGet();
+            }
+
+            while (size.get() > maxEntries) {
+                DNSNode victim = pollLive(mainQueue, mainLength);
+                if (victim == null) victim = pollLive(windowQueue, windowLength);
+                if (victim == null) break;
+                remove(victim);
+            }
+
+            if (mainLength.get() > Math.max(MIN_QUEUE_PURGE_LENGTH, 2 * nodeCount.get())) {
+                mainQueue.removeIf(node -> !isLive(node));
+                mainLength.set(mainQueue.size());
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /** Removes the oldest entries of an eviction queue until one refers to a node in the cache.
+     *
+     * @param queue  Queue to be polled.
+     * @param length Number of entries in the queue.
+     * @return The oldest valid node, or null if the queue has no valid entry.
+     */
+    private DNSNode pollLive(ConcurrentLinkedQueue<DNSNode> queue, AtomicInteger length) {
+        DNSNode node;
+        while ((node = queue.poll()) != null) {
+            length.decrementAndGet();
+            if (isLive(node)) return node;
+        }
+        return null;
+    }
+
+    /** Returns the oldest entry of an eviction queue that refers to a node in the cache, without
+     * removing it. Invalid entries before it are removed.
+     *
+     * @param queue  Queue to be searched.
+     * @param length Number of entries in the queue.
+     * @return The oldest valid node, or null if the queue has no valid entry.
+     */
+    private DNSNode peekLive(ConcurrentLinkedQueue<DNSNode> queue, AtomicInteger length) {
+        DNSNode node;
+        while ((node = queue.peek()) != null) {
+            if (isLive(node)) return node;
+            if (queue.remove(node)) length.decrementAndGet();
+        }
+        return null;
+    }
+
+    private boolean isLive(DNSNode node) {
+        CompactRecordSet records = cachedResults.get(node);
+        return records != null && records.getNode() == node;
+    }
+
+    /** Evicts a node from the cache.
+     *
+     * @param node Node to be evicted.
+     */
+    private void remove(DNSNode node) {
+        CompactRecordSet results = cachedResults.remove(node);
+        if (results != null) {
+            size.addAndGet(-results.size());
+            evictionCount.add(results.size());
+            nodeRemoved(node);
         }
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,19 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.IOException;
+
+/** Signals that a DNS query or lookup failed, e.g., because no server responded in time or
+ * because the time or number of queries allowed for a lookup was exhausted.
+ */
+public class DNSLookupException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public DNSLookupException(String message) {
+        super(message);
+    }
+
+    public DNSLookupException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
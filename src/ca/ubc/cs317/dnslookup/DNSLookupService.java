@@ -1,18 +1,65 @@
 package ca.ubc.cs317.dnslookup;
 
-import java.io.Console;
-import java.io.IOException;
+import javax.management.JMException;
+import java.io.*;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class DNSLookupService {
 
     private static boolean p1Flag = false; // isolating part 1
     private static final int MAX_INDIRECTION_LEVEL = 10;
+    private static final int MAX_PARALLEL_NS_LOOKUPS = 4;
+    private static final String ROOT_ZONE = "";
+    private static final long DEFAULT_MAX_STALE_SECONDS = 86400;
+    private static final long DEFAULT_STALE_ANSWER_DEADLINE_MILLIS = 1800;
+    private static volatile long staleAnswerDeadlineMillis = DEFAULT_STALE_ANSWER_DEADLINE_MILLIS;
     private static InetAddress rootServer;
+    private static DNSServer server;
+    private static MetricsServer metricsServer;
     private static DNSCache cache = DNSCache.getInstance();
+    private static final ConcurrentHashMap<DNSNode, Resolution> inFlightResolutions = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, CompletableFuture<Void>> inFlightReferrals = new ConcurrentHashMap<>();
+    private static final ExecutorService nameServerExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "ns-resolver");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** A resolution in progress, shared by all lookups of the same node. The future is completed
+     * with the last error of the lookup that performed the resolution (or null) once it is done.
+     */
+    private static class Resolution {
+        private final LookupBudget budget;
+        private final CompletableFuture<Exception> error = new CompletableFuture<>();
+
+        private Resolution(LookupBudget budget) {
+            this.budget = budget;
+        }
+    }
+
+    /**
+     * Refreshes a node in the background, e.g., when the cache finds that a popular node is
+     * about to expire. The node is resolved again even though it is still cached.
+     *
+     * @param node Host name and record type to be refreshed.
+     * @return A future completed once the refresh is done.
+     */
+    private static CompletableFuture<Void> refresh(DNSNode node) {
+        return CompletableFuture.runAsync(() -> resolveShared(node, 0, new LookupBudget()), nameServerExecutor);
+    }
 
     /**
      * Main function, called when program is first invoked.
@@ -21,12 +68,33 @@ public class DNSLookupService {
      */
     public static void main(String[] args) {
 
+        String batchInput = null;
+        int batchConcurrency = BatchLookup.DEFAULT_CONCURRENCY;
+        DNSServer serverMode = null;
         if (args.length == 2 && args[1].equals("-p1")) {
             p1Flag = true;
+        } else if ((args.length == 3 || args.length == 4) && args[1].equals("-batch")) {
+            batchInput = args[2];
+            try {
+                if (args.length == 4) batchConcurrency = Integer.parseInt(args[3]);
+            } catch (NumberFormatException ex) {
+                System.err.println("Invalid concurrency (" + args[3] + ").");
+                System.exit(1);
+            }
+        } else if ((args.length == 3 || args.length == 4) && args[1].equals("-server")) {
+            try {
+                serverMode = new DNSServer(Integer.parseInt(args[2]),
+                        args.length == 4 ? Integer.parseInt(args[3]) : DNSServer.DEFAULT_THREADS);
+            } catch (IllegalArgumentException ex) {
+                System.err.println("Invalid server port or number of threads (" + ex.getMessage() + ").");
+                System.exit(1);
+            }
         } else if (args.length != 1) {
             System.err.println("Invalid call. Usage:");
-            System.err.println("\tjava -jar DNSLookupService.jar rootServer");
+            System.err.println("\tjava -jar DNSLookupService.jar rootServer [-batch file|- [concurrency] | -server port [threads]]");
             System.err.println("where rootServer is the IP address (in dotted form) of the root DNS server to start the search at.");
+            System.err.println("With -batch, all names in the file (or standard input, if -) are resolved in parallel.");
+            System.err.println("With -server, queries received on the port (on the loopback interface) are answered until the process is stopped.");
             System.exit(1);
         }
 
@@ -45,6 +113,35 @@ public class DNSLookupService {
             System.exit(1);
         }
 
+        cache.setRefreshHandler(DNSLookupService::refresh);
+        try {
+            ResolverMetrics.getInstance().registerMBean();
+        } catch (JMException ex) {
+            System.err.println("Could not register metrics with JMX (" + ex.getMessage() + ").");
+        }
+
+        if (batchInput != null) {
+            runBatch(batchInput, batchConcurrency);
+            DNSQueryHandler.closeSocket();
+            return;
+        }
+
+        if (serverMode != null) {
+            try {
+                serverMode.start();
+                System.out.println("Listening on port " + serverMode.getPort() + " (UDP and TCP).");
+                Thread.currentThread().join();
+            } catch (IOException ex) {
+                System.err.println("Could not start server (" + ex.getMessage() + ").");
+                System.exit(1);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            serverMode.stop();
+            DNSQueryHandler.closeSocket();
+            return;
+        }
+
         Scanner in = new Scanner(System.in);
         Console console = System.console();
         do {
@@ -75,15 +172,21 @@ public class DNSLookupService {
                 break;
             else if (commandArgs[0].equalsIgnoreCase("server")) {
                 // SERVER: Change root nameserver
-                if (commandArgs.length == 2) {
+                if (commandArgs.length == 2 || commandArgs.length == 3) {
                     try {
-                        rootServer = InetAddress.getByName(commandArgs[1]);
-                        System.out.println("Root DNS server is now: " + rootServer.getHostAddress());
+                        InetAddress newRootServer = InetAddress.getByName(commandArgs[1]);
+                        if (commandArgs.length == 3)
+                            DNSQueryHandler.setServerPort(Integer.parseInt(commandArgs[2]));
+                        rootServer = newRootServer;
+                        System.out.println("Root DNS server is now: " + rootServer.getHostAddress() +
+                                (DNSQueryHandler.getServerPort() == 53 ? "" : " (port " + DNSQueryHandler.getServerPort() + ")"));
                     } catch (UnknownHostException e) {
                         System.out.println("Invalid root server (" + e.getMessage() + ").");
+                    } catch (IllegalArgumentException e) {
+                        System.out.println("Invalid port (" + e.getMessage() + ").");
                     }
                 } else {
-                    System.out.println("Invalid call. Format:\n\tserver IP");
+                    System.out.println("Invalid call. Format:\n\tserver IP [port]");
                 }
             } else if (commandArgs[0].equalsIgnoreCase("trace")) {
                 // TRACE: Turn trace setting on or off
@@ -107,39 +210,254 @@ public class DNSLookupService {
             } else if (commandArgs[0].equalsIgnoreCase("lookup") ||
                     commandArgs[0].equalsIgnoreCase("l")) {
                 // LOOKUP: Find and print all results associated to a name.
-                RecordType type;
+                // Several types (e.g., A,AAAA) are resolved concurrently.
+                List<RecordType> types = new ArrayList<>();
                 if (commandArgs.length == 2)
-                    type = RecordType.A;
+                    types.add(RecordType.A);
                 else if (commandArgs.length == 3)
                     try {
-                        type = RecordType.valueOf(commandArgs[2].toUpperCase());
+                        for (String type : commandArgs[2].split(","))
+                            types.add(RecordType.valueOf(type.toUpperCase()));
                     } catch (IllegalArgumentException ex) {
-                        System.err.println("Invalid query type. Must be one of:\n\tA, AAAA, NS, MX, CNAME");
+                        System.err.println("Invalid query type. Must be one of (or a comma-separated list of):\n\tA, AAAA, NS, MX, CNAME");
                         continue;
                     }
                 else {
-                    System.err.println("Invalid call. Format:\n\tlookup hostName [type]");
+                    System.err.println("Invalid call. Format:\n\tlookup hostName [type[,type...]]");
                     continue;
                 }
-                findAndPrintResults(commandArgs[1], type);
+                if (types.size() == 1)
+                    findAndPrintResults(commandArgs[1], types.get(0));
+                else
+                    findAndPrintResults(commandArgs[1], types);
+            } else if (commandArgs[0].equalsIgnoreCase("batch")) {
+                // BATCH: Resolve all names in a file in parallel
+                if (commandArgs.length == 2 || commandArgs.length == 3) {
+                    try {
+                        int concurrency = commandArgs.length == 3 ? Integer.parseInt(commandArgs[2]) :
+                                BatchLookup.DEFAULT_CONCURRENCY;
+                        runBatch(commandArgs[1], concurrency);
+                    } catch (NumberFormatException ex) {
+                        System.err.println("Invalid concurrency. Must be a positive integer.");
+                    }
+                } else {
+                    System.err.println("Invalid call. Format:\n\tbatch file [concurrency]");
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("save") ||
+                    commandArgs[0].equalsIgnoreCase("load")) {
+                // SAVE/LOAD: Save the cache to a snapshot file, or add records from a snapshot
+                if (commandArgs.length == 2) {
+                    try {
+                        Path file = Paths.get(commandArgs[1]);
+                        if (commandArgs[0].equalsIgnoreCase("save"))
+                            System.out.println("Saved " + CacheSnapshot.save(cache, file) + " records.");
+                        else
+                            System.out.println("Loaded " + CacheSnapshot.load(cache, file) + " records.");
+                    } catch (IOException | InvalidPathException ex) {
+                        System.err.println("Snapshot failed (" + ex.getMessage() + ").");
+                    }
+                } else {
+                    System.err.println("Invalid call. Format:\n\t" + commandArgs[0].toLowerCase() + " file");
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("autosave")) {
+                // AUTOSAVE: Periodically save the cache to a snapshot file in the background
+                if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("off")) {
+                    CacheSnapshot.stopPeriodicSave();
+                    System.out.println("Periodic snapshots are now: OFF");
+                } else if (commandArgs.length == 3) {
+                    try {
+                        long interval = Long.parseLong(commandArgs[2]);
+                        if (interval <= 0) throw new NumberFormatException();
+                        CacheSnapshot.startPeriodicSave(cache, Paths.get(commandArgs[1]), interval);
+                        System.out.println("Saving cache to " + commandArgs[1] + " every " + interval + " seconds.");
+                    } catch (NumberFormatException ex) {
+                        System.err.println("Invalid interval. Must be a positive number of seconds.");
+                    } catch (InvalidPathException ex) {
+                        System.err.println("Invalid file (" + ex.getMessage() + ").");
+                    }
+                } else {
+                    System.err.println("Invalid call. Format:\n\tautosave file seconds|off");
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("prefetch")) {
+                // PREFETCH: Turn refreshing popular records before they expire on or off
+                if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("off")) {
+                    cache.setRefreshHandler(null);
+                    System.out.println("Prefetching is now: OFF");
+                } else if (commandArgs.length >= 2 && commandArgs.length <= 3) {
+                    try {
+                        if (!commandArgs[1].equalsIgnoreCase("on"))
+                            cache.setRefreshPolicy(Double.parseDouble(commandArgs[1]), commandArgs.length == 3 ?
+                                    Integer.parseInt(commandArgs[2]) : cache.getMaxRefreshesPerSecond());
+                        cache.setRefreshHandler(DNSLookupService::refresh);
+                        System.out.printf("Prefetching is now: ON (last %.0f%% of TTL, up to %d refreshes/s)\n",
+                                100 * cache.getRefreshFraction(), cache.getMaxRefreshesPerSecond());
+                    } catch (IllegalArgumentException ex) {
+                        System.err.println("Invalid prefetch setting (" + ex.getMessage() + ").");
+                    }
+                } else {
+                    System.err.println("Invalid call. Format:\n\tprefetch on|off|fraction [maxPerSecond]");
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("stale")) {
+                // STALE: Serve expired records when a fresh answer is not obtained in time
+                if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("off")) {
+                    cache.setMaxStale(0);
+                    System.out.println("Serving stale records is now: OFF");
+                } else if (commandArgs.length >= 2 && commandArgs.length <= 3) {
+                    try {
+                        long maxStale = commandArgs[1].equalsIgnoreCase("on") ? DEFAULT_MAX_STALE_SECONDS :
+                                Long.parseLong(commandArgs[1]);
+                        long deadline = commandArgs.length == 3 ? Long.parseLong(commandArgs[2]) :
+                                staleAnswerDeadlineMillis;
+                        if (maxStale <= 0 || deadline < 0) throw new NumberFormatException();
+                        cache.setMaxStale(maxStale);
+                        staleAnswerDeadlineMillis = deadline;
+                        System.out.println("Serving stale records is now: ON (up to " + maxStale +
+                                " s after expiry, after waiting " + deadline + " ms)");
+                    } catch (NumberFormatException ex) {
+                        System.err.println("Invalid stale setting. Must be a positive number of seconds.");
+                    }
+                } else {
+                    System.err.println("Invalid call. Format:\n\tstale on|off|maxStaleSeconds [deadlineMillis]");
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("edns")) {
+                // EDNS: Change the UDP payload size advertised in queries, or disable EDNS0
+                if (commandArgs.length == 2) {
+                    try {
+                        DNSQueryHandler.setUDPPayloadSize(commandArgs[1].equalsIgnoreCase("off") ? 0 :
+                                Integer.parseInt(commandArgs[1]));
+                        int size = DNSQueryHandler.getUDPPayloadSize();
+                        System.out.println("EDNS0 is now: " + (size == 0 ? "OFF" : "ON (UDP payload size " + size + ")"));
+                    } catch (IllegalArgumentException ex) {
+                        System.err.println("Invalid UDP payload size (" + ex.getMessage() + ").");
+                    }
+                } else {
+                    System.err.println("Invalid call. Format:\n\tedns size|off");
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("serve")) {
+                // SERVE: Answer DNS queries received on a local port in the background
+                if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("off")) {
+                    if (server != null) server.stop();
+                    server = null;
+                    System.out.println("Local DNS server is now: OFF");
+                } else if (commandArgs.length == 2 || commandArgs.length == 3) {
+                    try {
+                        DNSServer newServer = new DNSServer(Integer.parseInt(commandArgs[1]), commandArgs.length == 3 ?
+                                Integer.parseInt(commandArgs[2]) : DNSServer.DEFAULT_THREADS);
+                        newServer.start();
+                        if (server != null) server.stop();
+                        server = newServer;
+                        System.out.println("Local DNS server is now listening on port " + server.getPort() + ".");
+                    } catch (IllegalArgumentException ex) {
+                        System.err.println("Invalid port or number of threads (" + ex.getMessage() + ").");
+                    } catch (IOException ex) {
+                        System.err.println("Could not start server (" + ex.getMessage() + ").");
+                    }
+                } else {
+                    System.err.println("Invalid call. Format:\n\tserve port [threads]|off");
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("servers")) {
+                // SERVERS: Print the RTT and failure statistics of each name server queried
+                ServerStatistics.getInstance().forEachServer((server, values) ->
+                        System.out.printf("%-30s srtt %8.2f ms  rttvar %8.2f ms  failures %5.2f\n",
+                                server.getHostAddress(), values[0], values[1], values[2]));
+            } else if (commandArgs[0].equalsIgnoreCase("stats")) {
+                // STATS: Print lookup latency, query, response code, cache and upstream RTT metrics
+                if (commandArgs.length == 1) {
+                    printMetrics();
+                } else {
+                    System.err.println("Invalid call. Format:\n\tstats");
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("metrics")) {
+                // METRICS: Expose the metrics over HTTP (Prometheus text format) on a local port
+                if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("off")) {
+                    if (metricsServer != null) metricsServer.stop();
+                    metricsServer = null;
+                    System.out.println("Metrics endpoint is now: OFF");
+                } else if (commandArgs.length == 2) {
+                    try {
+                        MetricsServer newServer = new MetricsServer(Integer.parseInt(commandArgs[1]));
+                        if (metricsServer != null) metricsServer.stop();
+                        metricsServer = newServer;
+                        System.out.println("Metrics are now available at http://localhost:" +
+                                metricsServer.getPort() + "/metrics");
+                    } catch (IllegalArgumentException ex) {
+                        System.err.println("Invalid port (" + ex.getMessage() + ").");
+                    } catch (IOException ex) {
+                        System.err.println("Could not start metrics endpoint (" + ex.getMessage() + ").");
+                    }
+                } else {
+                    System.err.println("Invalid call. Format:\n\tmetrics port|off");
+                }
             } else if (commandArgs[0].equalsIgnoreCase("dump")) {
-                // DUMP: Print all results still cached
-                cache.forEachNode(DNSLookupService::printResults);
+                // DUMP: Print all results still cached, or only those of a zone
+                if (commandArgs.length == 1) {
+                    cache.forEachNode(DNSLookupService::printResults);
+                } else if (commandArgs.length == 2) {
+                    cache.forEachNode(commandArgs[1], DNSLookupService::printResults);
+                } else {
+                    System.err.println("Invalid call. Format:\n\tdump [zone]");
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("flush")) {
+                // FLUSH: Remove all cached results of a zone (use . for the whole cache)
+                if (commandArgs.length == 2) {
+                    System.out.println("Flushed " + cache.flushZone(commandArgs[1]) + " records.");
+                } else {
+                    System.err.println("Invalid call. Format:\n\tflush zone");
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("cache")) {
+                // CACHE: Print cache statistics, or change the maximum number of cached records
+                if (commandArgs.length == 1) {
+                    printCacheStatistics();
+                } else if (commandArgs.length == 2) {
+                    try {
+                        cache.setMaxEntries(Integer.parseInt(commandArgs[1]));
+                        System.out.println("Cache size limit is now: " + cache.getMaxEntries());
+                    } catch (IllegalArgumentException ex) {
+                        System.err.println("Invalid cache size. Must be a positive integer.");
+                    }
+                } else {
+                    System.err.println("Invalid call. Format:\n\tcache [maxRecords]");
+                }
             } else {
                 System.err.println("Invalid command. Valid commands are:");
-                System.err.println("\tlookup fqdn [type]");
+                System.err.println("\tlookup fqdn [type[,type...]]");
                 System.err.println("\ttrace on|off");
-                System.err.println("\tserver IP");
-                System.err.println("\tdump");
+                System.err.println("\tserver IP [port]");
+                System.err.println("\tdump [zone]");
+                System.err.println("\tflush zone");
+                System.err.println("\tservers");
+                System.err.println("\tstats");
+                System.err.println("\tmetrics port|off");
+                System.err.println("\tcache [maxRecords]");
+                System.err.println("\tbatch file [concurrency]");
+                System.err.println("\tsave file");
+                System.err.println("\tload file");
+                System.err.println("\tautosave file seconds|off");
+                System.err.println("\tprefetch on|off|fraction [maxPerSecond]");
+                System.err.println("\tstale on|off|maxStaleSeconds [deadlineMillis]");
+                System.err.println("\tedns size|off");
+                System.err.println("\tserve port [threads]|off");
                 System.err.println("\tquit");
             }
 
         } while (true);
 
+        if (server != null) server.stop();
+        if (metricsServer != null) metricsServer.stop();
         DNSQueryHandler.closeSocket();
         System.out.println("Goodbye!");
     }
 
+    /**
+     * Changes the root server at which lookups start, e.g., to resolve names in a local test
+     * hierarchy.
+     *
+     * @param server The IP address of the root server.
+     */
+    static void setRootServer(InetAddress server) {
+        rootServer = server;
+    }
+
     /**
      * Finds all results for a host name and type and prints them on the standard output.
      *
@@ -148,7 +466,49 @@ public class DNSLookupService {
      */
     private static void findAndPrintResults(String hostName, RecordType type) {
         DNSNode node = new DNSNode(hostName, type);
-        printResults(node, getResults(node, 0));
+        LookupBudget budget = new LookupBudget();
+        Set<ResourceRecord> results = getResults(node, 0, budget);
+        if (results.isEmpty() && budget.getLastError() != null && !cache.isNegativeResult(node))
+            System.err.println("Lookup failed: " + budget.getLastError().getMessage());
+        printResults(node, results);
+    }
+
+    /**
+     * Finds all results for a host name and several types concurrently, and prints them on the
+     * standard output, one type after the other.
+     *
+     * @param hostName Fully qualified domain name of the host being searched.
+     * @param types    Record types for search.
+     */
+    private static void findAndPrintResults(String hostName, List<RecordType> types) {
+        LookupBudget budget = new LookupBudget();
+        Map<RecordType, Set<ResourceRecord>> results = getResults(hostName, types, budget);
+        boolean failed = budget.getLastError() != null;
+        for (Map.Entry<RecordType, Set<ResourceRecord>> entry : results.entrySet())
+            if (!entry.getValue().isEmpty() || cache.isNegativeResult(new DNSNode(hostName, entry.getKey())))
+                failed = false;
+        if (failed)
+            System.err.println("Lookup failed: " + budget.getLastError().getMessage());
+        for (Map.Entry<RecordType, Set<ResourceRecord>> entry : results.entrySet())
+            printResults(new DNSNode(hostName, entry.getKey()), entry.getValue());
+    }
+
+    /**
+     * Resolves all names listed in a file (or the standard input) in parallel, printing each
+     * result as soon as it is available.
+     *
+     * @param fileName    Name of the file with one host name (and optional type) per line, or -
+     *                    to read from the standard input.
+     * @param concurrency Maximum number of lookups running at the same time.
+     */
+    private static void runBatch(String fileName, int concurrency) {
+        try (BufferedReader input = fileName.equals("-") ?
+                new BufferedReader(new InputStreamReader(System.in)) :
+                new BufferedReader(new FileReader(fileName))) {
+            new BatchLookup(concurrency).run(input);
+        } catch (IOException | IllegalArgumentException ex) {
+            System.err.println("Batch lookup failed (" + ex.getMessage() + ").");
+        }
     }
 
     /**
@@ -162,10 +522,107 @@ public class DNSLookupService {
      *                         returns an empty set.
      * @return A set of resource records corresponding to the specific query requested.
      */
-    private static Set<ResourceRecord> getResults(DNSNode node, int indirectionLevel) {
+    static Set<ResourceRecord> getResults(DNSNode node, int indirectionLevel) {
+        return getResults(node, indirectionLevel, new LookupBudget());
+    }
+
+    /**
+     * Finds all the result for a specific node, within the time and number of queries allowed
+     * by a budget. If the lookup fails, the reason is kept as the last error of the budget.
+     *
+     * @param node             Host and record type to be used for search.
+     * @param indirectionLevel Control to limit the number of recursive calls due to CNAME redirection.
+     * @param budget           Budget shared by all queries sent for this lookup.
+     * @return A set of resource records corresponding to the specific query requested.
+     */
+    static Set<ResourceRecord> getResults(DNSNode node, int indirectionLevel, LookupBudget budget) {
+        if (indirectionLevel > 0) return findResults(node, indirectionLevel, budget);
+
+        // only complete lookups are measured, not the lookups of CNAME targets and name servers
+        long start = System.nanoTime();
+        Set<ResourceRecord> results = findResults(node, indirectionLevel, budget);
+        ResolverMetrics.getInstance().recordLookup(System.nanoTime() - start, budget.getReferrals(),
+                results.isEmpty() && budget.getLastError() != null && !cache.isNegativeResult(node));
+        return results;
+    }
+
+    /**
+     * Finds the results of several record types for the same host name (e.g., A and AAAA)
+     * concurrently, within a single budget. The lookups share the referrals from zones above the
+     * name, so only the queries to the name's own zone are sent once per type, at the same time.
+     *
+     * @param hostName Host name to be resolved.
+     * @param types    Record types to be resolved.
+     * @param budget   Budget shared by all queries sent for these lookups.
+     * @return The results of each record type, in the order of the types.
+     */
+    static Map<RecordType, Set<ResourceRecord>> getResults(String hostName, List<RecordType> types,
+                                                           LookupBudget budget) {
+        List<DNSNode> nodes = new ArrayList<>();
+        for (RecordType type : types)
+            nodes.add(new DNSNode(hostName, type));
+
+        long start = System.nanoTime();
+        List<Set<ResourceRecord>> results = findResultsConcurrently(nodes, 0, budget);
+        Map<RecordType, Set<ResourceRecord>> resultsByType = new LinkedHashMap<>();
+        boolean failed = budget.getLastError() != null;
+        for (int i = 0; i < nodes.size(); i++) {
+            resultsByType.put(types.get(i), results.get(i));
+            if (!results.get(i).isEmpty() || cache.isNegativeResult(nodes.get(i))) failed = false;
+        }
+        ResolverMetrics.getInstance().recordLookup(System.nanoTime() - start, budget.getReferrals(), failed);
+        return resultsByType;
+    }
+
+    /**
+     * Finds the results of several nodes concurrently: the first node is resolved by the calling
+     * thread, and the others by background threads. Waits for all results, but not beyond the
+     * deadline of the budget.
+     *
+     * @param nodes            Nodes to be resolved.
+     * @param indirectionLevel Indirection level of the lookups.
+     * @param budget           Budget shared by all lookups.
+     * @return The results of each node, in the order of the nodes (empty if the lookup failed).
+     */
+    private static List<Set<ResourceRecord>> findResultsConcurrently(List<DNSNode> nodes, int indirectionLevel,
+                                                                     LookupBudget budget) {
+        List<CompletableFuture<Set<ResourceRecord>>> others = new ArrayList<>();
+        for (DNSNode node : nodes.subList(1, nodes.size()))
+            others.add(CompletableFuture.supplyAsync(() -> findResults(node, indirectionLevel, budget),
+                    nameServerExecutor));
+
+        List<Set<ResourceRecord>> results = new ArrayList<>();
+        results.add(findResults(nodes.get(0), indirectionLevel, budget));
+        for (int i = 0; i < others.size(); i++) {
+            try {
+                results.add(others.get(i).get(budget.getRemainingMillis(), TimeUnit.MILLISECONDS));
+            } catch (TimeoutException e) {
+                budget.setLastError(new DNSLookupException("Timed out waiting for the lookup of " + nodes.get(i + 1)));
+                results.add(Collections.emptySet());
+            } catch (ExecutionException e) {
+                budget.setLastError(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+                results.add(Collections.emptySet());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                budget.setLastError(e);
+                results.add(Collections.emptySet());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Finds all the result for a specific node, as described in getResults.
+     *
+     * @param node             Host and record type to be used for search.
+     * @param indirectionLevel Control to limit the number of recursive calls due to CNAME redirection.
+     * @param budget           Budget shared by all queries sent for this lookup.
+     * @return A set of resource records corresponding to the specific query requested.
+     */
+    private static Set<ResourceRecord> findResults(DNSNode node, int indirectionLevel, LookupBudget budget) {
 
         if (p1Flag) { // For isolating part 1 testing only
-            retrieveResultsFromServer(node, rootServer);
+            retrieveResultsFromServer(node, rootServer, indirectionLevel, budget);
             return Collections.emptySet();
         } else if (indirectionLevel > MAX_INDIRECTION_LEVEL) {
             System.err.println("Maximum number of indirection levels reached.");
@@ -174,34 +631,146 @@ public class DNSLookupService {
 
         // TODO (PART 1/2): Implement this
 
-        // get records in cache if any
+        // names known not to exist (or to have no record of this type) are not queried again
+        if (cache.isNegativeResult(node)) return Collections.emptySet();
+
+        // get records in cache if any; a client lookup counts as a single cache hit (if its
+        // records or its CNAME records are cached) or miss, whatever else it reads from the cache
         // TODO: test other RecordTypes
-        Set<ResourceRecord> cachedResults = cache.getCachedResults(node);
+        Set<ResourceRecord> cachedResults = cache.getCachedResults(node, false);
         DNSNode cnameNode = new DNSNode(node.getHostName(), RecordType.CNAME);
-        Set<ResourceRecord> cnameCachedResults = cache.getCachedResults(cnameNode);
+        Set<ResourceRecord> cnameCachedResults = cache.getCachedResults(cnameNode, false);
+        if (indirectionLevel == 0)
+            cache.recordLookup(!cachedResults.isEmpty() || !cnameCachedResults.isEmpty());
 
-        // If no records in cache, try retrieveResultsFromServer once and load from cache again
+        // If no records in cache, query the closest zone with cached name servers (or the root)
+        // once and load from cache again
         if (cachedResults.isEmpty() && cnameCachedResults.isEmpty()) {
-            retrieveResultsFromServer(node, rootServer);
-            cachedResults = cache.getCachedResults(node);
-            cnameCachedResults = cache.getCachedResults(cnameNode);
+            if (cache.isServingStale()) {
+                Set<ResourceRecord> staleResults = resolveOrServeStale(node, indirectionLevel, budget);
+                if (!staleResults.isEmpty()) return staleResults;
+            } else
+                resolveShared(node, indirectionLevel, budget);
+            cachedResults = cache.getCachedResults(node, false);
+            cnameCachedResults = cache.getCachedResults(cnameNode, false);
+
+            // if the resolution failed, serve stale records instead (if any)
+            if (cachedResults.isEmpty() && cnameCachedResults.isEmpty() && cache.isServingStale() &&
+                    !cache.isNegativeResult(node))
+                return getStaleResults(node, indirectionLevel, budget);
         }
 
         // check for record type specified by the user
         if (!cachedResults.isEmpty()) return cachedResults;
 
-        // check any CNAME records, which might indirectly contain results
+        // check any CNAME records, which might indirectly contain results; if there are several
+        // alias targets, they are resolved concurrently
         if (!cnameCachedResults.isEmpty()) {
             Set<ResourceRecord> returnedResults = new HashSet<ResourceRecord> ();
-            for (ResourceRecord record: cnameCachedResults) {
-                DNSNode aliasNode = new DNSNode(record.getTextResult(), node.getType());
-                returnedResults.addAll(getResults(aliasNode, indirectionLevel + 1));
-            }
+            List<DNSNode> aliasNodes = new ArrayList<>();
+            for (ResourceRecord record: cnameCachedResults)
+                aliasNodes.add(new DNSNode(record.getTextResult(), node.getType()));
+            for (Set<ResourceRecord> aliasResults : findResultsConcurrently(aliasNodes, indirectionLevel + 1, budget))
+                returnedResults.addAll(aliasResults);
             return returnedResults;
         }
 
         // probably no results, but leaving it as cache.getCachedResults for now
-        return cache.getCachedResults(node);
+        return cache.getCachedResults(node, false);
+    }
+
+    /**
+     * Resolves a node that is not cached, starting at the closest zone with cached name servers
+     * (or at the root). If another lookup is already resolving the same node, this method waits
+     * for that resolution to complete instead of sending its own queries, and the results are
+     * then read from the cache. A lookup never waits for a resolution it started itself (e.g.,
+     * when the address of a name server depends on its own zone), and never waits beyond the
+     * deadline of its budget.
+     *
+     * @param node             Host name and record type to be resolved.
+     * @param indirectionLevel Indirection level of the lookup that requires this resolution.
+     * @param budget           Budget of the lookup that requires this resolution.
+     */
+    private static void resolveShared(DNSNode node, int indirectionLevel, LookupBudget budget) {
+        Resolution resolution = new Resolution(budget);
+        Resolution existing = inFlightResolutions.putIfAbsent(node, resolution);
+        if (existing == null) {
+            try {
+                String zone = cache.getClosestZone(node.getHostName());
+                if (zone == null)
+                    retrieveResultsFromServer(node, rootServer, indirectionLevel, budget);
+                else
+                    retrieveResultsFromServers(node, ServerStatistics.getInstance().rankServers(
+                            cache.getNameServerAddresses(zone)), zone, indirectionLevel, budget);
+            } finally {
+                inFlightResolutions.remove(node, resolution);
+                resolution.error.complete(budget.getLastError());
+            }
+        } else if (existing.budget != budget) {
+            try {
+                Exception error = existing.error.get(budget.getRemainingMillis(), TimeUnit.MILLISECONDS);
+                if (error != null) budget.setLastError(error);
+            } catch (TimeoutException e) {
+                budget.setLastError(new DNSLookupException("Timed out waiting for the resolution of " + node));
+            } catch (ExecutionException e) {
+                budget.setLastError(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                budget.setLastError(e);
+            }
+        }
+    }
+
+    /**
+     * Resolves a node that is not cached, but gives up waiting once the stale answer deadline is
+     * reached if stale records are available for the node (RFC 8767). In that case the stale
+     * records are returned, and the resolution continues in the background so the cache is
+     * updated for the next lookup.
+     *
+     * @param node             Host name and record type to be resolved.
+     * @param indirectionLevel Indirection level of the lookup that requires this resolution.
+     * @param budget           Budget of the lookup that requires this resolution.
+     * @return The stale records served, or an empty set if the resolution completed (in which
+     *         case its results are in the cache).
+     */
+    private static Set<ResourceRecord> resolveOrServeStale(DNSNode node, int indirectionLevel, LookupBudget budget) {
+        CompletableFuture<Void> resolution = CompletableFuture.runAsync(
+                () -> resolveShared(node, indirectionLevel, budget), nameServerExecutor);
+        try {
+            resolution.get(staleAnswerDeadlineMillis, TimeUnit.MILLISECONDS);
+            return Collections.emptySet();
+        } catch (TimeoutException e) {
+            Set<ResourceRecord> staleResults = getStaleResults(node, indirectionLevel, budget);
+            if (!staleResults.isEmpty()) return staleResults;
+            resolution.join();
+        } catch (ExecutionException e) {
+            budget.setLastError(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            budget.setLastError(e);
+        }
+        return Collections.emptySet();
+    }
+
+    /**
+     * Returns the stale records of a node, following stale CNAME records if the node itself has
+     * no stale records.
+     *
+     * @param node             Host name and record type to be searched.
+     * @param indirectionLevel Indirection level of the lookup that requires these records.
+     * @param budget           Budget of the lookup that requires these records.
+     * @return A potentially empty set of stale records.
+     */
+    private static Set<ResourceRecord> getStaleResults(DNSNode node, int indirectionLevel, LookupBudget budget) {
+        Set<ResourceRecord> staleResults = cache.getStaleResults(node);
+        if (!staleResults.isEmpty()) return staleResults;
+
+        Set<ResourceRecord> aliasResults = new HashSet<>();
+        for (ResourceRecord record : cache.getStaleResults(new DNSNode(node.getHostName(), RecordType.CNAME))) {
+            DNSNode aliasNode = new DNSNode(record.getTextResult(), node.getType());
+            aliasResults.addAll(getResults(aliasNode, indirectionLevel + 1, budget));
+        }
+        return aliasResults;
     }
 
     /**
@@ -209,26 +778,138 @@ public class DNSLookupService {
      * and the query is repeated with a new server if the provided one is non-authoritative.
      * Results are stored in the cache.
      *
-     * @param node   Host name and record type to be used for the query.
-     * @param server Address of the server to be used for the query.
+     * @param node             Host name and record type to be used for the query.
+     * @param server           Address of the server to be used for the query, which must be a
+     *                         root server.
+     * @param indirectionLevel Indirection level of the lookup that requires this query.
+     * @param budget           Budget of the lookup that requires this query.
      */
-    private static void retrieveResultsFromServer(DNSNode node, InetAddress server) {
-        byte[] message = new byte[512]; // query is no longer than 512 bytes
+    private static void retrieveResultsFromServer(DNSNode node, InetAddress server, int indirectionLevel,
+                                                  LookupBudget budget) {
+        retrieveResultsFromServers(node, Collections.singletonList(server), ROOT_ZONE, indirectionLevel, budget);
+    }
+
+    /**
+     * Retrieves DNS results from one of a list of equivalent DNS servers (e.g., the name servers
+     * of a zone). The query is sent to the first server, and hedged to the following servers if
+     * the first one is slow to respond. Queries are sent in iterative mode, and the query is
+     * repeated with a new server if the one that responded is non-authoritative. Results are
+     * stored in the cache. If no server responds, the error is kept in the budget.
+     *
+     * A zone that is at least two labels above the host name is expected to refer the query to
+     * a subzone, whatever the record type. If another lookup of the same host name (e.g., for
+     * another record type) is already querying the same zone, this lookup waits for that
+     * response and continues from the subzone it refers to, instead of sending the same query.
+     *
+     * @param node             Host name and record type to be used for the query.
+     * @param servers          Addresses of the servers that may be used for the query, best first.
+     * @param zone             Zone whose servers are queried (an empty string for the root).
+     * @param indirectionLevel Indirection level of the lookup that requires this query.
+     * @param budget           Budget of the lookup that requires this query.
+     */
+    private static void retrieveResultsFromServers(DNSNode node, List<InetAddress> servers, String zone,
+                                                   int indirectionLevel, LookupBudget budget) {
+        String referralKey = null;
+        CompletableFuture<Void> referral = null;
+        if (!p1Flag && labelCount(node.getHostName()) - labelCount(zone) >= 2) {
+            referralKey = node.getHostName().toLowerCase() + " " + zone.toLowerCase();
+            referral = new CompletableFuture<>();
+            CompletableFuture<Void> existing = inFlightReferrals.putIfAbsent(referralKey, referral);
+            if (existing != null) {
+                referral = null;
+                if (awaitSharedReferral(node, zone, existing, indirectionLevel, budget)) return;
+            }
+        }
 
         try {
-            DNSServerResponse serverResponse = DNSQueryHandler.buildAndSendQuery(message, server, node);
+            DNSServerResponse serverResponse = DNSQueryHandler.sendHedgedQuery(servers, node, budget).get();
 
-            Set<ResourceRecord> nameservers = DNSQueryHandler.decodeAndCacheResponse(serverResponse.getTransactionID(),
-                    serverResponse.getResponse(),
-                    cache);
-            if (nameservers == null) nameservers = Collections.emptySet();
+            // a response with answers (or CNAMEs) ends the iteration, even if equivalent records
+            // were already cached (e.g., when refreshing a node before it expires)
+            boolean answered = new DNSMessageView().wrap(serverResponse.getResponse())
+                    .getCount(DNSMessageView.ANSWER) > 0;
+            Set<ResourceRecord> nameservers;
+            try {
+                nameservers = DNSQueryHandler.decodeAndCacheResponse(serverResponse.getTransactionID(),
+                        serverResponse.getResponse(),
+                        cache);
+            } finally {
+                DNSQueryHandler.releaseResponse(serverResponse);
+                // the referral (if any) is cached, so lookups waiting for it may continue
+                completeSharedReferral(referralKey, referral);
+            }
 
             if (p1Flag) return; // For testing part 1 only
+            if (answered) return;
 
             // we might not need to query the next level, queryNextLevel be responsible for checking
-            queryNextLevel(node, nameservers);
+            queryNextLevel(node, nameservers, indirectionLevel, budget);
 
-        } catch (IOException | NullPointerException ignored){}
+        } catch (ExecutionException e) {
+            budget.setLastError(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+        } catch (DNSLookupException e) {
+            budget.setLastError(e);
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            budget.setLastError(new DNSLookupException("Malformed response for " + node, e));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            budget.setLastError(e);
+        } finally {
+            completeSharedReferral(referralKey, referral);
+        }
+    }
+
+    /**
+     * Waits for another lookup of the same host name to receive the response of a zone, then
+     * continues the resolution from the closest zone cached, if the response was a referral to
+     * a subzone (or a negative response for the name).
+     *
+     * @param node             Host name and record type being resolved.
+     * @param zone             Zone queried by the other lookup.
+     * @param referral         Future completed once the other lookup has cached the response.
+     * @param indirectionLevel Indirection level of the lookup that requires this query.
+     * @param budget           Budget of the lookup that requires this query.
+     * @return true if the resolution was continued (or is complete), or false if this lookup
+     *         must send its own query to the zone.
+     */
+    private static boolean awaitSharedReferral(DNSNode node, String zone, CompletableFuture<Void> referral,
+                                               int indirectionLevel, LookupBudget budget) {
+        try {
+            referral.get(budget.getRemainingMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            budget.setLastError(e);
+            return true;
+        }
+        if (cache.isNegativeResult(node)) return true;
+
+        String closestZone = cache.getClosestZone(node.getHostName());
+        if (closestZone == null || labelCount(closestZone) <= labelCount(zone)) return false;
+        budget.recordReferral();
+        retrieveResultsFromServers(node, ServerStatistics.getInstance().rankServers(
+                cache.getNameServerAddresses(closestZone)), closestZone, indirectionLevel, budget);
+        return true;
+    }
+
+    private static void completeSharedReferral(String referralKey, CompletableFuture<Void> referral) {
+        if (referral == null) return;
+        inFlightReferrals.remove(referralKey, referral);
+        referral.complete(null);
+    }
+
+    /**
+     * Returns the number of labels of a name, e.g., 3 for www.example.com (and 0 for the root).
+     *
+     * @param name Name with or without a trailing dot.
+     * @return The number of labels of the name.
+     */
+    private static int labelCount(String name) {
+        int count = 0;
+        for (int i = 0; i < name.length(); i++)
+            if (name.charAt(i) == '.' && i + 1 < name.length()) count++;
+        return name.isEmpty() || name.equals(".") ? 0 : count + 1;
     }
 
     /**
@@ -236,43 +917,130 @@ public class DNSLookupService {
      *
      * @param node        Host name and record type of the query.
      * @param nameservers List of name servers returned from the previous level to query the next level.
+     * @param indirectionLevel Indirection level of the lookup that requires this query. Name servers
+     *                         without glue are resolved with the next indirection level.
+     * @param budget      Budget of the lookup that requires this query.
      */
-    private static void queryNextLevel(DNSNode node, Set<ResourceRecord> nameservers) {
+    private static void queryNextLevel(DNSNode node, Set<ResourceRecord> nameservers, int indirectionLevel,
+                                       LookupBudget budget) {
         // TODO (PART 2): Implement this
 
-        // if we've collected A, AAAA, or CNAME records for node, return
-        DNSNode cnameNode = new DNSNode(node.getHostName(), RecordType.CNAME);
-        if (!(cache.getCachedResults(node).isEmpty() && cache.getCachedResults(cnameNode).isEmpty())) return;
+        // if the server indicated the name (or type) does not exist, there is nothing else to query
+        if (cache.isNegativeResult(node)) return;
        
-        // ns is a record with only host names and no ip, need to find 
+        // ns is a record with only host names and no ip, need to find
         // the IP address of it either from the cache or by doing another query
-        ResourceRecord selectedNS = null;
-
-        // get from cache or from query
+        List<InetAddress> candidates = new ArrayList<>();
         for (ResourceRecord hostnameNS: nameservers) {
             // this record should have an IPv4 address
             DNSNode nsNode = new DNSNode (hostnameNS.getTextResult(), RecordType.A);
-            Set<ResourceRecord> cachedNS = cache.getCachedResults(nsNode);
+            addAddresses(candidates, cache.getCachedResults(nsNode, false));
+        }
 
-            if (!cachedNS.isEmpty()) {
-                // just need to pick one ns
-                selectedNS = cachedNS.iterator().next();
-                break;
-            } else if (selectedNS == null) {
-                Set<ResourceRecord> nsResults = getResults(nsNode, 0);
-                if (!nsResults.isEmpty()) {
-                    // just need to pick one ns
-                    selectedNS = nsResults.iterator().next();
-                }
-            }
+        // no glue for any of the nameservers, resolve them in parallel and use the first one
+        // that has an address
+        if (candidates.isEmpty() && !nameservers.isEmpty()) {
+            candidates = resolveNameServers(nameservers, indirectionLevel + 1, budget);
         }
 
-        // if any of the nameservers can be resolved, query next level
-        if (selectedNS != null) {
-            retrieveResultsFromServer(node, selectedNS.getInetResult());
+        // if any of the nameservers can be resolved, query next level using the best ones
+        if (!candidates.isEmpty()) {
+            budget.recordReferral();
+            String zone = nameservers.isEmpty() ? ROOT_ZONE : nameservers.iterator().next().getHostName();
+            retrieveResultsFromServers(node, ServerStatistics.getInstance().rankServers(candidates), zone,
+                    indirectionLevel, budget);
         }
     }
 
+    /**
+     * Resolves the addresses of a set of name servers in parallel, and returns the addresses of
+     * the first name server that is resolved successfully.
+     *
+     * @param nameservers      NS records whose host names should be resolved.
+     * @param indirectionLevel Indirection level used for the name server lookups.
+     * @param budget           Budget of the lookup that requires the name servers, shared by
+     *                         the name server lookups.
+     * @return The addresses of the first name server resolved, or an empty list if none of them
+     *         could be resolved before the deadline of the budget.
+     */
+    private static List<InetAddress> resolveNameServers(Set<ResourceRecord> nameservers, int indirectionLevel,
+                                                        LookupBudget budget) {
+        CompletableFuture<List<InetAddress>> first = new CompletableFuture<>();
+        List<CompletableFuture<Void>> lookups = new ArrayList<>();
+        for (ResourceRecord hostnameNS: nameservers) {
+            if (lookups.size() == MAX_PARALLEL_NS_LOOKUPS) break;
+            DNSNode nsNode = new DNSNode (hostnameNS.getTextResult(), RecordType.A);
+            lookups.add(CompletableFuture.runAsync(() -> {
+                List<InetAddress> addresses = new ArrayList<>();
+                addAddresses(addresses, getResults(nsNode, indirectionLevel, budget));
+                if (!addresses.isEmpty()) first.complete(addresses);
+            }, nameServerExecutor));
+        }
+        CompletableFuture.allOf(lookups.toArray(new CompletableFuture<?>[0]))
+                .whenComplete((result, error) -> first.complete(Collections.emptyList()));
+        try {
+            return first.get(budget.getRemainingMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            budget.setLastError(new DNSLookupException("Timed out resolving the addresses of the name servers"));
+        } catch (ExecutionException e) {
+            budget.setLastError(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            budget.setLastError(e);
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Adds the addresses of a set of A (or AAAA) records to a list of addresses.
+     *
+     * @param addresses List to which the addresses are added.
+     * @param records   Records whose addresses should be added.
+     */
+    private static void addAddresses(List<InetAddress> addresses, Set<ResourceRecord> records) {
+        for (ResourceRecord record : records)
+            if (record.getInetResult() != null)
+                addresses.add(record.getInetResult());
+    }
+
+    /**
+     * Prints the size of the cache and its hit, miss and eviction counters.
+     */
+    private static void printCacheStatistics() {
+        long hits = cache.getHitCount();
+        long misses = cache.getMissCount();
+        System.out.printf("Records: %d/%d Hits: %d Misses: %d Hit ratio: %.1f%% Evictions: %d Prefetches: %d Stale: %d\n",
+                cache.size(), cache.getMaxEntries(), hits, misses,
+                hits + misses == 0 ? 0.0 : 100.0 * hits / (hits + misses), cache.getEvictionCount(),
+                cache.getRefreshCount(), cache.getStaleCount());
+    }
+
+    /**
+     * Prints the resolver metrics: lookup latency and referrals, queries sent, response codes,
+     * cache counters and the RTT of each upstream server. Latencies are printed in milliseconds.
+     */
+    private static void printMetrics() {
+        ResolverMetrics metrics = ResolverMetrics.getInstance();
+        Histogram latency = metrics.getLookupLatency();
+        System.out.printf("Lookups: %d Failures: %d Latency: mean %.2f p50 %.2f p90 %.2f p99 %.2f p99.9 %.2f max %.2f ms\n",
+                metrics.getLookups(), metrics.getLookupFailures(), latency.getMean() / 1000,
+                latency.getPercentile(0.5) / 1000.0, latency.getPercentile(0.9) / 1000.0,
+                latency.getPercentile(0.99) / 1000.0, latency.getPercentile(0.999) / 1000.0,
+                latency.getMax() / 1000.0);
+        Histogram referrals = metrics.getReferrals();
+        System.out.printf("Referrals per lookup: mean %.2f p50 %d p99 %d max %d\n", referrals.getMean(),
+                referrals.getPercentile(0.5), referrals.getPercentile(0.99), referrals.getMax());
+        System.out.printf("Queries: %d UDP, %d TCP Timeouts: %d Responses: %s\n", metrics.getQueriesSent(),
+                metrics.getTcpQueriesSent(), metrics.getTimeouts(), metrics.getResponseCodes());
+        System.out.printf("Cache: Hits: %d Misses: %d Hit ratio: %.1f%% Inserts: %d Expirations: %d Evictions: %d\n",
+                metrics.getCacheHits(), metrics.getCacheMisses(), 100 * metrics.getCacheHitRatio(),
+                metrics.getCacheInserts(), metrics.getCacheExpirations(), metrics.getCacheEvictions());
+        metrics.getServerRtt().forEach((server, rtt) ->
+                System.out.printf("%-30s responses %6d  rtt p50 %8.2f p99 %8.2f max %8.2f ms\n",
+                        server.getHostAddress(), rtt.getCount(), rtt.getPercentile(0.5) / 1000.0,
+                        rtt.getPercentile(0.99) / 1000.0, rtt.getMax() / 1000.0));
+    }
+
     /**
      * Prints the result of a DNS query.
      *
@@ -280,12 +1048,27 @@ public class DNSLookupService {
      * @param results Set of results to be printed for the node.
      */
     private static void printResults(DNSNode node, Set<ResourceRecord> results) {
+        System.out.print(formatResults(node, results));
+    }
+
+    /**
+     * Formats the result of a DNS query, with one line per record, in the format used by
+     * printResults.
+     *
+     * @param node    Host name and record type used for the query.
+     * @param results Set of results to be formatted for the node.
+     * @return The formatted results, including a line terminator after each record.
+     */
+    static String formatResults(DNSNode node, Set<ResourceRecord> results) {
+        StringBuilder output = new StringBuilder();
+        Formatter formatter = new Formatter(output);
         if (results.isEmpty())
-            System.out.printf("%-30s %-5s %-8d %s\n", node.getHostName(),
+            formatter.format("%-30s %-5s %-8d %s\n", node.getHostName(),
                     node.getType(), -1, "0.0.0.0");
         for (ResourceRecord record : results) {
-            System.out.printf("%-30s %-5s %-8d %s\n", node.getHostName(),
+            formatter.format("%-30s %-5s %-8d %s\n", node.getHostName(),
                     node.getType(), record.getTTL(), record.getTextResult());
         }
+        return output.toString();
     }
 }
@@ -0,0 +1,190 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Builds a DNS message in wire format, e.g., a response sent by the local DNS server. Names are
+ * compressed (RFC 1035, section 4.1.4): each name suffix written to the message is remembered,
+ * and later occurrences of the same suffix (in owner names or in the RDATA of CNAME and NS
+ * records) are replaced by a pointer to the first one. Suffixes are compared case-insensitively.
+ *
+ * The message is written sequentially: the header first, then the question and the records of
+ * each section, in order. Section counts may be updated at any time.
+ */
+public class DNSMessageBuilder {
+
+    private static final int MAX_POINTER_OFFSET = 0x3FFF;
+    private static final int CLASS_IN = 1;
+
+    private final ByteBuffer buffer;
+    private final Map<String, Integer> nameOffsets = new HashMap<>();
+
+    /** Creates a builder for a message of up to a specific size.
+     *
+     * @param capacity Maximum size of the message, in bytes.
+     */
+    public DNSMessageBuilder(int capacity) {
+        this.buffer = ByteBuffer.allocate(capacity);
+    }
+
+    /** Writes the header of the message, with all section counts set to zero.
+     *
+     * @param transactionID Transaction ID of the message.
+     * @param flags         Second and third bytes of the header (QR, opcode, AA, TC, RD, RA and
+     *                      RCODE).
+     * @return This builder.
+     */
+    public DNSMessageBuilder writeHeader(int transactionID, int flags) {
+        buffer.clear();
+        nameOffsets.clear();
+        buffer.putShort((short) transactionID);
+        buffer.putShort((short) flags);
+        for (int i = 0; i < 4; i++)
+            buffer.putShort((short) 0);
+        return this;
+    }
+
+    /** Changes the number of entries of a section in the header.
+     *
+     * @param section One of DNSMessageView.QUESTION, ANSWER, AUTHORITY or ADDITIONAL.
+     * @param count   Number of entries in the section.
+     * @return This builder.
+     */
+    public DNSMessageBuilder setCount(int section, int count) {
+        buffer.putShort(4 + 2 * section, (short) count);
+        return this;
+    }
+
+    /** Writes a question (name, type and class IN).
+     *
+     * @param hostName Name being queried.
+     * @param typeCode Code of the record type being queried.
+     * @return This builder.
+     */
+    public DNSMessageBuilder writeQuestion(String hostName, int typeCode) {
+        writeName(hostName);
+        buffer.putShort((short) typeCode);
+        buffer.putShort((short) CLASS_IN);
+        return this;
+    }
+
+    /** Writes a resource record, using its remaining TTL. Only records whose RDATA can be
+     * rebuilt from a ResourceRecord (A, AAAA, CNAME and NS) are supported.
+     *
+     * @param record Record to be written.
+     * @return This builder.
+     * @throws IllegalArgumentException if the record type is not supported.
+     */
+    public DNSMessageBuilder writeRecord(ResourceRecord record) {
+        writeName(record.getHostName());
+        buffer.putShort((short) record.getType().getCode());
+        buffer.putShort((short) CLASS_IN);
+        buffer.putInt((int) Math.max(0, record.getTTL()));
+        int lengthPos = buffer.position();
+        buffer.putShort((short) 0);
+        switch (record.getType()) {
+            case A:
+            case AAAA:
+                buffer.put(record.getAddressData());
+                break;
+            case CNAME:
+            case NS:
+                writeName(record.getTextResult());
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported record type: " + record.getType());
+        }
+        buffer.putShort(lengthPos, (short) (buffer.position() - lengthPos - 2));
+        return this;
+    }
+
+    /** Writes an SOA record for a zone, e.g., in the authority section of a negative response
+     * (RFC 2308). The serial, refresh, retry and expire fields are fixed; only the MINIMUM field,
+     * which limits the TTL of negative results, is meaningful to resolvers.
+     *
+     * @param zone       Name of the zone.
+     * @param ttl        TTL of the record, in seconds.
+     * @param minimumTTL MINIMUM field of the record, in seconds.
+     * @return This builder.
+     */
+    public DNSMessageBuilder writeSoaRecord(String zone, long ttl, long minimumTTL) {
+        writeName(zone);
+        buffer.putShort((short) RecordType.SOA.getCode());
+        buffer.putShort((short) CLASS_IN);
+        buffer.putInt((int) ttl);
+        int lengthPos = buffer.position();
+        buffer.putShort((short) 0);
+        writeName(zone.isEmpty() || zone.equals(".") ? "ns" : "ns." + zone);
+        writeName(zone.isEmpty() || zone.equals(".") ? "hostmaster" : "hostmaster." + zone);
+        buffer.putInt(1);     // SERIAL
+        buffer.putInt(3600);  // REFRESH
+        buffer.putInt(600);   // RETRY
+        buffer.putInt(86400); // EXPIRE
+        buffer.putInt((int) minimumTTL);
+        buffer.putShort(lengthPos, (short) (buffer.position() - lengthPos - 2));
+        return this;
+    }
+
+    /** Writes an OPT pseudo-record (RFC 6891) advertising a UDP payload size.
+     *
+     * @param udpPayloadSize UDP payload size, in bytes.
+     * @return This builder.
+     */
+    public DNSMessageBuilder writeOptRecord(int udpPayloadSize) {
+        buffer.put((byte) 0);
+        buffer.putShort((short) 41);
+        buffer.putShort((short) udpPayloadSize);
+        buffer.putInt(0);
+        buffer.putShort((short) 0);
+        return this;
+    }
+
+    /** Writes a (possibly compressed) domain name.
+     *
+     * @param hostName Name to be written, with or without a trailing dot.
+     * @return This builder.
+     */
+    public DNSMessageBuilder writeName(String hostName) {
+        String name = hostName.endsWith(".") ? hostName.substring(0, hostName.length() - 1) : hostName;
+        int labelStart = 0;
+        while (labelStart < name.length()) {
+            String suffix = name.substring(labelStart).toLowerCase();
+            Integer offset = nameOffsets.get(suffix);
+            if (offset != null) {
+                buffer.putShort((short) (0xC000 | offset));
+                return this;
+            }
+            if (buffer.position() <= MAX_POINTER_OFFSET)
+                nameOffsets.put(suffix, buffer.position());
+
+            int labelEnd = name.indexOf('.', labelStart);
+            if (labelEnd < 0) labelEnd = name.length();
+            buffer.put((byte) (labelEnd - labelStart));
+            for (int i = labelStart; i < labelEnd; i++)
+                buffer.put((byte) name.charAt(i));
+            labelStart = labelEnd + 1;
+        }
+        buffer.put((byte) 0);
+        return this;
+    }
+
+    /** Returns the size of the message written so far.
+     *
+     * @return The number of bytes written, including the header.
+     */
+    public int size() {
+        return buffer.position();
+    }
+
+    /** Returns the message written so far. The returned buffer shares its content with this
+     * builder, and must not be used after the builder is reused.
+     *
+     * @return A buffer whose position is 0 and whose limit is the size of the message.
+     */
+    public ByteBuffer getMessage() {
+        ByteBuffer message = buffer.duplicate();
+        message.flip();
+        return message;
+    }
+}
@@ -0,0 +1,189 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.nio.ByteBuffer;
+
+/** A flyweight, read-only view of a DNS message in wire format. The view reads the header and
+ * walks the resource records directly over the underlying buffer (which may be a direct buffer)
+ * using absolute reads, without copying the message or allocating any object. Owner names and
+ * RDATA are exposed as offsets into the buffer, so callers only decode the records they actually
+ * need. A view may be reused for another message by calling wrap again.
+ *
+ * Reading past the end of the message (e.g., in a malformed or truncated response) results in an
+ * IndexOutOfBoundsException.
+ */
+public class DNSMessageView {
+
+    public static final int QUESTION = 0;
+    public static final int ANSWER = 1;
+    public static final int AUTHORITY = 2;
+    public static final int ADDITIONAL = 3;
+
+    private static final int HEADER_SIZE = 12;
+
+    private ByteBuffer buffer;
+    private int base;
+    private int section;
+    private int remainingInSection;
+    private int nextPos;
+    private int namePos;
+    private int rdataPos;
+
+    /** Makes this view refer to a new message, starting at the current position of the buffer.
+     * The position and limit of the buffer are not changed. The view is positioned before the
+     * first answer record (i.e., the question section is skipped).
+     *
+     * @param buffer Buffer containing the message.
+     * @return This view.
+     */
+    public DNSMessageView wrap(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.base = buffer.position();
+        int pos = HEADER_SIZE;
+        for (int i = getCount(QUESTION); i > 0; i--)
+            pos = skipName(pos) + 4;
+        this.nextPos = pos;
+        this.section = QUESTION;
+        this.remainingInSection = 0;
+        return this;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /** Returns the offset of the first byte of the message in the underlying buffer. All other
+     * offsets returned by this view are relative to this offset.
+     *
+     * @return The position of the message in the buffer.
+     */
+    public int getBase() {
+        return base;
+    }
+
+    public int getTransactionID() {
+        return getShort(0);
+    }
+
+    public boolean isResponse() {
+        return (getByte(2) & 0x80) != 0;
+    }
+
+    public boolean isAuthoritative() {
+        return (getByte(2) & 0x04) != 0;
+    }
+
+    public boolean isTruncated() {
+        return (getByte(2) & 0x02) != 0;
+    }
+
+    public int getResponseCode() {
+        return getByte(3) & 0x0F;
+    }
+
+    /** Returns the number of entries in a section, as indicated in the header.
+     *
+     * @param section One of QUESTION, ANSWER, AUTHORITY or ADDITIONAL.
+     * @return The number of entries in the section.
+     */
+    public int getCount(int section) {
+        return getShort(4 + 2 * section);
+    }
+
+    /** Returns the offset of the name of the first question.
+     *
+     * @return Offset of the question name, relative to the start of the message.
+     */
+    public int getQuestionNameOffset() {
+        return HEADER_SIZE;
+    }
+
+    /** Advances to the next resource record, moving on to the next section once all records of
+     * the current section have been read.
+     *
+     * @return true if the view is now positioned on a record, or false if there are no more
+     *         records in the message.
+     */
+    public boolean nextRecord() {
+        while (remainingInSection == 0) {
+            if (section == ADDITIONAL) return false;
+            section++;
+            remainingInSection = getCount(section);
+        }
+        remainingInSection--;
+        namePos = nextPos;
+        rdataPos = skipName(namePos) + 10;
+        nextPos = rdataPos + getRecordDataLength();
+        return true;
+    }
+
+    /** Returns the section of the current record.
+     *
+     * @return One of ANSWER, AUTHORITY or ADDITIONAL.
+     */
+    public int getSection() {
+        return section;
+    }
+
+    /** Returns the offset of the owner name of the current record. The name may be decoded
+     * with DomainNameParser.
+     *
+     * @return Offset of the owner name, relative to the start of the message.
+     */
+    public int getNameOffset() {
+        return namePos;
+    }
+
+    public int getTypeCode() {
+        return getShort(rdataPos - 10);
+    }
+
+    public int getRecordClass() {
+        return getShort(rdataPos - 8);
+    }
+
+    public long getTTL() {
+        return getInt(rdataPos - 6) & 0xFFFFFFFFL;
+    }
+
+    /** Returns the offset of the RDATA of the current record.
+     *
+     * @return Offset of the RDATA, relative to the start of the message.
+     */
+    public int getRecordDataOffset() {
+        return rdataPos;
+    }
+
+    public int getRecordDataLength() {
+        return getShort(rdataPos - 2);
+    }
+
+    /** Copies the RDATA of the current record into an array, e.g., to build an address.
+     *
+     * @param destination Array with exactly getRecordDataLength() elements.
+     */
+    public void copyRecordData(byte[] destination) {
+        for (int i = 0; i < destination.length; i++)
+            destination[i] = buffer.get(base + rdataPos + i);
+    }
+
+    public int getByte(int offset) {
+        return buffer.get(base + offset) & 0xFF;
+    }
+
+    public int getShort(int offset) {
+        return buffer.getShort(base + offset) & 0xFFFF;
+    }
+
+    public int getInt(int offset) {
+        return buffer.getInt(base + offset);
+    }
+
+    /** Returns the offset immediately after a (possibly compressed) name, without decoding it.
+     *
+     * @param offset Offset of the name.
+     * @return Offset of the first byte after the name.
+     */
+    public int skipName(int offset) {
+        return offset + DomainNameParser.nameLength(buffer, base, offset);
+    }
+}
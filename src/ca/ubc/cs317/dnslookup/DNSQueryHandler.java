@@ -3,35 +3,158 @@ package ca.ubc.cs317.dnslookup;
 import java.io.IOException;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
-import java.util.Random;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
-
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Sends DNS queries and decodes their responses. Queries are sent over a single non-blocking
+ * UDP channel, and a background thread receives all responses and hands each of them to the
+ * caller waiting for it, based on the transaction ID and the address of the server. Any number
+ * of queries may therefore be outstanding at the same time, each with its own timeout.
+ *
+ * Queries and responses are stored in pooled direct buffers, and the encoded question of each
+ * node is cached, so sending a query does not encode the host name again.
+ *
+ * A query may also be hedged across several servers of the same zone, so that a slow or
+ * unresponsive server only delays the response by a fraction of the timeout. Lost queries are
+ * retransmitted after a timeout computed from each server's measured RTT, with exponential
+ * backoff, within the time and query budget of the lookup.
+ *
+ * Queries advertise a larger UDP payload size with an EDNS0 OPT record (RFC 6891), and the
+ * receive buffers are sized to match. Responses that are still truncated (TC bit set) are
+ * retried over TCP, using a pool of persistent connections on which queries are pipelined.
+ */
 public class DNSQueryHandler {
 
     private static final int DEFAULT_DNS_PORT = 53;
-    private static DatagramSocket socket;
+    private static final int QUERY_TIMEOUT_MILLIS = 5000;
+    private static final int RCODE_NO_ERROR = 0;
+    private static final int RCODE_NAME_ERROR = 3;
+    static final int MAX_QUERY_SIZE = 512;
+    private static final int DEFAULT_UDP_PAYLOAD_SIZE = 1232;
+    private static final int MIN_UDP_PAYLOAD_SIZE = 512;
+    private static final int MAX_UDP_PAYLOAD_SIZE = 4096;
+    private static final int OPT_RECORD_SIZE = 11;
+    private static final int OPT_TYPE_CODE = 41;
+    private static final int MAX_TCP_CONNECTIONS_PER_SERVER = 2;
+    private static final int MAX_PIPELINED_QUERIES = 32;
+    private static final long TCP_IDLE_TIMEOUT_MILLIS = 30_000;
+    private static final int MAX_IDLE_BUFFERS = 1024;
+    private static final int MAX_QUERY_TEMPLATES = 10_000;
+    private static final int MAX_HEDGED_QUERIES = 3;
+    private static final int MAX_TRANSMISSIONS = 5;
+    private static final long MIN_HEDGE_DELAY_MILLIS = 10;
+    private static final long DEFAULT_HEDGE_DELAY_MILLIS = 200;
+    private static DatagramChannel channel;
+    private static Selector selector;
+    private static TcpConnectionPool tcpConnections;
     private static boolean verboseTracing = false;
+    private static volatile int udpPayloadSize = DEFAULT_UDP_PAYLOAD_SIZE;
+    private static volatile int serverPort = DEFAULT_DNS_PORT;
+
+    private static final ConcurrentMap<QueryKey, CompletableFuture<DNSServerResponse>> pendingQueries =
+            new ConcurrentHashMap<>();
+    private static final int MAX_LABEL_LENGTH = 63;
+    private static final int MAX_NAME_LENGTH = 255;
+    private static final ConcurrentMap<DNSNode, QueryTemplate> queryTemplates = new ConcurrentHashMap<>();
+    private static final AtomicBoolean sweepingTemplates = new AtomicBoolean();
+    private static final BufferPool sendBuffers = new BufferPool(MAX_QUERY_SIZE, MAX_IDLE_BUFFERS);
+    private static volatile BufferPool receiveBuffers = new BufferPool(DEFAULT_UDP_PAYLOAD_SIZE, MAX_IDLE_BUFFERS);
+    private static final ScheduledExecutorService hedgeScheduler =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "dns-hedge");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /** Identifies an outstanding query by the server it was sent to and its transaction ID.
+     */
+    private static final class QueryKey {
+        private final SocketAddress server;
+        private final int transactionID;
+
+        private QueryKey(SocketAddress server, int transactionID) {
+            this.server = server;
+            this.transactionID = transactionID;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
 
-    private static final Random random = new Random();
+            QueryKey queryKey = (QueryKey) o;
+            return transactionID == queryKey.transactionID && server.equals(queryKey.server);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * server.hashCode() + transactionID;
+        }
+    }
+
+    /** The encoded query of a node, and whether it was used since the templates were last swept.
+     */
+    private static final class QueryTemplate {
+        private final byte[] message;
+        private volatile boolean recentlyUsed;
+
+        private QueryTemplate(byte[] message) {
+            this.message = message;
+        }
+    }
 
     /**
-     * Sets up the socket and set the timeout to 5 seconds
+     * Opens the UDP channel used for all queries and starts the thread receiving responses. The
+     * pool of TCP connections used for truncated responses is also created (without opening any
+     * connection yet).
      *
      * @throws SocketException if the socket could not be opened, or if there was an
      *                         error with the underlying protocol
      */
     public static void openSocket() throws SocketException {
-        socket = new DatagramSocket();
-        socket.setSoTimeout(5000);
+        try {
+            channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+            channel.bind(null);
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+            tcpConnections = new TcpConnectionPool(MAX_TCP_CONNECTIONS_PER_SERVER, MAX_PIPELINED_QUERIES,
+                    TCP_IDLE_TIMEOUT_MILLIS);
+        } catch (IOException ex) {
+            SocketException socketException = new SocketException(ex.getMessage());
+            socketException.initCause(ex);
+            throw socketException;
+        }
+        Thread receiver = new Thread(DNSQueryHandler::receiveResponses, "dns-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
     }
 
     /**
-     * Closes the socket
+     * Closes the socket. Queries still waiting for a response fail immediately.
      */
     public static void closeSocket() {
-        socket.close();
+        try {
+            selector.close();
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        tcpConnections.close();
+        ClosedChannelException closed = new ClosedChannelException();
+        pendingQueries.values().forEach(future -> future.completeExceptionally(closed));
+        pendingQueries.clear();
     }
 
     /**
@@ -42,267 +165,616 @@ public class DNSQueryHandler {
     }
 
     /**
-     * Builds the query, sends it to the server, and returns the response.
+     * Changes the UDP payload size advertised in queries with an EDNS0 OPT record, and the size
+     * of the buffers used to receive responses.
+     *
+     * @param size The UDP payload size in bytes (between 512 and 4096), or 0 to send queries
+     *             without an OPT record, in which case responses are limited to 512 bytes.
+     */
+    public static void setUDPPayloadSize(int size) {
+        if (size != 0 && (size < MIN_UDP_PAYLOAD_SIZE || size > MAX_UDP_PAYLOAD_SIZE))
+            throw new IllegalArgumentException("UDP payload size must be between " + MIN_UDP_PAYLOAD_SIZE +
+                    " and " + MAX_UDP_PAYLOAD_SIZE + ".");
+        int bufferSize = Math.max(size, MIN_UDP_PAYLOAD_SIZE);
+        if (bufferSize != receiveBuffers.getBufferSize())
+            receiveBuffers = new BufferPool(bufferSize, MAX_IDLE_BUFFERS);
+        udpPayloadSize = size;
+    }
+
+    /**
+     * Returns the UDP payload size advertised in queries.
+     *
+     * @return The UDP payload size in bytes, or 0 if EDNS0 is disabled.
+     */
+    public static int getUDPPayloadSize() {
+        return udpPayloadSize;
+    }
+
+    /**
+     * Changes the port to which queries are sent, for all servers. Port 53 is used by default;
+     * other ports are mostly useful to query a local test hierarchy of servers.
+     *
+     * @param port The destination port of queries (between 1 and 65535).
+     */
+    public static void setServerPort(int port) {
+        if (port <= 0 || port > 0xFFFF)
+            throw new IllegalArgumentException("Port must be between 1 and 65535.");
+        serverPort = port;
+    }
+
+    public static int getServerPort() {
+        return serverPort;
+    }
+
+    /**
+     * Builds the query and sends it to the server without waiting for the response. The returned
+     * future is completed once the response is received, or completed exceptionally with a
+     * TimeoutException if no response is received in time. The query is not retransmitted.
+     *
+     * @param server        The IP address of the server to which the query is being sent.
+     * @param node          Host and record type to be used for search.
+     * @param timeoutMillis Time to wait for the response, in milliseconds.
+     * @return A future DNSServerResponse Object containing the response buffer and the transaction ID.
+     * @throws IOException if the query could not be sent
+     */
+    public static CompletableFuture<DNSServerResponse> sendQuery(InetAddress server, DNSNode node,
+                                                                 long timeoutMillis) throws IOException {
+        InetSocketAddress serverAddress = new InetSocketAddress(server, serverPort);
+        CompletableFuture<DNSServerResponse> response = new CompletableFuture<>();
+        int transactionId;
+        QueryKey key;
+        do {
+            transactionId = ThreadLocalRandom.current().nextInt(0x10000);
+            key = new QueryKey(serverAddress, transactionId);
+        } while (pendingQueries.putIfAbsent(key, response) != null);
+
+        if (verboseTracing) {
+            System.out.printf("\n\nQuery ID %9d %4s %2s --> %s\n", transactionId, node.getHostName(), node.getType(), server.getHostAddress());
+        }
+
+        QueryKey pendingKey = key;
+        long sendTime = System.nanoTime();
+        response.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                .whenComplete((result, error) -> {
+                    pendingQueries.remove(pendingKey, response);
+                    long rtt = System.nanoTime() - sendTime;
+                    if (error == null) {
+                        ServerStatistics.getInstance().recordSuccess(server, rtt);
+                        ResolverMetrics.getInstance().recordRtt(server, rtt);
+                    } else if (error instanceof TimeoutException) {
+                        ServerStatistics.getInstance().recordFailure(server, rtt);
+                        ResolverMetrics.getInstance().recordTimeout();
+                    }
+                });
+        ByteBuffer message = sendBuffers.acquire();
+        try {
+            encodeQuery(message, transactionId, node);
+            if (channel.send(message, serverAddress) == 0)
+                throw new IOException("UDP send buffer is full");
+            ResolverMetrics.getInstance().recordQuery(false);
+        } catch (IOException e) {
+            response.completeExceptionally(e);
+            throw e;
+        } finally {
+            sendBuffers.release(message);
+        }
+        return response;
+    }
+
+    /**
+     * Sends a query to a server over TCP, using a pooled connection (which may already be used
+     * by other queries to the same server). The query is not retransmitted.
      *
-     * @param message Byte array used to store the query to DNS servers.
-     * @param server  The IP address of the server to which the query is being sent.
+     * @param server        The IP address of the server to which the query is being sent.
+     * @param node          Host and record type to be used for search.
+     * @param timeoutMillis Time to wait for the response, in milliseconds.
+     * @return A future DNSServerResponse Object containing the response buffer and the transaction ID.
+     */
+    public static CompletableFuture<DNSServerResponse> sendTcpQuery(InetAddress server, DNSNode node,
+                                                                    long timeoutMillis) {
+        if (verboseTracing) {
+            System.out.printf("\n\nQuery (TCP) %4s %2s --> %s\n", node.getHostName(), node.getType(), server.getHostAddress());
+        }
+        ResolverMetrics.getInstance().recordQuery(true);
+        long sendTime = System.nanoTime();
+        return tcpConnections.sendQuery(new InetSocketAddress(server, serverPort), node, timeoutMillis)
+                .orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                .whenComplete((result, error) -> {
+                    if (error == null)
+                        ResolverMetrics.getInstance().recordRtt(server, System.nanoTime() - sendTime);
+                    else if (error instanceof TimeoutException)
+                        ResolverMetrics.getInstance().recordTimeout();
+                })
+                .thenApply(response -> new DNSServerResponse(response, response.getShort(0) & 0xFFFF, server));
+    }
+
+    /**
+     * Sends the same query to one or more servers, hedging against slow servers and
+     * retransmitting lost queries. The query is first sent to the first server in the list. If
+     * no response is received within a delay based on that server's RTT statistics, the query is
+     * also sent to the next server, up to a limited number of servers. Each transmission times
+     * out after the server's retransmission timeout (read when the query starts, so the backoff
+     * recorded for each timeout does not compound), doubled for each round of retransmissions,
+     * after which the query is sent again to the next server (cycling through the list). The
+     * first response received is returned; responses received afterwards are discarded. A
+     * truncated response is replaced by the response to the same query sent over TCP. A response
+     * with an error other than NXDOMAIN (e.g., SERVFAIL or REFUSED) counts as a failure of the
+     * server that sent it: the query is sent to the next server instead, and that server is not
+     * queried again.
+     *
+     * @param servers The IP addresses of the servers that may be queried, best server first.
      * @param node    Host and record type to be used for search.
-     * @return A DNSServerResponse Object containing the response buffer and the transaction ID.
-     * @throws IOException if an IO Exception occurs
+     * @param budget  Budget of the lookup this query is part of. Each transmission takes one
+     *                query from the budget, and no transmission waits beyond its deadline.
+     * @return A future DNSServerResponse Object containing the first response received. The
+     *         future is completed exceptionally (usually with a DNSLookupException) if every
+     *         server responded with an error, or if no server responds before the retransmissions
+     *         or the budget are exhausted.
      */
-    public static DNSServerResponse buildAndSendQuery(byte[] message, InetAddress server,
-                                                      DNSNode node) throws IOException {
-        int pos = 0;
+    public static CompletableFuture<DNSServerResponse> sendHedgedQuery(List<InetAddress> servers, DNSNode node,
+                                                                       LookupBudget budget) {
+        CompletableFuture<DNSServerResponse> winner = new CompletableFuture<>();
+        if (servers.isEmpty()) {
+            winner.completeExceptionally(new DNSLookupException("No server to query for " + node));
+            return winner;
+        }
+        List<InetAddress> hedgedServers = servers.subList(0, Math.min(servers.size(), MAX_HEDGED_QUERIES));
+        new HedgedQuery(hedgedServers, node, budget, winner).sendNext();
+        return winner;
+    }
+
+    /** State of a query sent by sendHedgedQuery, shared by all of its transmissions.
+     */
+    private static class HedgedQuery {
+        private final List<InetAddress> servers;
+        private final DNSNode node;
+        private final LookupBudget budget;
+        private final CompletableFuture<DNSServerResponse> winner;
+        private final AtomicInteger nextAttempt = new AtomicInteger();
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final Set<InetAddress> failedServers = ConcurrentHashMap.newKeySet();
+        private final long[] initialTimeouts;
+        private volatile Throwable lastError;
+
+        private HedgedQuery(List<InetAddress> servers, DNSNode node, LookupBudget budget,
+                            CompletableFuture<DNSServerResponse> winner) {
+            this.servers = new ArrayList<>(new LinkedHashSet<>(servers));
+            this.node = node;
+            this.budget = budget;
+            this.winner = winner;
+            this.initialTimeouts = new long[this.servers.size()];
+            for (int i = 0; i < initialTimeouts.length; i++)
+                initialTimeouts[i] = ServerStatistics.getInstance().getRetransmissionTimeout(this.servers.get(i));
+        }
+
+        private void sendNext() {
+            outstanding.incrementAndGet();
+            int attempt = nextAttempt.getAndIncrement();
+            // servers that responded with an error are skipped, unless they all did
+            while (failedServers.contains(servers.get(attempt % servers.size())) &&
+                    failedServers.size() < servers.size())
+                attempt = nextAttempt.getAndIncrement();
+            InetAddress server = servers.get(attempt % servers.size());
+            int round = Math.min(attempt / servers.size(), 8);
+            long timeout = Math.min(initialTimeouts[attempt % servers.size()] << round, QUERY_TIMEOUT_MILLIS);
+            timeout = Math.min(timeout, budget.getRemainingMillis());
+            if (winner.isDone() || failedServers.size() == servers.size() || attempt >= MAX_TRANSMISSIONS ||
+                    timeout <= 0 || !budget.tryAcquireQuery()) {
+                finishAttempt();
+                return;
+            }
+
+            AtomicBoolean followed = new AtomicBoolean(false);
+            long attemptTimeout = timeout;
+            CompletableFuture<DNSServerResponse> transmission;
+            try {
+                transmission = sendQuery(server, node, timeout).thenCompose(response -> {
+                    if (!isTruncated(response) || winner.isDone())
+                        return CompletableFuture.completedFuture(response);
+                    releaseResponse(response);
+                    if (!budget.tryAcquireQuery())
+                        return CompletableFuture.failedFuture(
+                                new DNSLookupException("Query budget exhausted for " + node + " (TCP)"));
+                    return sendTcpQuery(server, node, Math.max(1, Math.min(QUERY_TIMEOUT_MILLIS,
+                            budget.getRemainingMillis())));
+                });
+            } catch (IOException e) {
+                transmission = CompletableFuture.failedFuture(e);
+            }
+            transmission.whenComplete((response, failure) -> {
+                Throwable error = failure instanceof CompletionException && failure.getCause() != null ?
+                        failure.getCause() : failure;
+                if (error == null && (error = getResponseError(response, node)) != null) {
+                    releaseResponse(response);
+                    failedServers.add(server);
+                    ServerStatistics.getInstance().recordFailure(server,
+                            TimeUnit.MILLISECONDS.toNanos(attemptTimeout));
+                }
+                if (error == null) {
+                    if (!winner.complete(response)) releaseResponse(response);
+                } else {
+                    lastError = error instanceof TimeoutException ?
+                            new DNSLookupException("No response from " + server.getHostAddress() + " for " +
+                                    node + " within " + attemptTimeout + " ms") : error;
+                    if (!followed.getAndSet(true)) sendNext();
+                }
+                finishAttempt();
+            });
+
+            long hedgeDelay = hedgeDelayMillis(server);
+            if (attempt + 1 < servers.size() && hedgeDelay < timeout)
+                hedgeScheduler.schedule(() -> {
+                    if (!followed.getAndSet(true)) sendNext();
+                }, hedgeDelay, TimeUnit.MILLISECONDS);
+        }
+
+        private void finishAttempt() {
+            if (outstanding.decrementAndGet() == 0 && !winner.isDone()) {
+                Throwable error = lastError;
+                winner.completeExceptionally(error != null ? error :
+                        new DNSLookupException("Query budget exhausted for " + node));
+            }
+        }
+    }
+
+    /**
+     * Returns true if a response has the TC (truncated) bit set.
+     *
+     * @param response Response received from a server.
+     * @return true if the response is truncated.
+     */
+    private static boolean isTruncated(DNSServerResponse response) {
+        ByteBuffer buffer = response.getResponse();
+        return buffer.remaining() > 2 && (buffer.get(buffer.position() + 2) & 0x02) != 0;
+    }
 
-        int transactionId = random.nextInt() % 0xFFFF;
-        message[pos++] = (byte)(transactionId >> 8);
-        message[pos++] = (byte)(transactionId);
+    /**
+     * Returns the time to wait for a server's response before sending the same query to another
+     * server. The delay is based on the server's smoothed RTT and its variance.
+     *
+     * @param server Address of the server.
+     * @return The hedging delay, in milliseconds.
+     */
+    private static long hedgeDelayMillis(InetAddress server) {
+        ServerStatistics statistics = ServerStatistics.getInstance();
+        double smoothedRTT = statistics.getSmoothedRTT(server);
+        if (smoothedRTT < 0) return DEFAULT_HEDGE_DELAY_MILLIS;
+        long delay = (long) Math.ceil(smoothedRTT + 2 * statistics.getRTTVariance(server));
+        return Math.max(MIN_HEDGE_DELAY_MILLIS, Math.min(delay, QUERY_TIMEOUT_MILLIS));
+    }
+
+    /**
+     * Writes a query into a buffer, starting at its current position. The question section of
+     * each node is only encoded once and then reused, so repeated queries for the same node only
+     * copy the encoded query and patch its transaction ID and UDP payload size. The number of
+     * templates is bounded, and the templates of nodes that were not queried recently are dropped
+     * first (see sweepQueryTemplates). The OPT record is left out if EDNS0 is disabled.
+     * On return, the buffer is flipped so that it contains the encoded query.
+     *
+     * @param message       Buffer in which the query is written.
+     * @param transactionId Transaction ID of the query.
+     * @param node          Host and record type to be used for search.
+     * @throws DNSLookupException if the host name cannot be encoded (e.g., a label is longer than
+     *                            63 octets, or the name contains characters that are not ASCII)
+     */
+    public static void encodeQuery(ByteBuffer message, int transactionId, DNSNode node) throws DNSLookupException {
+        QueryTemplate cached = queryTemplates.get(node);
+        byte[] template;
+        if (cached != null) {
+            if (!cached.recentlyUsed) cached.recentlyUsed = true;
+            template = cached.message;
+        } else {
+            template = buildQueryTemplate(node);
+            queryTemplates.put(node, new QueryTemplate(template));
+            if (queryTemplates.size() > MAX_QUERY_TEMPLATES)
+                sweepQueryTemplates();
+        }
+        int start = message.position();
+        int payloadSize = udpPayloadSize;
+        if (payloadSize == 0) {
+            message.put(template, 0, template.length - OPT_RECORD_SIZE);
+            message.putShort(start + 10, (short) 0); // ARCOUNT
+        } else {
+            message.put(template);
+            message.putShort(start + template.length - 8, (short) payloadSize); // OPT CLASS
+        }
+        message.putShort(start, (short) transactionId);
+        message.flip();
+        message.position(start);
+    }
+
+    /**
+     * Drops the templates of nodes that were not queried since the previous sweep, and marks the
+     * others as not recently used (an approximation of LRU, in the style of the CLOCK algorithm).
+     * A second pass is made if the first one did not drop a quarter of the templates, so the cost
+     * of a sweep is spread over the templates it drops. Only one thread sweeps at a time; queries
+     * encoded in the meantime are not delayed.
+     */
+    private static void sweepQueryTemplates() {
+        if (!sweepingTemplates.compareAndSet(false, true)) return;
+        try {
+            for (int pass = 0; pass < 2 && queryTemplates.size() > MAX_QUERY_TEMPLATES * 3 / 4; pass++)
+                queryTemplates.values().removeIf(template -> {
+                    if (!template.recentlyUsed) return true;
+                    template.recentlyUsed = false;
+                    return false;
+                });
+        } finally {
+            sweepingTemplates.set(false);
+        }
+    }
+
+    /**
+     * Encodes a query for a node with a transaction ID of zero, followed by an OPT record in the
+     * additional section whose UDP payload size is patched for each query.
+     *
+     * @param node Host and record type to be used for search.
+     * @return The encoded query.
+     * @throws DNSLookupException if the host name is not a valid ASCII name (RFC 1035, section
+     *                            2.3.4): an empty or longer than 63-octet label, or a name longer
+     *                            than 255 octets
+     */
+    private static byte[] buildQueryTemplate(DNSNode node) throws DNSLookupException {
+        String hostName = node.getHostName();
+        int nameLength = hostName.endsWith(".") ? hostName.length() - 1 : hostName.length();
+        if (nameLength + 2 > MAX_NAME_LENGTH) // length octets of the first label and of the root
+            throw new DNSLookupException("Host name is longer than " + MAX_NAME_LENGTH + " octets: " + hostName);
+        byte[] message = new byte[12 + hostName.length() + 2 + 4 + OPT_RECORD_SIZE];
+        int pos = 0;
+        message[pos++] = 0; // ID, patched for each query
+        message[pos++] = 0;
         message[pos++] = 0;
         message[pos++] = 0;
         message[pos++] = 0;
         message[pos++] = 1; // QDCOUNT
 
-        for (int i = 0; i < 6; i++) {
+        for (int i = 0; i < 4; i++) {
             message[pos++] = 0;
         }
-        String[] segs = node.getHostName().split("\\.");
-        for (int i = 0; i < segs.length; i++) {
-            String seg = segs[i];
-            message[pos++] = (byte)seg.length();
-
-
-            byte[] encoded = seg.getBytes();
-            for (int j = 0; j < encoded.length; j++) {
-                message[pos++] = encoded[j];
+        message[pos++] = 0;
+        message[pos++] = 1; // ARCOUNT (OPT)
+        int labelStart = 0;
+        while (labelStart < hostName.length()) {
+            int labelEnd = hostName.indexOf('.', labelStart);
+            if (labelEnd < 0) labelEnd = hostName.length();
+            if (labelEnd == labelStart || labelEnd - labelStart > MAX_LABEL_LENGTH)
+                throw new DNSLookupException("Invalid label length in host name: " + hostName);
+            message[pos++] = (byte) (labelEnd - labelStart);
+            for (int i = labelStart; i < labelEnd; i++) {
+                char c = hostName.charAt(i);
+                if (c > 0x7F)
+                    throw new DNSLookupException("Host name is not ASCII: " + hostName);
+                message[pos++] = (byte) c;
             }
+            labelStart = labelEnd + 1;
         }
 
         message[pos++] = 0;
-        message[pos++] = 0;
-        message[pos++] = (byte)node.getType().getCode();
+        message[pos++] = (byte) (node.getType().getCode() >> 8);
+        message[pos++] = (byte) node.getType().getCode();
         message[pos++] = 0;
         message[pos++] = 1;
 
-        byte[] truncatedmessage = new byte[pos];
-        System.arraycopy(message,0, truncatedmessage, 0, pos);
-
-        DatagramPacket sendPacket = new DatagramPacket(truncatedmessage, truncatedmessage.length, server, DEFAULT_DNS_PORT);
-        try {
-            byte[] queryId = Arrays.copyOfRange(sendPacket.getData(),0,2);
-            int id = ((queryId[0] << 8) & 0xFFFF) 
-            | (queryId[1] & 0xFF);
-            
-            if (verboseTracing) {
-                System.out.printf("\n\nQuery ID %9d %4s %2s --> %s\n", id, node.getHostName(), node.getType(), server.getHostAddress());
-            }
-           
-            socket.send(sendPacket);
+        message[pos++] = 0; // OPT: root owner name
+        message[pos++] = (byte) (OPT_TYPE_CODE >> 8);
+        message[pos++] = (byte) OPT_TYPE_CODE;
+        pos += 2; // UDP payload size, patched for each query
+        pos += 4; // extended RCODE, version and flags
+        pos += 2; // no options
+        return Arrays.copyOf(message, pos);
+    }
 
-            byte[] buffer = new byte[1024];
-            DatagramPacket res = new DatagramPacket(buffer, buffer.length);
-            socket.receive(res);
-            return new DNSServerResponse(ByteBuffer.wrap(res.getData()), id);
+    /**
+     * Returns the buffer of a response to the pool of receive buffers. The response must not be
+     * used after this call.
+     *
+     * @param response Response returned by sendQuery or sendHedgedQuery, or null.
+     */
+    public static void releaseResponse(DNSServerResponse response) {
+        if (response != null)
+            receiveBuffers.release(response.getResponse());
+    }
 
-        }catch(Exception e){
-            return null;
+    /**
+     * Receives responses from all servers and completes the query waiting for each of them.
+     * Responses that do not match an outstanding query (e.g., late responses to a query that
+     * already timed out) are discarded. Runs on a background thread until the socket is closed.
+     */
+    private static void receiveResponses() {
+        ByteBuffer buffer = receiveBuffers.acquire();
+        while (channel.isOpen()) {
+            try {
+                selector.select();
+                selector.selectedKeys().clear();
+                if (buffer.capacity() != receiveBuffers.getBufferSize())
+                    buffer = receiveBuffers.acquire(); // the UDP payload size was changed
+                SocketAddress source;
+                while ((source = channel.receive(buffer)) != null) {
+                    buffer.flip();
+                    if (buffer.remaining() >= 2) {
+                        int id = buffer.getShort(0) & 0xFFFF;
+                        CompletableFuture<DNSServerResponse> response =
+                                pendingQueries.remove(new QueryKey(source, id));
+                        if (response != null && response.complete(new DNSServerResponse(buffer, id,
+                                ((InetSocketAddress) source).getAddress()))) {
+                            buffer = receiveBuffers.acquire();
+                            continue;
+                        }
+                    }
+                    buffer.clear();
+                }
+            } catch (ClosedChannelException | ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                // ICMP errors (e.g., port unreachable) may be reported here; the affected
+                // query simply times out.
+                buffer.clear();
+            }
         }
     }
 
 
     /**
-     * Decodes the DNS server response and caches it.
+     * Returns the error reported by a response, if its response code (RCODE) is neither NOERROR
+     * nor NXDOMAIN (e.g., SERVFAIL or REFUSED). Such a response carries no usable records, so the
+     * server that sent it is considered to have failed the query; its response code is counted in
+     * the resolver metrics, since it is not decoded.
+     *
+     * @param response Response received from a server.
+     * @param node     Host and record type of the query.
+     * @return A DNSLookupException naming the response code and the server, or null if the
+     *         response may be decoded.
+     */
+    public static DNSLookupException getResponseError(DNSServerResponse response, DNSNode node) {
+        ByteBuffer buffer = response.getResponse();
+        if (buffer.remaining() < 4) return new DNSLookupException("Malformed response for " + node);
+        int responseCode = buffer.get(buffer.position() + 3) & 0x0F;
+        if (responseCode == RCODE_NO_ERROR || responseCode == RCODE_NAME_ERROR) return null;
+        ResolverMetrics.getInstance().recordResponseCode(responseCode);
+        InetAddress server = response.getServer();
+        return new DNSLookupException(ResolverMetrics.getResponseCodeName(responseCode) + " response" +
+                (server != null ? " from " + server.getHostAddress() : "") + " for " + node);
+    }
+
+    /**
+     * Decodes the DNS server response and caches it. The response is read in place through a
+     * DNSMessageView, and resource records are only built for the records that are cached. If
+     * the response indicates that the name does not exist (NXDOMAIN), or that it has no record of
+     * the requested type (NODATA), a negative result is cached using the TTL of the SOA record
+     * in the authority section (RFC 2308).
      *
      * @param transactionID  Transaction ID of the current communication with the DNS server
      * @param responseBuffer DNS server's response
      * @param cache          To store the decoded server's response
      * @return A set of resource records corresponding to the name servers of the response.
+     * @throws DNSLookupException if the server returned an error other than NXDOMAIN, in which
+     *                            case nothing is cached
      */
     public static Set<ResourceRecord> decodeAndCacheResponse(int transactionID, ByteBuffer responseBuffer,
-                                                             DNSCache cache) {
+                                                             DNSCache cache) throws DNSLookupException {
         Set<ResourceRecord> nameServers = new HashSet<ResourceRecord>();
+        DNSMessageView response = new DNSMessageView().wrap(responseBuffer);
         // (PART 1)
-        byte[] b = new byte[responseBuffer.remaining()];
-        responseBuffer.get(b, 0, responseBuffer.remaining());
-        int pos;
-        // get transactionID
-        int responseID = (0xff & b[0]) << 8 | (0xff & b[1]);
-        // (QR) check is response. 1st bit of the third byte
-       
         // *(AA) check is authoritative, 2nd bit of the third byte
-        boolean isAuthoritative = (b[2] & 0x4) != 0;
         if (verboseTracing) {
-            System.out.printf("Response ID: %5d Authoritative = %s\n", responseID, isAuthoritative ? "true" : "false");
-        }
-       
-        // (TC) check if truncated, if it is, fail gracefully
-        // (RD) looks like that's not needed?
-        // (RA) check if server is capable of recursive queries
-        // (RCODE) check if 0
-        boolean hasError = (0xf & b[3]) != 0;
-        if (hasError) return null;
-        // TODO: if NOT FOUND, use a TTL of -1 and the IP 0.0.0.0
-
-        // *(QCOUNT)
-        int queryCount = (0xff & b[4]) << 8 | (0xff & b[5]);
-        // *(ANCOUNT)
-        int answerCount = (0xff & b[6]) << 8 | (0xff & b[7]);
-        // *(NSCOUNT)
-        int nameServerCount = (0xff & b[8]) << 8 | (0xff & b[9]);
-        // *(ARCOUNT)
-        int additionalRecordCount = (0xff & b[10]) << 8 | (0xff & b[11]);
-
-        // go through query portion
-        pos = 12;
-        for (int i = 0; i < queryCount; i++) {
-            DomainNameParser.parse(b, pos);
-            String qName = DomainNameParser.getDomainName();
-            pos += DomainNameParser.getDataLength();
+            System.out.printf("Response ID: %5d Authoritative = %s\n", response.getTransactionID(),
+                    response.isAuthoritative() ? "true" : "false");
         }
 
-        // (QTYPE) pos +1 +2
-        // (QCLASS) pos +3 +4
-        
-        pos += 4;
-
-        // answer section
-        if (verboseTracing) System.out.printf("%9s (%d)\n", "Answers", answerCount);
-        for (int i = 0; i < answerCount; i++) {
-            DomainNameParser.parse(b, pos);
-            String hostName = DomainNameParser.getDomainName();
-            pos += DomainNameParser.getDataLength();
-            
-            int typeCode = (0xff & b[pos++]) << 8 | (0xff & b[pos++]);
-            RecordType type = RecordType.getByCode(typeCode);
-            int nsClass = (0xff & b[pos++]) << 8 | (0xff & b[pos++]);
-            int ttl = (0xff & b[pos++] << 24 | 0xff & b[pos++] << 16 | 0xff & b[pos++]) << 8 | (0xff & b[pos++]);
-            int dataLength = (0xff & b[pos++]) << 8 | (0xff & b[pos++]);
-            
-            switch (type) {
-                case A:
-                case AAAA:
-                    try {
-                        byte[] ipBytes = Arrays.copyOfRange(b, pos, pos + dataLength);
-                    
-                        InetAddress addr = InetAddress.getByAddress(ipBytes);
-                        ResourceRecord record = new ResourceRecord(hostName, type, ttl, addr);
-                        cache.addResult(record);
-                        verbosePrintResourceRecord(record, type.getCode());
-                    } catch (UnknownHostException E) {
-                        // weird
-                    }
-                    break;
-
-                case CNAME:
-                    DomainNameParser.parse(b, pos);
-                    String alias = DomainNameParser.getDomainName();
-
-                    ResourceRecord record = new ResourceRecord(hostName, type, ttl, alias);
-                        cache.addResult(record);
-                        verbosePrintResourceRecord(record, type.getCode());
-                    break;
-
-                case MX:
-                    DomainNameParser.parse(b, pos+2);
-                    String domainName = DomainNameParser.getDomainName();
-
-                    record = new ResourceRecord(hostName, type, ttl, domainName);
-                        cache.addResult(record);
-                        verbosePrintResourceRecord(record, type.getCode());
-                    break;
+        // (TC) truncated responses are retried over TCP before they get here
+        // (RCODE) check if 0 (no error) or 3 (name does not exist)
+        int responseCode = response.getResponseCode();
+        ResolverMetrics.getInstance().recordResponseCode(responseCode);
+        if (responseCode != RCODE_NO_ERROR && responseCode != RCODE_NAME_ERROR)
+            throw new DNSLookupException(ResolverMetrics.getResponseCodeName(responseCode) +
+                    " response to query " + response.getTransactionID());
+
+        long negativeTTL = -1;
+        int section = DNSMessageView.QUESTION;
+        while (response.nextRecord()) {
+            while (section < response.getSection()) {
+                section++;
+                verbosePrintSectionHeader(section, response.getCount(section));
+            }
 
-                case SOA:
-                    DomainNameParser.parse(b, pos);
-                    String mname = DomainNameParser.getDomainName();
+            if (section == DNSMessageView.AUTHORITY && response.getTypeCode() == RecordType.SOA.getCode()) {
+                // Negative TTL is the smaller of the SOA TTL and the SOA MINIMUM field
+                int minimumPos = response.skipName(response.skipName(response.getRecordDataOffset())) + 16;
+                negativeTTL = Math.min(response.getTTL(), response.getInt(minimumPos) & 0xFFFFFFFFL);
+            }
 
-                    record = new ResourceRecord(hostName, type, ttl, mname);
-                        cache.addResult(record);
-                        verbosePrintResourceRecord(record, type.getCode());
-                        break;
+            ResourceRecord record = decodeRecord(response);
+            if (record == null) continue;
 
-                default:
-                break;
-            }
-            
-            pos = pos + dataLength;
+            cache.addResult(record);
+            if (section == DNSMessageView.AUTHORITY && record.getType() == RecordType.NS)
+                nameServers.add(record);
+            verbosePrintResourceRecord(record, response.getTypeCode());
+        }
+        while (section < DNSMessageView.ADDITIONAL) {
+            section++;
+            verbosePrintSectionHeader(section, response.getCount(section));
         }
 
-        // NS records
-        if (verboseTracing) System.out.printf("%13s (%d)\n", "Nameservers", nameServerCount);
-        for (int i = 0; i < nameServerCount; i++) {
-            DomainNameParser.parse(b, pos);
-            String hostName = DomainNameParser.getDomainName();
-            pos += DomainNameParser.getDataLength();
-
-            RecordType type = RecordType.getByCode((0xff & b[pos++]) << 8 | (0xff & b[pos++]));
-            int nsClass = (0xff & b[pos++]) << 8 | (0xff & b[pos++]);
-            int ttl = (0xff & b[pos++] << 24 | 0xff & b[pos++] << 16 | 0xff & b[pos++]) << 8 | (0xff & b[pos++]);
-            int dataLength = (0xff & b[pos++]) << 8 | (0xff & b[pos++]);
-            DomainNameParser.parse(b, pos);
-            String result = DomainNameParser.getDomainName();
-            pos = pos + dataLength;
-            
-            ResourceRecord record = new ResourceRecord(hostName, type, ttl, result);
-            cache.addResult(record);
-            if (type == RecordType.NS) nameServers.add(record);
-            verbosePrintResourceRecord(record, type.getCode());
+        if (negativeTTL >= 0 && response.getCount(DNSMessageView.ANSWER) == 0 &&
+                response.getCount(DNSMessageView.QUESTION) > 0) {
+            ByteBuffer buffer = response.getBuffer();
+            int questionPos = response.getQuestionNameOffset();
+            String qName = DomainNameParser.parseName(buffer, response.getBase(), questionPos);
+            if (responseCode == RCODE_NAME_ERROR) {
+                cache.addNonExistentName(qName, negativeTTL);
+            } else if (nameServers.isEmpty()) {
+                RecordType qType = RecordType.getByCode(response.getShort(response.skipName(questionPos)));
+                cache.addNoDataResult(new DNSNode(qName, qType), negativeTTL);
+            }
         }
+        return nameServers;
+    }
 
-        // Additional Records
-        if (verboseTracing) System.out.printf("%24s (%d)\n", "Additional Information", additionalRecordCount);
-        for (int i = 0; i < additionalRecordCount; i++) {
-            DomainNameParser.parse(b, pos);
-            String hostName = DomainNameParser.getDomainName();
-            pos += DomainNameParser.getDataLength();
-            
-            RecordType type = RecordType.getByCode((0xff & b[pos++]) << 8 | (0xff & b[pos++]));
-            int nsClass = (0xff & b[pos++]) << 8 | (0xff & b[pos++]);
-            int ttl = (0xff & b[pos++] << 24 | 0xff & b[pos++] << 16 | 0xff & b[pos++]) << 8 | (0xff & b[pos++]);
-            int dataLength = (0xff & b[pos++]) << 8 | (0xff & b[pos++]);
-            
-            switch (type) {
-                case A:
-                case AAAA:
-                    byte[] ipBytes = Arrays.copyOfRange(b, pos, pos + dataLength);
-                    try {
-                        
-                        InetAddress addr = InetAddress.getByAddress(ipBytes);
-                        ResourceRecord record = new ResourceRecord(hostName, type, ttl, addr);
-                        cache.addResult(record);
-                        verbosePrintResourceRecord(record, type.getCode());
-                    } catch (UnknownHostException E) {
-                        // weird
-                    }
-                    break;
-                    
-                case CNAME:
-                case SOA:
-                case NS:
-                    DomainNameParser.parse(b, pos);    
-                    String domainName = DomainNameParser.getDomainName();
-                    ResourceRecord record = new ResourceRecord(hostName, type, ttl, domainName);
-                    cache.addResult(record);
-                    verbosePrintResourceRecord(record, type.getCode());
-                    break;
-
-                case MX:
-                    DomainNameParser.parse(b, pos+2);
-                    domainName = DomainNameParser.getDomainName();
-
-                    record = new ResourceRecord(hostName, type, ttl, domainName);
-                        cache.addResult(record);
-                        verbosePrintResourceRecord(record, type.getCode());
-                    break;
-
-                default:
-                    record = new ResourceRecord(hostName, type, ttl, "");
-                    cache.addResult(record);
-                    verbosePrintResourceRecord(record, type.getCode());
-                    break;
+    /**
+     * Builds a resource record for the record the view is currently positioned on.
+     *
+     * @param response View of the response, positioned on a resource record.
+     * @return The resource record, or null if records of this type are not cached.
+     */
+    private static ResourceRecord decodeRecord(DNSMessageView response) {
+        if (response.getTypeCode() == OPT_TYPE_CODE) return null; // EDNS0 pseudo-record
+        RecordType type = RecordType.getByCode(response.getTypeCode());
+        int section = response.getSection();
+        int base = response.getBase();
+        ByteBuffer buffer = response.getBuffer();
+        long ttl = response.getTTL();
+
+        switch (type) {
+            case A:
+            case AAAA:
+                if (section == DNSMessageView.AUTHORITY) return null;
+                byte[] ipBytes = new byte[response.getRecordDataLength()];
+                response.copyRecordData(ipBytes);
+                try {
+                    InetAddress addr = InetAddress.getByAddress(ipBytes);
+                    return new ResourceRecord(ownerName(response), type, ttl, addr);
+                } catch (UnknownHostException e) {
+                    // invalid address length
+                    return null;
                 }
-                
-            pos = pos + dataLength;
+
+            case CNAME:
+            case NS:
+            case SOA:
+                if (type == RecordType.CNAME && section == DNSMessageView.AUTHORITY) return null;
+                return new ResourceRecord(ownerName(response), type, ttl,
+                        DomainNameParser.parseName(buffer, base, response.getRecordDataOffset()));
+
+            case MX:
+                if (section == DNSMessageView.AUTHORITY) return null;
+                return new ResourceRecord(ownerName(response), type, ttl,
+                        DomainNameParser.parseName(buffer, base, response.getRecordDataOffset() + 2));
+
+            default:
+                if (section != DNSMessageView.ADDITIONAL) return null;
+                return new ResourceRecord(ownerName(response), type, ttl, "");
         }
-        return nameServers;
+    }
+
+    private static String ownerName(DNSMessageView response) {
+        return DomainNameParser.parseName(response.getBuffer(), response.getBase(), response.getNameOffset());
+    }
+
+    /**
+     * Prints the name and number of records of a section (for when trace is on)
+     *
+     * @param section The section, as defined in DNSMessageView
+     * @param count   The number of records in the section
+     */
+    private static void verbosePrintSectionHeader(int section, int count) {
+        if (!verboseTracing) return;
+        if (section == DNSMessageView.ANSWER)
+            System.out.printf("%9s (%d)\n", "Answers", count);
+        else if (section == DNSMessageView.AUTHORITY)
+            System.out.printf("%13s (%d)\n", "Nameservers", count);
+        else
+            System.out.printf("%24s (%d)\n", "Additional Information", count);
     }
 
     /**
@@ -0,0 +1,425 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.*;
+import java.net.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** A local caching DNS server. Standard queries received over UDP or TCP are answered from the
+ * shared DNSCache, and names that are not cached are resolved iteratively, exactly like the
+ * lookup command does. Clients (e.g., the system resolver, through resolv.conf) therefore share
+ * a single warm cache.
+ *
+ * Queries are read by one thread per transport and handled by a fixed pool of worker threads,
+ * since resolving a name may block. Each TCP connection is read by a worker of the same pool, so
+ * the number of connections served at the same time is limited (further connections are closed
+ * right away), and the pool has extra workers for them, so they never take the workers that
+ * resolve queries. If all workers are busy and the queue is full, queries are answered with
+ * SERVFAIL right away by the thread that read them, rather than left unanswered.
+ *
+ * Buffers are reused: UDP queries are received in pooled buffers of the payload size the server
+ * advertises, and each worker thread builds its responses in a buffer of its own.
+ *
+ * Only queries for A, AAAA, CNAME and NS records are supported; other queries are answered with
+ * NOTIMP. Answers include the CNAME chain leading to the records, and names in the response are
+ * compressed. UDP responses that do not fit in 512 bytes (or the client's EDNS0 payload size)
+ * are truncated, so the client can retry over TCP. The server only listens on the loopback
+ * interface, so it is not an open resolver.
+ */
+public class DNSServer {
+
+    public static final int DEFAULT_THREADS = 64;
+
+    private static final int RCODE_NO_ERROR = 0;
+    private static final int RCODE_FORMAT_ERROR = 1;
+    private static final int RCODE_SERVER_FAILURE = 2;
+    private static final int RCODE_NAME_ERROR = 3;
+    private static final int RCODE_NOT_IMPLEMENTED = 4;
+    private static final int OPT_TYPE_CODE = 41;
+    private static final int MAX_UDP_SIZE = 512;
+    private static final int EDNS_UDP_PAYLOAD_SIZE = 1232;
+    private static final int MAX_MESSAGE_SIZE = 0xFFFF;
+    private static final int MAX_CNAME_CHAIN = 10;
+    private static final int MAX_QUEUED_QUERIES = 4096;
+    private static final int MAX_IDLE_BUFFERS = 256;
+    private static final int TCP_IDLE_TIMEOUT_MILLIS = 10_000;
+
+    // responses are built and sent by the same thread, so each thread reuses a single builder
+    private static final ThreadLocal<DNSMessageBuilder> responseBuilders =
+            ThreadLocal.withInitial(() -> new DNSMessageBuilder(MAX_MESSAGE_SIZE));
+
+    private final InetSocketAddress address;
+    private final int threads;
+    private DatagramChannel udpChannel;
+    private ServerSocket tcpSocket;
+    private final int maxTcpConnections;
+    private final AtomicInteger tcpConnections = new AtomicInteger();
+    private ThreadPoolExecutor workers;
+    private final DNSCache cache = DNSCache.getInstance();
+    private final BufferPool udpBuffers = new BufferPool(EDNS_UDP_PAYLOAD_SIZE, MAX_IDLE_BUFFERS);
+
+    /** Creates a server listening on a port of the loopback interface. The server is only
+     * started by start().
+     *
+     * @param port    Port on which the server listens for UDP and TCP queries.
+     * @param threads Number of worker threads resolving queries. A quarter as many TCP
+     *                connections (at least one) may be served at the same time.
+     */
+    public DNSServer(int port, int threads) {
+        if (port < 0 || port > 0xFFFF)
+            throw new IllegalArgumentException("Port must be between 0 and 65535.");
+        if (threads <= 0)
+            throw new IllegalArgumentException("Number of threads must be a positive integer.");
+        this.address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        this.threads = threads;
+        this.maxTcpConnections = Math.max(1, threads / 4);
+    }
+
+    /** Binds the UDP and TCP sockets and starts the threads receiving queries.
+     *
+     * @throws IOException if one of the sockets could not be bound
+     */
+    public void start() throws IOException {
+        udpChannel = DatagramChannel.open();
+        try {
+            udpChannel.bind(address);
+            tcpSocket = new ServerSocket();
+            tcpSocket.bind(new InetSocketAddress(address.getAddress(), getPort()));
+        } catch (IOException e) {
+            udpChannel.close();
+            if (tcpSocket != null) tcpSocket.close();
+            throw e;
+        }
+        int poolSize = threads + maxTcpConnections;
+        workers = new ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_QUEUED_QUERIES), daemonThreads("dns-server-worker"),
+                new ThreadPoolExecutor.AbortPolicy());
+        daemonThreads("dns-server-udp").newThread(this::receiveUdpQueries).start();
+        daemonThreads("dns-server-accept").newThread(this::acceptTcpConnections).start();
+    }
+
+    /** Stops the server. Queries being resolved are abandoned.
+     */
+    public void stop() {
+        try {
+            udpChannel.close();
+            tcpSocket.close();
+        } catch (IOException ignored) {
+        }
+        workers.shutdownNow();
+    }
+
+    /** Returns the port the server listens on (useful if it was created with port 0).
+     *
+     * @return The local port of the server.
+     */
+    public int getPort() {
+        try {
+            if (udpChannel != null && udpChannel.isOpen())
+                return ((InetSocketAddress) udpChannel.getLocalAddress()).getPort();
+        } catch (IOException ignored) {
+        }
+        return address.getPort();
+    }
+
+    /** Builds the response to a query.
+     *
+     * @param query   Buffer containing the query, starting at its position.
+     * @param maxSize Maximum size of the response (if the transport limits it), or 0 to use the
+     *                limit requested by the client over UDP (512 bytes or its EDNS0 payload size).
+     * @return A buffer containing the response, or null if the query should be ignored (e.g.,
+     *         it is too short or is itself a response). The buffer is reused by the next call
+     *         on the same thread, so the response must be sent before then.
+     */
+    ByteBuffer handleQuery(ByteBuffer query, int maxSize) {
+        if (query.remaining() < 12) return null;
+        DNSMessageView view = new DNSMessageView();
+        int id = query.getShort(query.position()) & 0xFFFF;
+        int flags = query.getShort(query.position() + 2) & 0xFFFF;
+        if ((flags & 0x8000) != 0) return null;
+        int responseFlags = 0x8000 | (flags & 0x7800) | (flags & 0x0100) | 0x0080;
+
+        String hostName;
+        int typeCode;
+        int clientSize = MAX_UDP_SIZE;
+        boolean edns = false;
+        try {
+            view.wrap(query);
+            if ((flags & 0x7800) != 0)
+                return errorResponse(id, responseFlags, RCODE_NOT_IMPLEMENTED, null, 0);
+            if (view.getCount(DNSMessageView.QUESTION) != 1)
+                return errorResponse(id, responseFlags, RCODE_FORMAT_ERROR, null, 0);
+            hostName = DomainNameParser.parseName(query, view.getBase(), view.getQuestionNameOffset());
+            typeCode = view.getShort(view.skipName(view.getQuestionNameOffset()));
+            while (view.nextRecord())
+                if (view.getSection() == DNSMessageView.ADDITIONAL && view.getTypeCode() == OPT_TYPE_CODE) {
+                    edns = true;
+                    clientSize = Math.max(MAX_UDP_SIZE, view.getRecordClass());
+                }
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            return errorResponse(id, responseFlags, RCODE_FORMAT_ERROR, null, 0);
+        }
+        if (maxSize == 0) maxSize = Math.min(clientSize, EDNS_UDP_PAYLOAD_SIZE);
+
+        RecordType type = RecordType.getByCode(typeCode);
+        if (type != RecordType.A && type != RecordType.AAAA && type != RecordType.CNAME && type != RecordType.NS)
+            return errorResponse(id, responseFlags, RCODE_NOT_IMPLEMENTED, hostName, typeCode);
+
+        // resolve the name, then rebuild the CNAME chains leading to the results from the cache;
+        // a name with several CNAME records is resolved through all of them, so all are answered
+        Set<ResourceRecord> results = DNSLookupService.getResults(new DNSNode(hostName, type), 0);
+        List<ResourceRecord> answers = new ArrayList<>();
+        List<String> targets = new ArrayList<>();
+        List<String> names = List.of(hostName);
+        Set<String> visited = new HashSet<>();
+        for (int i = 0; !names.isEmpty(); i++) {
+            List<String> aliasTargets = new ArrayList<>();
+            for (String name : names) {
+                if (!visited.add(name.toLowerCase())) continue;
+                Set<ResourceRecord> aliases = type == RecordType.CNAME || i == MAX_CNAME_CHAIN ? Set.of() :
+                        cache.getCachedResults(new DNSNode(name, RecordType.CNAME), false);
+                if (aliases.isEmpty()) targets.add(name);
+                for (ResourceRecord alias : aliases) {
+                    answers.add(alias);
+                    aliasTargets.add(alias.getTextResult());
+                }
+            }
+            names = aliasTargets;
+        }
+        answers.addAll(results);
+
+        // a negative response is only sent if every name at the end of a chain has a negative
+        // result, NXDOMAIN if none of them exists
+        int responseCode = RCODE_NO_ERROR;
+        long negativeTTL = Long.MAX_VALUE;
+        if (results.isEmpty()) {
+            boolean nonExistent = true;
+            for (String target : targets) {
+                long ttl = cache.getNegativeTTL(new DNSNode(target, type));
+                if (ttl < 0) {
+                    responseCode = RCODE_SERVER_FAILURE;
+                    break;
+                }
+                negativeTTL = Math.min(negativeTTL, ttl);
+                nonExistent &= cache.isNonExistentName(target);
+            }
+            if (responseCode == RCODE_NO_ERROR && nonExistent && !targets.isEmpty())
+                responseCode = RCODE_NAME_ERROR;
+        }
+        // the SOA record of the zone that answered the negative response, whose TTL (and MINIMUM)
+        // may not exceed the time left in the negative cache (RFC 2308, section 5)
+        ResourceRecord soa = results.isEmpty() && responseCode != RCODE_SERVER_FAILURE && !targets.isEmpty() ?
+                cache.getClosestSoaRecord(targets.get(0)) : null;
+
+        DNSMessageBuilder response = responseBuilders.get();
+        try {
+            response.writeHeader(id, responseFlags | responseCode)
+                    .setCount(DNSMessageView.QUESTION, 1)
+                    .writeQuestion(hostName, typeCode);
+            for (ResourceRecord answer : answers)
+                response.writeRecord(answer);
+            response.setCount(DNSMessageView.ANSWER, answers.size());
+            if (soa != null)
+                response.writeSoaRecord(soa.getHostName(), Math.min(soa.getTTL(), negativeTTL), negativeTTL)
+                        .setCount(DNSMessageView.AUTHORITY, 1);
+            if (edns)
+                response.writeOptRecord(EDNS_UDP_PAYLOAD_SIZE).setCount(DNSMessageView.ADDITIONAL, 1);
+        } catch (BufferOverflowException e) {
+            return errorResponse(id, responseFlags, RCODE_SERVER_FAILURE, hostName, typeCode);
+        }
+        if (response.size() > maxSize) {
+            // truncated: only the question is sent, with the TC bit set
+            response.writeHeader(id, responseFlags | 0x0200 | responseCode)
+                    .setCount(DNSMessageView.QUESTION, 1)
+                    .writeQuestion(hostName, typeCode);
+        }
+        return response.getMessage();
+    }
+
+    /** Builds the response to a query that could not be queued because all workers are busy: a
+     * SERVFAIL response echoing the question, if the query can be parsed.
+     *
+     * @param query Buffer containing the query, starting at its position.
+     * @return A buffer containing the response, or null if the query should be ignored. The
+     *         buffer is reused by the next call on the same thread.
+     */
+    private static ByteBuffer overloadedResponse(ByteBuffer query) {
+        if (query.remaining() < 12) return null;
+        int id = query.getShort(query.position()) & 0xFFFF;
+        int flags = query.getShort(query.position() + 2) & 0xFFFF;
+        if ((flags & 0x8000) != 0) return null;
+        int responseFlags = 0x8000 | (flags & 0x7800) | (flags & 0x0100) | 0x0080;
+        try {
+            DNSMessageView view = new DNSMessageView().wrap(query);
+            if (view.getCount(DNSMessageView.QUESTION) == 1) {
+                String hostName = DomainNameParser.parseName(query, view.getBase(), view.getQuestionNameOffset());
+                int typeCode = view.getShort(view.skipName(view.getQuestionNameOffset()));
+                return errorResponse(id, responseFlags, RCODE_SERVER_FAILURE, hostName, typeCode);
+            }
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            // malformed question, answered without it
+        }
+        return errorResponse(id, responseFlags, RCODE_SERVER_FAILURE, null, 0);
+    }
+
+    /** Builds a response without answers.
+     *
+     * @param id            Transaction ID of the query.
+     * @param flags         Flags of the response, without the RCODE.
+     * @param responseCode  RCODE of the response.
+     * @param hostName      Name in the question, or null if the question is not echoed.
+     * @param typeCode      Type in the question.
+     * @return A buffer containing the response, reused by the next response built on the same
+     *         thread.
+     */
+    private static ByteBuffer errorResponse(int id, int flags, int responseCode, String hostName, int typeCode) {
+        DNSMessageBuilder response = responseBuilders.get();
+        response.writeHeader(id, flags | responseCode);
+        if (hostName != null)
+            response.setCount(DNSMessageView.QUESTION, 1).writeQuestion(hostName, typeCode);
+        return response.getMessage();
+    }
+
+    /** Receives UDP queries and hands them to the workers. Queries are received in buffers of
+     * the payload size the server advertises; larger datagrams are truncated, and answered with
+     * FORMERR if the question does not fit.
+     */
+    private void receiveUdpQueries() {
+        while (udpChannel.isOpen()) {
+            ByteBuffer query = udpBuffers.acquire();
+            try {
+                SocketAddress client = udpChannel.receive(query);
+                query.flip();
+                try {
+                    workers.execute(() -> {
+                        try {
+                            sendUdpResponse(handleQuery(query, 0), client);
+                        } finally {
+                            udpBuffers.release(query);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    if (workers.isShutdown()) break;
+                    sendUdpResponse(overloadedResponse(query), client);
+                    udpBuffers.release(query);
+                }
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                // e.g., an ICMP error caused by a previous response; keep serving
+            }
+        }
+    }
+
+    private void sendUdpResponse(ByteBuffer response, SocketAddress client) {
+        if (response == null) return;
+        try {
+            udpChannel.send(response, client);
+        } catch (IOException ignored) {
+            // the client will retry
+        }
+    }
+
+    /** Accepts TCP connections and hands each of them to a worker. Connections beyond the limit
+     * are closed right away; the client may retry later.
+     */
+    private void acceptTcpConnections() {
+        while (!tcpSocket.isClosed()) {
+            try {
+                Socket socket = tcpSocket.accept();
+                if (tcpConnections.incrementAndGet() > maxTcpConnections) {
+                    tcpConnections.decrementAndGet();
+                    socket.close();
+                    continue;
+                }
+                try {
+                    workers.execute(() -> {
+                        try {
+                            serveTcpConnection(socket);
+                        } finally {
+                            tcpConnections.decrementAndGet();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    tcpConnections.decrementAndGet();
+                    socket.close();
+                }
+            } catch (IOException e) {
+                if (tcpSocket.isClosed()) break;
+            }
+        }
+    }
+
+    /** Reads the queries sent on a TCP connection until the client closes it or it is idle for
+     * too long. Queries are resolved concurrently, so responses may be sent out of order. Once
+     * the client stops sending queries, the responses still being resolved are sent before the
+     * connection is closed.
+     *
+     * @param socket Connection to the client.
+     */
+    private void serveTcpConnection(Socket socket) {
+        List<Future<?>> inFlight = new ArrayList<>();
+        try (socket) {
+            socket.setSoTimeout(TCP_IDLE_TIMEOUT_MILLIS);
+            DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            try {
+                readTcpQueries(input, output, inFlight);
+            } catch (EOFException | SocketTimeoutException e) {
+                // client closed the connection (or its sending side), or it was idle
+            }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LookupBudget.DEFAULT_TIME_MILLIS);
+            for (Future<?> response : inFlight)
+                response.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (IOException | RejectedExecutionException | ExecutionException | TimeoutException e) {
+            // connection failed, or the server was stopped or overloaded
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void readTcpQueries(DataInputStream input, DataOutputStream output, List<Future<?>> inFlight)
+            throws IOException {
+        while (true) {
+            byte[] query = new byte[input.readUnsignedShort()];
+            input.readFully(query);
+            inFlight.removeIf(Future::isDone);
+            try {
+                inFlight.add(workers.submit(() ->
+                        sendTcpResponse(handleQuery(ByteBuffer.wrap(query), MAX_MESSAGE_SIZE), output)));
+            } catch (RejectedExecutionException e) {
+                if (workers.isShutdown()) throw e;
+                sendTcpResponse(overloadedResponse(ByteBuffer.wrap(query)), output);
+            }
+        }
+    }
+
+    private static void sendTcpResponse(ByteBuffer response, DataOutputStream output) {
+        if (response == null) return;
+        synchronized (output) {
+            try {
+                output.writeShort(response.remaining());
+                output.write(response.array(), response.arrayOffset(), response.remaining());
+                output.flush();
+            } catch (IOException ignored) {
+                // the connection is closed by the reading thread
+            }
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -1,14 +1,21 @@
 package ca.ubc.cs317.dnslookup;
 
+import java.net.InetAddress;
 import java.nio.ByteBuffer;
 
 public class DNSServerResponse {
     private final ByteBuffer response;
     private final int transactionID;
+    private final InetAddress server;
 
     public DNSServerResponse(ByteBuffer response, int transactionID) {
+        this(response, transactionID, null);
+    }
+
+    public DNSServerResponse(ByteBuffer response, int transactionID, InetAddress server) {
         this.response = response;
         this.transactionID = transactionID;
+        this.server = server;
     }
 
     public ByteBuffer getResponse() {
@@ -18,4 +25,12 @@ public class DNSServerResponse {
     public int getTransactionID() {
         return transactionID;
     }
+
+    /** Returns the address of the server that sent the response.
+     *
+     * @return The address of the server, or null if it is not known.
+     */
+    public InetAddress getServer() {
+        return server;
+    }
 }
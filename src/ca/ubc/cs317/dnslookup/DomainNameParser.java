@@ -1,42 +1,158 @@
 package ca.ubc.cs317.dnslookup;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
+/** Parses domain names in DNS messages, including compressed names. The parser keeps no state
+ * between calls and may be used by multiple threads at the same time. Each name is decoded into
+ * a small per-thread scratch buffer and then looked up in the shared NameTable, so names that
+ * were seen before are not allocated again.
+ *
+ * Each compression pointer must point to an earlier position in the message than the previous
+ * one (or than the name itself, for the first pointer), and the decoded name may not exceed 255
+ * characters, so a malicious message cannot make the parser loop. Every byte read must be
+ * within the limit of the buffer. Malformed or truncated names result in an
+ * IllegalArgumentException.
+ */
 public class DomainNameParser {
-    
-    private static int length;
-    private static String domainName = "";
-
-    public static void parse(byte[] b, int pos) {
-        length = 0;
-        domainName = "";
-        boolean isCompressed = false;
+
+    private static final int MAX_NAME_LENGTH = 255;
+
+    private static final ThreadLocal<char[]> scratch =
+            ThreadLocal.withInitial(() -> new char[MAX_NAME_LENGTH + 1]);
+
+    /** A parsed domain name, along with the number of bytes it takes at the position where it
+     * was found (which, for compressed names, does not include the bytes pointed to).
+     */
+    public static final class ParsedName {
+        private final String name;
+        private final int length;
+
+        private ParsedName(String name, int length) {
+            this.name = name;
+            this.length = length;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getLength() {
+            return length;
+        }
+    }
+
+    public static ParsedName parse(byte[] b, int pos) {
+        return parse(ByteBuffer.wrap(b), 0, pos);
+    }
+
+    /**
+     * Parses a (possibly compressed) domain name in a message stored in a buffer. Compression
+     * pointers are relative to the start of the message, which does not need to be the start of
+     * the buffer. The buffer's position and limit are not changed.
+     *
+     * @param b    Buffer containing the message.
+     * @param base Index of the first byte of the message in the buffer.
+     * @param pos  Offset of the name, relative to the start of the message.
+     * @return The parsed name and the number of bytes it takes at the specified offset.
+     * @throws IllegalArgumentException if the name is malformed or extends past the buffer
+     */
+    public static ParsedName parse(ByteBuffer b, int base, int pos) {
+        int[] length = new int[1];
+        String name = decode(b, base, pos, length);
+        return new ParsedName(name, length[0]);
+    }
+
+    /**
+     * Parses a (possibly compressed) domain name in a message, without computing its length.
+     *
+     * @param b    Buffer containing the message.
+     * @param base Index of the first byte of the message in the buffer.
+     * @param pos  Offset of the name, relative to the start of the message.
+     * @return The parsed name, without a trailing dot. The root is returned as an empty string.
+     * @throws IllegalArgumentException if the name is malformed or extends past the buffer
+     */
+    public static String parseName(ByteBuffer b, int base, int pos) {
+        return decode(b, base, pos, null);
+    }
+
+    /**
+     * Decodes a name in a single pass, following compression pointers, and optionally reports the
+     * number of bytes it takes at its offset (up to and including the first pointer).
+     *
+     * @param b      Buffer containing the message.
+     * @param base   Index of the first byte of the message in the buffer.
+     * @param pos    Offset of the name, relative to the start of the message.
+     * @param length Array whose first element receives the number of bytes taken by the name, or
+     *               null if the length is not needed.
+     * @return The parsed name, without a trailing dot.
+     * @throws IllegalArgumentException if the name is malformed or extends past the buffer
+     */
+    private static String decode(ByteBuffer b, int base, int pos, int[] length) {
+        char[] chars = scratch.get();
+        int nameLength = 0;
+        int pointerLimit = pos;
         int curPos = pos;
-        int label = b[curPos++];
-        length++;
+        int label = byteAt(b, base, curPos++);
 
         while (label != 0) {
-            if (label > 0) {
-                domainName += new String(Arrays.copyOfRange(b, curPos, curPos + label));
-                curPos += label;
-                if (!isCompressed) length += label;
-                label = b[curPos++];
-                if (!isCompressed) length++;
-                if (label != 0) domainName += ".";
+            if (label < 0x40) {
+                if (nameLength + label + (nameLength > 0 ? 1 : 0) > MAX_NAME_LENGTH)
+                    throw new IllegalArgumentException("Domain name longer than " + MAX_NAME_LENGTH + " characters");
+                checkBounds(b, base, curPos, label);
+                if (nameLength > 0) chars[nameLength++] = '.';
+                for (int i = 0; i < label; i++)
+                    chars[nameLength++] = (char) (b.get(base + curPos++) & 0xFF);
+            } else if (label >= 0xC0) {
+                int pointer = ((label & 0x3F) << 8) | byteAt(b, base, curPos);
+                if (pointer >= pointerLimit)
+                    throw new IllegalArgumentException("Compression pointer does not point backwards");
+                if (length != null && pointerLimit == pos) length[0] = curPos + 1 - pos;
+                pointerLimit = pointer;
+                curPos = pointer;
             } else {
-                curPos = ((label & 0x3F) << 8) | (b[curPos] & 0xFF);
-                label = b[curPos++];
-                if (!isCompressed) length++;
-                isCompressed = true;
+                throw new IllegalArgumentException("Unsupported label type " + label);
+            }
+            label = byteAt(b, base, curPos++);
+        }
+        if (length != null && pointerLimit == pos) length[0] = curPos - pos;
+        return NameTable.getInstance().intern(chars, nameLength);
+    }
+
+    /**
+     * Returns the number of bytes a domain name takes at a specific position in a message. For
+     * compressed names, this includes the bytes up to and including the first pointer.
+     *
+     * @param b    Buffer containing the message.
+     * @param base Index of the first byte of the message in the buffer.
+     * @param pos  Offset of the name, relative to the start of the message.
+     * @return The number of bytes taken by the name.
+     * @throws IllegalArgumentException if the name is malformed or extends past the buffer
+     */
+    public static int nameLength(ByteBuffer b, int base, int pos) {
+        int curPos = pos;
+        while (true) {
+            int label = byteAt(b, base, curPos);
+            if (label == 0) return curPos + 1 - pos;
+            if (label >= 0xC0) {
+                checkBounds(b, base, curPos + 1, 1);
+                return curPos + 2 - pos;
             }
+            if (label >= 0x40) throw new IllegalArgumentException("Unsupported label type " + label);
+            curPos += label + 1;
         }
     }
 
-    public static int getDataLength() {
-        return length;
+    /** Reads an unsigned byte of a message, checking that it is within the buffer.
+     */
+    private static int byteAt(ByteBuffer b, int base, int offset) {
+        checkBounds(b, base, offset, 1);
+        return b.get(base + offset) & 0xFF;
     }
 
-    public static String getDomainName() {
-        return domainName;
+    /** Checks that a range of bytes of a message is within the buffer.
+     */
+    private static void checkBounds(ByteBuffer b, int base, int offset, int count) {
+        if (base < 0 || offset < 0 || base + offset + count > b.limit())
+            throw new IllegalArgumentException("Domain name extends past the end of the message");
     }
 }
@@ -0,0 +1,129 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** A compact, approximate frequency counter (count-min sketch) used by the cache to decide which
+ * entries are worth keeping, in the style of TinyLFU. Each item is mapped to four 4-bit counters,
+ * and its estimated frequency is the smallest of them. Once the number of recorded accesses
+ * reaches a sample size proportional to the capacity, all counters are halved, so the sketch
+ * favours items that have been popular recently.
+ *
+ * Counters may be incremented concurrently by multiple threads. Updates use compare-and-set, and
+ * an occasional lost update during a reset is tolerated since the counts are only estimates.
+ */
+public class FrequencySketch {
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    private volatile AtomicLongArray table;
+    private volatile int sampleSize;
+    private final AtomicInteger size = new AtomicInteger();
+
+    /** Creates a sketch sized for a cache of a specific capacity.
+     *
+     * @param capacity Maximum number of entries expected in the cache.
+     */
+    public FrequencySketch(int capacity) {
+        int length = tableLength(capacity);
+        this.table = new AtomicLongArray(length);
+        this.sampleSize = 10 * Math.max(capacity, 16);
+    }
+
+    /** Changes the capacity the sketch is sized for, keeping the current estimates. The table is
+     * only ever grown: since an item's counters are found by masking its hash, each counter of
+     * a larger table starts with the value of the counter it was masked to in the smaller one.
+     * Increments made by other threads while the table grows may be lost.
+     *
+     * @param capacity Maximum number of entries expected in the cache.
+     */
+    public synchronized void setCapacity(int capacity) {
+        int length = tableLength(capacity);
+        AtomicLongArray current = table;
+        if (length > current.length()) {
+            AtomicLongArray grown = new AtomicLongArray(length);
+            int currentMask = current.length() - 1;
+            for (int i = 0; i < length; i++)
+                grown.set(i, current.get(i & currentMask));
+            table = grown;
+        }
+        sampleSize = 10 * Math.max(capacity, 16);
+    }
+
+    /** Returns the estimated number of times an item was accessed recently, up to 15.
+     *
+     * @param item Item whose frequency is being requested.
+     * @return Estimated frequency of the item.
+     */
+    public int frequency(Object item) {
+        int hash = spread(item.hashCode());
+        AtomicLongArray counters = table;
+        int mask = counters.length() - 1;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i, mask);
+            int offset = counterOffset(hash, i);
+            frequency = Math.min(frequency, (int) ((counters.get(index) >>> offset) & 0xfL));
+        }
+        return frequency;
+    }
+
+    /** Records an access to an item, incrementing its counters if they are not saturated.
+     *
+     * @param item Item being accessed.
+     */
+    public void increment(Object item) {
+        int hash = spread(item.hashCode());
+        AtomicLongArray counters = table;
+        int mask = counters.length() - 1;
+        boolean added = false;
+        for (int i = 0; i < 4; i++)
+            added |= incrementAt(counters, indexOf(hash, i, mask), counterOffset(hash, i));
+
+        if (added && size.incrementAndGet() >= sampleSize)
+            reset();
+    }
+
+    private static boolean incrementAt(AtomicLongArray counters, int index, int offset) {
+        long mask = 0xfL << offset;
+        while (true) {
+            long value = counters.get(index);
+            if ((value & mask) == mask) return false;
+            if (counters.compareAndSet(index, value, value + (1L << offset))) return true;
+        }
+    }
+
+    private void reset() {
+        int samples = sampleSize;
+        if (size.getAndSet(samples / 2) < samples) return;
+        AtomicLongArray counters = table;
+        for (int i = 0; i < counters.length(); i++) {
+            long value;
+            do {
+                value = counters.get(i);
+            } while (!counters.compareAndSet(i, value, (value >>> 1) & RESET_MASK));
+        }
+    }
+
+    private static int tableLength(int capacity) {
+        return Integer.highestOneBit(Math.max(16, Math.min(capacity, 1 << 26)) - 1) << 1;
+    }
+
+    private static int indexOf(int hash, int i, int mask) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return ((int) h) & mask;
+    }
+
+    private static int counterOffset(int hash, int i) {
+        return (((hash >>> (i << 3)) & 3) << 2) + (i << 4);
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
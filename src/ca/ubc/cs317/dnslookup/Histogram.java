@@ -0,0 +1,100 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/** A lock-free histogram of non-negative values (e.g., latencies in microseconds), with buckets
+ * of logarithmically increasing width as in HdrHistogram. Each power of two is split into
+ * SUB_BUCKETS buckets of equal width, so values are recorded with a relative error of at most
+ * 1/SUB_BUCKETS (about 6%) using a fixed amount of memory. Values smaller than SUB_BUCKETS are
+ * recorded exactly, and values larger than MAX_VALUE are recorded as MAX_VALUE.
+ *
+ * Recording a value only updates a few atomic counters, so it can be done on hot paths by
+ * multiple threads. Percentiles are computed from a snapshot of the counters, which may be
+ * slightly inconsistent with the count and sum if values are recorded concurrently.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    public static final long MAX_VALUE = (1L << 36) - 1;
+    private static final int BUCKETS = bucketIndex(MAX_VALUE) + 1;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /** Records a value. Negative values are recorded as zero.
+     *
+     * @param value Value to be recorded.
+     */
+    public void record(long value) {
+        value = Math.max(0, Math.min(value, MAX_VALUE));
+        buckets.incrementAndGet(bucketIndex(value));
+        count.increment();
+        sum.add(value);
+        if (value > max.get()) max.accumulateAndGet(value, Math::max);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /** Returns the value below which a given fraction of the recorded values fall. The value
+     * returned is the highest value of the bucket containing the percentile, so it is never
+     * lower than the exact percentile, and it is at most the maximum value recorded.
+     *
+     * @param fraction Fraction of the values, between 0 and 1 (e.g., 0.99 for the 99th
+     *                 percentile).
+     * @return The value at the percentile, or 0 if no value was recorded.
+     */
+    public long getPercentile(double fraction) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return Math.min(highestValue(i), max.get());
+        }
+        return max.get();
+    }
+
+    /** Returns the index of the bucket containing a value.
+     */
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /** Returns the highest value contained in a bucket.
+     */
+    private static long highestValue(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,211 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/** An index of host names organized as a trie of labels read from right to left: the root has a
+ * child for each top-level domain (e.g., com), which has a child for each name directly below it
+ * (e.g., example.com), and so on. Each entry records which record types are indexed for its name.
+ * Finding the zones enclosing a name therefore takes one step per label, and all names in a zone
+ * can be visited (or removed) without scanning other names.
+ *
+ * The trie may be used by multiple threads at the same time. Lookups never lock. Entries are
+ * added and removed under the lock of the entry (and of its parent, when the entry is removed),
+ * and an entry that has been removed from the trie is marked as such, so that a thread that
+ * reached it before it was removed starts over instead of updating a detached entry. Entries
+ * without record types or children are removed as soon as the last record type is removed.
+ *
+ * Names are compared case-insensitively, and are stored in lower case, without a trailing dot.
+ * The root zone is represented by the empty name.
+ */
+public class LabelTrie {
+
+    private static final int MAX_DEPTH = 128;
+
+    private final Entry root = new Entry("", null);
+
+    private static class Entry {
+        private final String name;
+        private final Entry parent;
+        private volatile Map<String, Entry> children;
+        private volatile int types;
+        private boolean removed; // guarded by this
+
+        private Entry(String name, Entry parent) {
+            this.name = name;
+            this.parent = parent;
+        }
+
+        private Entry getChild(String childName) {
+            Map<String, Entry> map = children;
+            return map == null ? null : map.get(childName);
+        }
+
+        private boolean hasChildren() {
+            Map<String, Entry> map = children;
+            return map != null && !map.isEmpty();
+        }
+    }
+
+    /** Adds a node to the trie, i.e., records that its host name has records of its type.
+     *
+     * @param node Host name and record type to be added.
+     */
+    public void add(DNSNode node) {
+        String name = normalize(node.getHostName());
+        int bit = 1 << node.getType().ordinal();
+        while (true) {
+            Entry entry = findOrCreate(name);
+            if (entry == null) continue; // an entry on the path was removed concurrently
+            synchronized (entry) {
+                if (entry.removed) continue;
+                entry.types |= bit;
+                return;
+            }
+        }
+    }
+
+    /** Removes a node from the trie. The entry of its host name is removed as well if no other
+     * record type is indexed for the name and no name is indexed below it, and so are any of its
+     * ancestors that become empty.
+     *
+     * @param node Host name and record type to be removed.
+     */
+    public void remove(DNSNode node) {
+        Entry entry = find(normalize(node.getHostName()));
+        if (entry == null) return;
+        synchronized (entry) {
+            entry.types &= ~(1 << node.getType().ordinal());
+        }
+        prune(entry);
+    }
+
+    /** Finds the deepest zone enclosing a host name (or the name itself) for which NS records are
+     * indexed, and that satisfies a condition, e.g., that the addresses of its name servers are
+     * known. The root zone is never returned.
+     *
+     * @param hostName Host name being resolved.
+     * @param accept   Condition checked on the name of each candidate zone, deepest first.
+     * @return The name of the deepest accepted zone, in lower case, or null if there is none.
+     */
+    public String findClosestZone(String hostName, Predicate<String> accept) {
+        String name = normalize(hostName);
+        int nsBit = 1 << RecordType.NS.ordinal();
+        String[] candidates = new String[MAX_DEPTH];
+        int count = 0;
+        Entry entry = root;
+        int start = name.length();
+        while (start > 0 && count < MAX_DEPTH) {
+            start = name.lastIndexOf('.', start - 2) + 1;
+            entry = entry.getChild(start == 0 ? name : name.substring(start));
+            if (entry == null) break;
+            if ((entry.types & nsBit) != 0) candidates[count++] = entry.name;
+        }
+        while (count > 0)
+            if (accept.test(candidates[--count])) return candidates[count];
+        return null;
+    }
+
+    /** Visits every node indexed for a zone, i.e., for the name of the zone and all names below
+     * it. Nodes added or removed while the trie is visited may or may not be visited.
+     *
+     * @param zone     Name of the zone; the empty name (or ".") visits every node.
+     * @param consumer Action performed for each node. Host names are given in lower case.
+     */
+    public void forEachNode(String zone, Consumer<DNSNode> consumer) {
+        Entry top = find(normalize(zone));
+        if (top == null) return;
+
+        RecordType[] recordTypes = RecordType.values();
+        Deque<Entry> pending = new ArrayDeque<>();
+        pending.push(top);
+        while (!pending.isEmpty()) {
+            Entry entry = pending.pop();
+            int types = entry.types;
+            for (RecordType type : recordTypes)
+                if ((types & (1 << type.ordinal())) != 0)
+                    consumer.accept(new DNSNode(entry.name, type));
+            Map<String, Entry> children = entry.children;
+            if (children != null)
+                children.values().forEach(pending::push);
+        }
+    }
+
+    /** Returns true if a host name is a zone or is within a zone.
+     *
+     * @param hostName Host name to be checked.
+     * @param zone     Name of the zone; every name is within the root zone ("" or ".").
+     * @return true if the host name is the zone or a name below it.
+     */
+    public static boolean isWithin(String hostName, String zone) {
+        String name = normalize(hostName);
+        String suffix = normalize(zone);
+        if (suffix.isEmpty() || name.equals(suffix)) return true;
+        return name.endsWith(suffix) && name.charAt(name.length() - suffix.length() - 1) == '.';
+    }
+
+    private Entry find(String name) {
+        Entry entry = root;
+        int start = name.length();
+        while (start > 0 && entry != null) {
+            start = name.lastIndexOf('.', start - 2) + 1;
+            entry = entry.getChild(start == 0 ? name : name.substring(start));
+        }
+        return entry;
+    }
+
+    /** Finds the entry of a name, creating it and any missing ancestors.
+     *
+     * @param name Normalized host name.
+     * @return The entry of the name, or null if an entry on the path was removed concurrently, in
+     *         which case the caller should try again.
+     */
+    private Entry findOrCreate(String name) {
+        Entry entry = root;
+        int start = name.length();
+        while (start > 0) {
+            start = name.lastIndexOf('.', start - 2) + 1;
+            String childName = start == 0 ? name : name.substring(start);
+            Entry child = entry.getChild(childName);
+            if (child == null) {
+                synchronized (entry) {
+                    if (entry.removed) return null;
+                    if (entry.children == null) entry.children = new ConcurrentHashMap<>();
+                    Entry parent = entry;
+                    child = entry.children.computeIfAbsent(NameTable.getInstance().intern(childName),
+                            key -> new Entry(key, parent));
+                }
+            }
+            entry = child;
+        }
+        return entry;
+    }
+
+    /** Removes an entry if it is empty, and then each of its ancestors that becomes empty. Locks
+     * are always taken from parent to child, so pruning threads cannot deadlock.
+     *
+     * @param entry Entry that may have become empty.
+     */
+    private void prune(Entry entry) {
+        while (entry.parent != null) {
+            Entry parent = entry.parent;
+            synchronized (parent) {
+                synchronized (entry) {
+                    if (entry.removed || entry.types != 0 || entry.hasChildren()) return;
+                    entry.removed = true;
+                    parent.children.remove(entry.name, entry);
+                }
+            }
+            entry = parent;
+        }
+    }
+
+    private static String normalize(String hostName) {
+        String name = hostName.endsWith(".") ? hostName.substring(0, hostName.length() - 1) : hostName;
+        return name.toLowerCase();
+    }
+}
@@ -0,0 +1,76 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Limits the time and number of queries spent on a single lookup, including the queries sent
+ * to follow referrals, CNAME records and name servers without glue. A budget is created for each
+ * lookup and shared by all queries sent on its behalf, possibly by multiple threads. The budget
+ * also keeps the last error encountered, so a lookup that fails can report why.
+ */
+public class LookupBudget {
+
+    public static final long DEFAULT_TIME_MILLIS = 10_000;
+    public static final int DEFAULT_MAX_QUERIES = 64;
+
+    private final long deadlineNanos;
+    private final AtomicInteger remainingQueries;
+    private final AtomicInteger referrals = new AtomicInteger();
+    private volatile Exception lastError;
+
+    /** Creates a budget with the default time and number of queries.
+     */
+    public LookupBudget() {
+        this(DEFAULT_TIME_MILLIS, DEFAULT_MAX_QUERIES);
+    }
+
+    /** Creates a budget with a specific time and number of queries.
+     *
+     * @param timeMillis Maximum time spent on the lookup, in milliseconds.
+     * @param maxQueries Maximum number of queries sent (including retransmissions).
+     */
+    public LookupBudget(long timeMillis, int maxQueries) {
+        this.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeMillis);
+        this.remainingQueries = new AtomicInteger(maxQueries);
+    }
+
+    /** Returns the time left before the lookup's deadline.
+     *
+     * @return The remaining time, in milliseconds, or zero if the deadline has passed.
+     */
+    public long getRemainingMillis() {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+    }
+
+    /** Takes one query from the budget, if the budget allows it.
+     *
+     * @return true if a query may be sent, or false if the budget is exhausted.
+     */
+    public boolean tryAcquireQuery() {
+        if (deadlineNanos - System.nanoTime() <= 0) return false;
+        return remainingQueries.getAndDecrement() > 0;
+    }
+
+    /** Records that a referral to the name servers of a subzone was followed for this lookup.
+     */
+    public void recordReferral() {
+        referrals.incrementAndGet();
+    }
+
+    /** Returns the number of referrals followed for this lookup, including the referrals
+     * followed to resolve CNAME targets and name servers without glue.
+     *
+     * @return The number of referrals followed.
+     */
+    public int getReferrals() {
+        return referrals.get();
+    }
+
+    public Exception getLastError() {
+        return lastError;
+    }
+
+    public void setLastError(Exception lastError) {
+        this.lastError = lastError;
+    }
+}
@@ -0,0 +1,81 @@
+package ca.ubc.cs317.dnslookup;
+
+/** A bounded dictionary of domain names, used so that names that appear in many responses (e.g.,
+ * ns1.example.com) are stored only once in memory. Names are looked up directly from the
+ * characters decoded by the parser, so a name that is already in the table is returned without
+ * allocating a new string.
+ *
+ * The table is direct-mapped: each name can only be stored in one slot, and a new name replaces
+ * whatever name was previously stored in its slot. The memory used by the table is therefore
+ * fixed, and frequently seen names naturally stay in it. Slots are read and written without
+ * locking; since strings are immutable, a race only means a name may be created twice.
+ */
+public class NameTable {
+
+    private static final int DEFAULT_SIZE = 1 << 14;
+    private static final NameTable instance = new NameTable(DEFAULT_SIZE);
+
+    private final String[] names;
+    private final int mask;
+
+    /** Creates a table with a fixed number of slots.
+     *
+     * @param size Number of slots, rounded up to a power of two.
+     */
+    public NameTable(int size) {
+        int slots = Integer.highestOneBit(Math.max(2, size) - 1) << 1;
+        this.names = new String[slots];
+        this.mask = slots - 1;
+    }
+
+    /** Returns the table shared by the whole application.
+     *
+     * @return The shared name table.
+     */
+    public static NameTable getInstance() {
+        return instance;
+    }
+
+    /** Returns the shared instance of a name composed of some characters, adding it to the table
+     * if it is not already there.
+     *
+     * @param chars  Array containing the characters of the name.
+     * @param length Number of characters in the name, starting at the beginning of the array.
+     * @return A string containing the name.
+     */
+    public String intern(char[] chars, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++)
+            hash = 31 * hash + chars[i];
+        int slot = (hash ^ (hash >>> 16)) & mask;
+
+        String name = names[slot];
+        if (name != null && matches(name, chars, length))
+            return name;
+
+        name = new String(chars, 0, length);
+        names[slot] = name;
+        return name;
+    }
+
+    /** Returns the shared instance of a name, adding it to the table if it is not already there.
+     *
+     * @param name Name to be looked up.
+     * @return An equal string, possibly the same instance.
+     */
+    public String intern(String name) {
+        int slot = (name.hashCode() ^ (name.hashCode() >>> 16)) & mask;
+        String existing = names[slot];
+        if (name.equals(existing))
+            return existing;
+        names[slot] = name;
+        return name;
+    }
+
+    private static boolean matches(String name, char[] chars, int length) {
+        if (name.length() != length) return false;
+        for (int i = 0; i < length; i++)
+            if (name.charAt(i) != chars[i]) return false;
+        return true;
+    }
+}
@@ -0,0 +1,341 @@
+package ca.ubc.cs317.dnslookup;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Counters and latency histograms of the resolver: end-to-end lookup latency, referrals
+ * followed per lookup, queries sent, timeouts, response codes received and the RTT of each
+ * upstream server. Cache counters are read from the shared DNSCache. All updates are lock-free
+ * (LongAdder and Histogram), so they can be made on every query.
+ *
+ * The metrics are available through JMX (once registerMBean() is called), the stats command,
+ * and in the Prometheus text format (see MetricsServer).
+ */
+public class ResolverMetrics implements ResolverMetricsMXBean {
+
+    public static final String OBJECT_NAME = "ca.ubc.cs317.dnslookup:type=ResolverMetrics";
+    private static final int MAX_SERVERS = 1024;
+    private static final String[] RCODE_NAMES = {"NOERROR", "FORMERR", "SERVFAIL", "NXDOMAIN", "NOTIMP",
+            "REFUSED", "YXDOMAIN", "YXRRSET", "NXRRSET", "NOTAUTH", "NOTZONE"};
+
+    private static final ResolverMetrics instance = new ResolverMetrics();
+
+    private final Histogram lookupLatency = new Histogram();
+    private final Histogram referrals = new Histogram();
+    private final Histogram upstreamRtt = new Histogram();
+    private final ConcurrentHashMap<InetAddress, Histogram> serverRtt = new ConcurrentHashMap<>();
+    private final LongAdder lookupFailures = new LongAdder();
+    private final LongAdder queriesSent = new LongAdder();
+    private final LongAdder tcpQueriesSent = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder[] responseCodes = new LongAdder[16];
+    private final DNSCache cache = DNSCache.getInstance();
+
+    private ResolverMetrics() {
+        for (int i = 0; i < responseCodes.length; i++)
+            responseCodes[i] = new LongAdder();
+    }
+
+    /** Returns the metrics shared by the whole application.
+     *
+     * @return The shared resolver metrics.
+     */
+    public static ResolverMetrics getInstance() {
+        return instance;
+    }
+
+    /** Registers the metrics with the platform MBean server, so they can be read through JMX
+     * (e.g., with jconsole). Does nothing if they are already registered.
+     *
+     * @throws JMException if the metrics could not be registered
+     */
+    public void registerMBean() throws JMException {
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+    }
+
+    /** Records a complete lookup, including the lookups of CNAME targets and name servers.
+     *
+     * @param latencyNanos Time taken by the lookup, in nanoseconds.
+     * @param referrals    Number of referrals followed by the lookup.
+     * @param failed       Whether the lookup failed, i.e., it returned no result because of an
+     *                     error (rather than because the name or type does not exist).
+     */
+    public void recordLookup(long latencyNanos, int referrals, boolean failed) {
+        lookupLatency.record(TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+        this.referrals.record(referrals);
+        if (failed) lookupFailures.increment();
+    }
+
+    /** Records a query sent to an upstream server (not including retransmissions over TCP of
+     * truncated responses, which are counted separately).
+     *
+     * @param tcp Whether the query was sent over TCP.
+     */
+    public void recordQuery(boolean tcp) {
+        if (tcp) tcpQueriesSent.increment();
+        else queriesSent.increment();
+    }
+
+    /** Records the round-trip time of a query answered by an upstream server.
+     *
+     * @param server   Address of the server.
+     * @param rttNanos Time between sending the query and receiving the response, in nanoseconds.
+     */
+    public void recordRtt(InetAddress server, long rttNanos) {
+        long rttMicros = TimeUnit.NANOSECONDS.toMicros(rttNanos);
+        upstreamRtt.record(rttMicros);
+        Histogram histogram = serverRtt.get(server);
+        if (histogram == null) {
+            if (serverRtt.size() >= MAX_SERVERS) return;
+            histogram = serverRtt.computeIfAbsent(server, key -> new Histogram());
+        }
+        histogram.record(rttMicros);
+    }
+
+    /** Records a query that was not answered before its timeout.
+     */
+    public void recordTimeout() {
+        timeouts.increment();
+    }
+
+    /** Records the response code (RCODE) of a response received from an upstream server.
+     *
+     * @param responseCode The response code, between 0 and 15.
+     */
+    public void recordResponseCode(int responseCode) {
+        responseCodes[responseCode & 0xF].increment();
+    }
+
+    public Histogram getLookupLatency() {
+        return lookupLatency;
+    }
+
+    public Histogram getReferrals() {
+        return referrals;
+    }
+
+    public Histogram getUpstreamRtt() {
+        return upstreamRtt;
+    }
+
+    /** Returns the RTT histogram of each upstream server, for the first MAX_SERVERS servers.
+     *
+     * @return A map from server address to RTT histogram (in microseconds).
+     */
+    public Map<InetAddress, Histogram> getServerRtt() {
+        return serverRtt;
+    }
+
+    @Override
+    public long getLookups() {
+        return lookupLatency.getCount();
+    }
+
+    @Override
+    public long getLookupFailures() {
+        return lookupFailures.sum();
+    }
+
+    @Override
+    public double getLookupLatencyMeanMicros() {
+        return lookupLatency.getMean();
+    }
+
+    @Override
+    public long getLookupLatencyP50Micros() {
+        return lookupLatency.getPercentile(0.5);
+    }
+
+    @Override
+    public long getLookupLatencyP99Micros() {
+        return lookupLatency.getPercentile(0.99);
+    }
+
+    @Override
+    public long getLookupLatencyP999Micros() {
+        return lookupLatency.getPercentile(0.999);
+    }
+
+    @Override
+    public long getLookupLatencyMaxMicros() {
+        return lookupLatency.getMax();
+    }
+
+    @Override
+    public double getReferralsPerLookupMean() {
+        return referrals.getMean();
+    }
+
+    @Override
+    public long getReferralsPerLookupMax() {
+        return referrals.getMax();
+    }
+
+    @Override
+    public long getQueriesSent() {
+        return queriesSent.sum();
+    }
+
+    @Override
+    public long getTcpQueriesSent() {
+        return tcpQueriesSent.sum();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    /** Returns the number of responses received with each response code. Codes that were never
+     * received are not included.
+     *
+     * @return A map from response code name (e.g., NXDOMAIN) to number of responses.
+     */
+    @Override
+    public Map<String, Long> getResponseCodes() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (int i = 0; i < responseCodes.length; i++) {
+            long count = responseCodes[i].sum();
+            if (count > 0) counts.put(getResponseCodeName(i), count);
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getUpstreamRttP50Micros() {
+        return getServerPercentiles(0.5);
+    }
+
+    @Override
+    public Map<String, Long> getUpstreamRttP99Micros() {
+        return getServerPercentiles(0.99);
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cache.getHitCount();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cache.getMissCount();
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+        long hits = cache.getHitCount();
+        long misses = cache.getMissCount();
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    @Override
+    public long getCacheInserts() {
+        return cache.getInsertCount();
+    }
+
+    @Override
+    public long getCacheExpirations() {
+        return cache.getExpirationCount();
+    }
+
+    @Override
+    public long getCacheEvictions() {
+        return cache.getEvictionCount();
+    }
+
+    @Override
+    public int getCacheSize() {
+        return cache.size();
+    }
+
+    /** Returns the name of a response code, as used in the metrics.
+     *
+     * @param responseCode The response code, between 0 and 15.
+     * @return The name of the code (e.g., NXDOMAIN), or RCODE followed by its number if it has
+     *         no name.
+     */
+    public static String getResponseCodeName(int responseCode) {
+        return responseCode < RCODE_NAMES.length ? RCODE_NAMES[responseCode] : "RCODE" + responseCode;
+    }
+
+    /** Formats all metrics in the Prometheus text exposition format (version 0.0.4). Latencies
+     * are exposed as summaries, in seconds.
+     *
+     * @return The metrics, one sample per line.
+     */
+    public String toPrometheusText() {
+        StringBuilder out = new StringBuilder();
+        summary(out, "dnslookup_lookup_duration_seconds", "End-to-end latency of lookups.", "",
+                lookupLatency, 1e-6);
+        counter(out, "dnslookup_lookup_failures_total", "Lookups that failed with an error.", lookupFailures.sum());
+        summary(out, "dnslookup_lookup_referrals", "Referrals followed per lookup.", "", referrals, 1);
+        counter(out, "dnslookup_queries_total", "Queries sent to upstream servers over UDP.", queriesSent.sum());
+        counter(out, "dnslookup_tcp_queries_total", "Queries sent to upstream servers over TCP.",
+                tcpQueriesSent.sum());
+        counter(out, "dnslookup_timeouts_total", "Queries that timed out.", timeouts.sum());
+
+        header(out, "dnslookup_responses_total", "Responses received from upstream servers, by RCODE.", "counter");
+        for (Map.Entry<String, Long> entry : getResponseCodes().entrySet())
+            out.append("dnslookup_responses_total{rcode=\"").append(entry.getKey()).append("\"} ")
+                    .append(entry.getValue()).append('\n');
+
+        header(out, "dnslookup_upstream_rtt_seconds", "Round-trip time of upstream servers.", "summary");
+        for (Map.Entry<InetAddress, Histogram> entry : serverRtt.entrySet())
+            summarySamples(out, "dnslookup_upstream_rtt_seconds",
+                    "server=\"" + entry.getKey().getHostAddress() + "\"", entry.getValue(), 1e-6);
+
+        counter(out, "dnslookup_cache_hits_total", "Cache lookups that found records.", cache.getHitCount());
+        counter(out, "dnslookup_cache_misses_total", "Cache lookups that found no record.", cache.getMissCount());
+        counter(out, "dnslookup_cache_inserts_total", "Records added to the cache.", cache.getInsertCount());
+        counter(out, "dnslookup_cache_expirations_total", "Records removed from the cache after expiring.",
+                cache.getExpirationCount());
+        counter(out, "dnslookup_cache_evictions_total", "Records evicted from the cache to make room.",
+                cache.getEvictionCount());
+        header(out, "dnslookup_cache_records", "Records in the cache.", "gauge");
+        out.append("dnslookup_cache_records ").append(cache.size()).append('\n');
+        return out.toString();
+    }
+
+    private Map<String, Long> getServerPercentiles(double fraction) {
+        Map<String, Long> percentiles = new TreeMap<>();
+        serverRtt.forEach((server, histogram) -> percentiles.put(server.getHostAddress(),
+                histogram.getPercentile(fraction)));
+        return percentiles;
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "counter");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder out, String name, String help, String labels,
+                                Histogram histogram, double scale) {
+        header(out, name, help, "summary");
+        summarySamples(out, name, labels, histogram, scale);
+    }
+
+    private static void summarySamples(StringBuilder out, String name, String labels,
+                                       Histogram histogram, double scale) {
+        String separator = labels.isEmpty() ? "" : ",";
+        for (double quantile : new double[]{0.5, 0.9, 0.99, 0.999})
+            out.append(name).append("{").append(labels).append(separator).append("quantile=\"")
+                    .append(quantile).append("\"} ").append(histogram.getPercentile(quantile) * scale).append('\n');
+        String suffixLabels = labels.isEmpty() ? "" : "{" + labels + "}";
+        out.append(name).append("_sum").append(suffixLabels).append(' ').append(histogram.getSum() * scale).append('\n');
+        out.append(name).append("_count").append(suffixLabels).append(' ').append(histogram.getCount()).append('\n');
+    }
+}
@@ -0,0 +1,53 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.Map;
+
+/** Management interface of ResolverMetrics, registered with the platform MBean server as
+ * ca.ubc.cs317.dnslookup:type=ResolverMetrics. Latencies are in microseconds.
+ */
+public interface ResolverMetricsMXBean {
+
+    long getLookups();
+
+    long getLookupFailures();
+
+    double getLookupLatencyMeanMicros();
+
+    long getLookupLatencyP50Micros();
+
+    long getLookupLatencyP99Micros();
+
+    long getLookupLatencyP999Micros();
+
+    long getLookupLatencyMaxMicros();
+
+    double getReferralsPerLookupMean();
+
+    long getReferralsPerLookupMax();
+
+    long getQueriesSent();
+
+    long getTcpQueriesSent();
+
+    long getTimeouts();
+
+    Map<String, Long> getResponseCodes();
+
+    Map<String, Long> getUpstreamRttP50Micros();
+
+    Map<String, Long> getUpstreamRttP99Micros();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    double getCacheHitRatio();
+
+    long getCacheInserts();
+
+    long getCacheExpirations();
+
+    long getCacheEvictions();
+
+    int getCacheSize();
+}
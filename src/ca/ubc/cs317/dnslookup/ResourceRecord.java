@@ -1,31 +1,80 @@
 package ca.ubc.cs317.dnslookup;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.net.InetAddress;
 import java.util.Date;
+import java.util.concurrent.TimeUnit;
 
 /** A resource record corresponds to each individual result returned by a DNS response. It links
  * a DNS node (host name and record type) to either an IP address (e.g., A or AAAA records) or
  * a textual response (e.g., CNAME or NS records). A TTL (time-to-live) field is also specified,
  * and is represented by an expiration time calculated as a delta from the current time.
+ *
+ * Expiration is checked against a monotonic clock (System.nanoTime()), so validity checks are a
+ * single comparison and are not affected by changes to the wall clock. The wall-clock expiration
+ * time is only computed when requested, or when a record is serialized.
+ *
+ * Records are created whenever cached results are read (the cache keeps them in a more compact
+ * form, see CompactRecordSet), so creating a record is kept cheap: the textual form of an address
+ * is only computed when requested.
  */
 public class ResourceRecord implements Serializable {
 
     private DNSNode node;
-    private Date expirationTime;
+    private transient long expirationNanos;
+    private transient long lifetimeNanos;
     private String textResult;
     private InetAddress inetResult;
 
     public ResourceRecord(String hostName, RecordType type, long ttl, String result) {
-        this.node = new DNSNode(hostName, type);
-        this.expirationTime = new Date(System.currentTimeMillis() + (ttl * 1000));
-        this.textResult = result;
-        this.inetResult = null;
+        this(new DNSNode(hostName, type), System.nanoTime() + TimeUnit.SECONDS.toNanos(ttl),
+                TimeUnit.SECONDS.toNanos(ttl), result, null);
     }
 
     public ResourceRecord(String hostName, RecordType type, long ttl, InetAddress result) {
-        this(hostName, type, ttl, result.getHostAddress());
-        this.inetResult = result;
+        this(new DNSNode(hostName, type), System.nanoTime() + TimeUnit.SECONDS.toNanos(ttl),
+                TimeUnit.SECONDS.toNanos(ttl), null, result);
+    }
+
+    /** Creates a record that expires at a specific (wall-clock) time, e.g., a record restored
+     * from a snapshot of the cache.
+     *
+     * @param hostName       Host name of the record.
+     * @param type           Record type.
+     * @param expirationTime Time at which the record expires.
+     * @param result         Textual result of the record.
+     */
+    public ResourceRecord(String hostName, RecordType type, Date expirationTime, String result) {
+        this(new DNSNode(hostName, type), expirationTime, result, null);
+    }
+
+    public ResourceRecord(String hostName, RecordType type, Date expirationTime, InetAddress result) {
+        this(new DNSNode(hostName, type), expirationTime, null, result);
+    }
+
+    private ResourceRecord(DNSNode node, Date expirationTime, String textResult, InetAddress inetResult) {
+        this(node, 0, TimeUnit.MILLISECONDS.toNanos(expirationTime.getTime() - System.currentTimeMillis()),
+                textResult, inetResult);
+        this.expirationNanos = System.nanoTime() + lifetimeNanos;
+    }
+
+    /** Creates a record from its stored fields, e.g., a record read from the cache.
+     *
+     * @param node            Host name and record type of the record.
+     * @param expirationNanos Monotonic expiration deadline of the record, in nanoseconds.
+     * @param lifetimeNanos   Lifetime of the record, in nanoseconds.
+     * @param textResult      Textual result of the record, or null if the record has an address.
+     * @param inetResult      Address of the record, or null if the record has a textual result.
+     */
+    ResourceRecord(DNSNode node, long expirationNanos, long lifetimeNanos, String textResult, InetAddress inetResult) {
+        this.node = node;
+        this.expirationNanos = expirationNanos;
+        this.lifetimeNanos = lifetimeNanos;
+        this.textResult = textResult;
+        this.inetResult = inetResult;
     }
 
     public DNSNode getNode() {
@@ -48,7 +97,7 @@ public class ResourceRecord implements Serializable {
      * @return The number of seconds, rounded up, until this record expires.
      */
     public long getTTL() {
-        return (expirationTime.getTime() - System.currentTimeMillis() + 999) / 1000;
+        return Math.floorDiv(expirationNanos - System.nanoTime() + 999_999_999, 1_000_000_000L);
     }
 
     /** Returns true if this record has not expired yet, and false otherwise. An expired record
@@ -58,7 +107,34 @@ public class ResourceRecord implements Serializable {
      * @return true if this record has not expired yet, and false otherwise.
      */
     public boolean isStillValid() {
-        return expirationTime.after(new Date());
+        return expirationNanos - System.nanoTime() > 0;
+    }
+
+    /** Returns the (wall-clock) time at which this record expires.
+     *
+     * @return The expiration time of this record.
+     */
+    public Date getExpirationTime() {
+        return new Date(System.currentTimeMillis() +
+                TimeUnit.NANOSECONDS.toMillis(expirationNanos - System.nanoTime()));
+    }
+
+    /** Returns the time at which this record expires, based on System.nanoTime(). This value
+     * is only meaningful within the current JVM.
+     *
+     * @return The monotonic expiration deadline of this record, in nanoseconds.
+     */
+    public long getExpirationNanos() {
+        return expirationNanos;
+    }
+
+    /** Returns the time this record was valid for when it was created, i.e., its TTL when it was
+     * obtained from the server (or the time left when it was restored from a snapshot).
+     *
+     * @return The lifetime of this record, in nanoseconds.
+     */
+    public long getLifetimeNanos() {
+        return lifetimeNanos;
     }
 
     /** Returns true if this record expires before another record. This method may be used to
@@ -70,17 +146,50 @@ public class ResourceRecord implements Serializable {
      * @return true if this record expires before the parameter record, or false otherwise.
      */
     public boolean expiresBefore(ResourceRecord record) {
-        return this.expirationTime.before(record.expirationTime);
+        return this.expirationNanos - record.expirationNanos < 0;
     }
 
     public String getTextResult() {
-        return textResult;
+        String text = textResult;
+        if (text == null && inetResult != null)
+            textResult = text = inetResult.getHostAddress();
+        return text;
     }
 
     public InetAddress getInetResult() {
         return inetResult;
     }
 
+    /** Returns the address of an address record in the form used as its record data: 4 bytes
+     * for an A record, and 16 bytes for an AAAA record. An IPv4-mapped IPv6 address
+     * (::ffff:a.b.c.d) is decoded by InetAddress as an Inet4Address, so for an AAAA record it is
+     * mapped back to its 16-byte form.
+     *
+     * @return The raw address, or null if this record has no address.
+     */
+    public byte[] getAddressData() {
+        if (inetResult == null) return null;
+        byte[] address = inetResult.getAddress();
+        if (node.getType() != RecordType.AAAA || address.length != 4) return address;
+        byte[] mapped = new byte[16];
+        mapped[10] = mapped[11] = (byte) 0xFF;
+        System.arraycopy(address, 0, mapped, 12, 4);
+        return mapped;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        getTextResult();
+        out.defaultWriteObject();
+        out.writeLong(getExpirationTime().getTime());
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        long remainingMillis = in.readLong() - System.currentTimeMillis();
+        this.lifetimeNanos = TimeUnit.MILLISECONDS.toNanos(remainingMillis);
+        this.expirationNanos = System.nanoTime() + lifetimeNanos;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -89,14 +198,15 @@ public class ResourceRecord implements Serializable {
         ResourceRecord record = (ResourceRecord) o;
 
         if (!node.equals(record.node)) return false;
-        if (!textResult.equals(record.textResult)) return false;
-        return inetResult != null ? inetResult.equals(record.inetResult) : record.inetResult == null;
+        if (inetResult != null || record.inetResult != null)
+            return inetResult != null && inetResult.equals(record.inetResult);
+        return textResult.equals(record.textResult);
     }
 
     @Override
     public int hashCode() {
         int result = node.hashCode();
-        result = 31 * result + textResult.hashCode();
+        result = 31 * result + (inetResult != null ? inetResult.hashCode() : textResult.hashCode());
         return result;
     }
 }
@@ -0,0 +1,226 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
+
+/** Keeps track of how fast and reliable each name server has been, and uses this information to
+ * choose which server to query among the servers of a zone. For each server address, a smoothed
+ * round-trip time (RTT) and RTT variance are maintained as in TCP (RFC 6298), along with a count
+ * of recent failures (timeouts).
+ *
+ * Servers are ranked by their smoothed RTT, penalized by their recent failures. Failures decay
+ * over time, and servers that have not been queried recently have their RTT gradually forgotten,
+ * so a server that failed or was slow in the past is eventually tried again. Servers that were
+ * never queried are tried before known servers, and a random server is occasionally chosen so
+ * that the table keeps up with changing conditions.
+ *
+ * The same statistics are used to compute the retransmission timeout of each server, so a lost
+ * packet to a fast server is detected (and the query retransmitted) quickly. As in TCP, each
+ * failure of a server doubles its timeout (up to the maximum) until it responds again, so later
+ * lookups do not keep retransmitting to an unresponsive server at its old pace.
+ */
+public class ServerStatistics {
+
+    private static final double RTT_GAIN = 0.125;
+    private static final double VARIANCE_GAIN = 0.25;
+    private static final double DECAY_HALF_LIFE_SECONDS = 60;
+    private static final double FAILURE_PENALTY = 1.0;
+    private static final double EXPLORATION_PROBABILITY = 0.05;
+    private static final int MAX_SERVERS = 10_000;
+    private static final long INITIAL_RTO_MILLIS = 1000;
+    private static final long MIN_RTO_MILLIS = 20;
+    private static final long MAX_RTO_MILLIS = 5000;
+    private static final int MAX_BACKOFF = 8;
+
+    private static final ServerStatistics instance = new ServerStatistics();
+
+    private final ConcurrentHashMap<InetAddress, Entry> servers = new ConcurrentHashMap<>();
+
+    /** Statistics of a single server. Updates are synchronized on the entry itself.
+     */
+    private static class Entry {
+        private double smoothedRTT;
+        private double rttVariance;
+        private double failures;
+        private int backoff;
+        private long lastUpdateNanos;
+        private long lastQueryNanos;
+        private boolean hasRTT = false;
+
+        private synchronized void decay(long now) {
+            double halfLives = (now - lastUpdateNanos) / 1e9 / DECAY_HALF_LIFE_SECONDS;
+            if (halfLives > 0)
+                failures *= Math.pow(0.5, halfLives);
+            lastUpdateNanos = now;
+        }
+
+        /** The score used to rank servers (lower is better). The RTT is only forgotten for
+         * ranking purposes, so the RTT used for timeouts is not affected.
+         */
+        private synchronized double score(long now) {
+            double rttFactor = Math.pow(0.5, Math.max(0, (now - lastQueryNanos) / 1e9 / DECAY_HALF_LIFE_SECONDS));
+            double failureFactor = Math.pow(0.5, Math.max(0, (now - lastUpdateNanos) / 1e9 / DECAY_HALF_LIFE_SECONDS));
+            return smoothedRTT * rttFactor * (1 + FAILURE_PENALTY * failures * failureFactor);
+        }
+    }
+
+    /** Returns the statistics table shared by the whole application.
+     *
+     * @return The shared server statistics.
+     */
+    public static ServerStatistics getInstance() {
+        return instance;
+    }
+
+    /** Records a successful query, updating the smoothed RTT and RTT variance of the server.
+     *
+     * @param server   Address of the server that responded.
+     * @param rttNanos Time between sending the query and receiving the response, in nanoseconds.
+     */
+    public void recordSuccess(InetAddress server, long rttNanos) {
+        Entry entry = getEntry(server);
+        if (entry == null) return;
+        double rtt = rttNanos / 1e6;
+        synchronized (entry) {
+            entry.decay(System.nanoTime());
+            entry.lastQueryNanos = entry.lastUpdateNanos;
+            entry.backoff = 0;
+            if (!entry.hasRTT) {
+                entry.smoothedRTT = rtt;
+                entry.rttVariance = rtt / 2;
+                entry.hasRTT = true;
+            } else {
+                entry.rttVariance = (1 - VARIANCE_GAIN) * entry.rttVariance +
+                        VARIANCE_GAIN * Math.abs(entry.smoothedRTT - rtt);
+                entry.smoothedRTT = (1 - RTT_GAIN) * entry.smoothedRTT + RTT_GAIN * rtt;
+            }
+        }
+    }
+
+    /** Records a failed query (e.g., a timeout). The first failure of a server that never
+     * responded sets its RTT to the time waited; any other failure doubles the server's
+     * retransmission timeout until the server responds again.
+     *
+     * @param server         Address of the server that did not respond.
+     * @param timeoutNanos   Time waited for the response before giving up, in nanoseconds.
+     */
+    public void recordFailure(InetAddress server, long timeoutNanos) {
+        Entry entry = getEntry(server);
+        if (entry == null) return;
+        synchronized (entry) {
+            entry.decay(System.nanoTime());
+            entry.lastQueryNanos = entry.lastUpdateNanos;
+            entry.failures++;
+            if (!entry.hasRTT) {
+                entry.smoothedRTT = timeoutNanos / 1e6;
+                entry.rttVariance = entry.smoothedRTT / 2;
+                entry.hasRTT = true;
+            } else {
+                entry.backoff = Math.min(entry.backoff + 1, MAX_BACKOFF);
+            }
+        }
+    }
+
+    /** Sorts a set of candidate servers from best to worst. Servers that were never queried come
+     * first (in random order), followed by known servers ordered by score. Occasionally a random
+     * server is moved to the front of the list.
+     *
+     * @param candidates Addresses of the servers that may be queried.
+     * @return A new list with each candidate address, ordered from best to worst.
+     */
+    public List<InetAddress> rankServers(Collection<InetAddress> candidates) {
+        List<InetAddress> ranked = new ArrayList<>(new LinkedHashSet<>(candidates));
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Collections.shuffle(ranked, random);
+
+        long now = System.nanoTime();
+        Map<InetAddress, Double> scores = new HashMap<>();
+        for (InetAddress server : ranked) {
+            Entry entry = servers.get(server);
+            scores.put(server, entry == null ? 0.0 : entry.score(now));
+        }
+        ranked.sort(Comparator.comparingDouble(scores::get));
+
+        if (ranked.size() > 1 && random.nextDouble() < EXPLORATION_PROBABILITY)
+            Collections.swap(ranked, 0, 1 + random.nextInt(ranked.size() - 1));
+        return ranked;
+    }
+
+    /** Returns the smoothed RTT of a server, or -1 if the server was never queried.
+     *
+     * @param server Address of the server.
+     * @return The smoothed RTT of the server, in milliseconds.
+     */
+    public double getSmoothedRTT(InetAddress server) {
+        Entry entry = servers.get(server);
+        if (entry == null) return -1;
+        synchronized (entry) {
+            return entry.hasRTT ? entry.smoothedRTT : -1;
+        }
+    }
+
+    /** Returns the RTT variance of a server, or -1 if the server was never queried.
+     *
+     * @param server Address of the server.
+     * @return The RTT variance of the server, in milliseconds.
+     */
+    public double getRTTVariance(InetAddress server) {
+        Entry entry = servers.get(server);
+        if (entry == null) return -1;
+        synchronized (entry) {
+            return entry.hasRTT ? entry.rttVariance : -1;
+        }
+    }
+
+    /** Returns the retransmission timeout of a server, computed as in TCP (RFC 6298) from the
+     * smoothed RTT and RTT variance: SRTT + 4 * RTTVAR, doubled for each failure since the
+     * server last responded, within fixed bounds. Servers that were never queried use a
+     * conservative initial timeout.
+     *
+     * @param server Address of the server.
+     * @return The retransmission timeout, in milliseconds.
+     */
+    public long getRetransmissionTimeout(InetAddress server) {
+        Entry entry = servers.get(server);
+        if (entry == null) return INITIAL_RTO_MILLIS;
+        double timeout;
+        synchronized (entry) {
+            if (!entry.hasRTT) return INITIAL_RTO_MILLIS;
+            timeout = Math.ceil(entry.smoothedRTT + 4 * entry.rttVariance) * (1 << entry.backoff);
+        }
+        return Math.max(MIN_RTO_MILLIS, Math.min((long) timeout, MAX_RTO_MILLIS));
+    }
+
+    /** Perform a specific action for each known server. The action receives the server address
+     * and an array with its smoothed RTT, RTT variance (both in milliseconds) and recent failures.
+     *
+     * @param consumer Action to be performed for each server.
+     */
+    public void forEachServer(BiConsumer<InetAddress, double[]> consumer) {
+        long now = System.nanoTime();
+        servers.forEach((server, entry) -> {
+            double[] values;
+            synchronized (entry) {
+                entry.decay(now);
+                values = new double[]{entry.smoothedRTT, entry.rttVariance, entry.failures};
+            }
+            consumer.accept(server, values);
+        });
+    }
+
+    private Entry getEntry(InetAddress server) {
+        Entry entry = servers.get(server);
+        if (entry == null) {
+            if (servers.size() >= MAX_SERVERS) return null;
+            entry = servers.computeIfAbsent(server, key -> {
+                Entry created = new Entry();
+                created.lastUpdateNanos = System.nanoTime();
+                return created;
+            });
+        }
+        return entry;
+    }
+}
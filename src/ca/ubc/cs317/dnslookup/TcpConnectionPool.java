@@ -0,0 +1,387 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.*;
+
+/** A pool of persistent TCP connections to DNS servers, used to retry queries whose UDP response
+ * was truncated. Each server has a small number of connections, and multiple queries are
+ * pipelined on the same connection: each query is written as soon as it is sent, and responses
+ * are matched to queries by transaction ID in whatever order the server returns them (RFC 7766).
+ *
+ * Connections are opened on a background thread, so sending a query never blocks. Queries are
+ * written without blocking as well: whatever the socket does not accept immediately is queued on
+ * the connection and written by a single background thread, which also reads the responses of
+ * all connections. A query that cannot be written before its deadline (e.g., because the server
+ * stopped reading) closes its connection. A connection that is closed by the
+ * server (or fails) makes its outstanding queries fail, and a new connection is opened for the
+ * next query. Connections without outstanding queries are closed after an idle timeout.
+ */
+public class TcpConnectionPool {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 3000;
+    private static final int MAX_MESSAGE_SIZE = 0xFFFF;
+
+    private final int maxConnectionsPerServer;
+    private final int maxPipelinedQueries;
+    private final long idleTimeoutNanos;
+    private final ConcurrentHashMap<InetSocketAddress, List<Connection>> connections = new ConcurrentHashMap<>();
+    private final Queue<Connection> pendingRegistrations = new ConcurrentLinkedQueue<>();
+    private final Selector selector;
+    private final ExecutorService connector = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "dns-tcp-connect");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** A connection to a server, along with the queries waiting for a response on it.
+     */
+    private class Connection {
+        private final InetSocketAddress server;
+        private final ConcurrentHashMap<Integer, CompletableFuture<ByteBuffer>> pending = new ConcurrentHashMap<>();
+        private final CompletableFuture<SocketChannel> connected = new CompletableFuture<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(2 + MAX_MESSAGE_SIZE);
+        private final Queue<PendingWrite> writes = new ArrayDeque<>(); // guarded by this
+        private SelectionKey key; // guarded by this
+        private volatile long lastUsedNanos = System.nanoTime();
+        private volatile boolean closed = false;
+
+        private Connection(InetSocketAddress server) {
+            this.server = server;
+        }
+
+        /** Opens the connection. Called on a connector thread.
+         */
+        private void connect() {
+            try {
+                SocketChannel channel = SocketChannel.open();
+                try {
+                    channel.socket().setTcpNoDelay(true);
+                    channel.socket().connect(server, CONNECT_TIMEOUT_MILLIS);
+                    channel.configureBlocking(false);
+                } catch (IOException e) {
+                    channel.close();
+                    throw e;
+                }
+                connected.complete(channel);
+                pendingRegistrations.add(this);
+                selector.wakeup();
+            } catch (IOException e) {
+                connected.completeExceptionally(e);
+                close(e);
+            }
+        }
+
+        /** Writes a query, preceded by its length, as far as the socket accepts it without
+         * blocking. The rest is queued, and written by the reader thread once the socket is
+         * writable. Writes to the same connection are serialized so pipelined queries are not
+         * interleaved.
+         *
+         * @param deadlineNanos Time by which the query must be written, based on System.nanoTime().
+         */
+        private void write(SocketChannel channel, ByteBuffer query, long deadlineNanos) throws IOException {
+            ByteBuffer length = ByteBuffer.allocate(2).putShort(0, (short) query.remaining());
+            synchronized (this) {
+                writes.add(new PendingWrite(new ByteBuffer[]{length, query}, deadlineNanos));
+                // if the connection is not registered yet, registering it adds OP_WRITE
+                if (flush(channel) || key == null) return;
+                try {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                } catch (CancelledKeyException e) {
+                    // the key may be cancelled at any time by the reader thread, or by closing
+                    // the channel, so it is not checked beforehand
+                    throw new ClosedChannelException();
+                }
+            }
+            selector.wakeup();
+        }
+
+        /** Writes the queued queries, in order, until the socket stops accepting data.
+         *
+         * @return true if every queued query was written.
+         */
+        private synchronized boolean flush(SocketChannel channel) throws IOException {
+            PendingWrite next;
+            while ((next = writes.peek()) != null) {
+                channel.write(next.message);
+                if (next.message[1].hasRemaining()) return false;
+                writes.poll();
+            }
+            return true;
+        }
+
+        /** Returns the deadline of the first query still to be written.
+         *
+         * @return The deadline, based on System.nanoTime(), or Long.MAX_VALUE if nothing is queued.
+         */
+        private synchronized long getWriteDeadline() {
+            PendingWrite next = writes.peek();
+            return next == null ? Long.MAX_VALUE : next.deadlineNanos;
+        }
+
+        /** Registers the connection with the selector, for writes as well if a query is queued.
+         * Called by the reader thread only.
+         */
+        private synchronized void register(SocketChannel channel) throws IOException {
+            int interest = writes.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+            key = channel.register(selector, interest, this);
+        }
+
+        /** Writes the queued queries once the socket is writable, and stops waiting for the socket
+         * to become writable when none is left. Called by the reader thread only.
+         */
+        private synchronized void writeQueued(SocketChannel channel) throws IOException {
+            if (flush(channel))
+                key.interestOps(SelectionKey.OP_READ);
+        }
+
+        /** Reads the data available on the connection, completing the query of each complete
+         * response. Called by the reader thread only.
+         */
+        private void read(SocketChannel channel) throws IOException {
+            if (channel.read(readBuffer) < 0)
+                throw new ClosedChannelException();
+            readBuffer.flip();
+            while (readBuffer.remaining() >= 2) {
+                int length = readBuffer.getShort(readBuffer.position()) & 0xFFFF;
+                if (readBuffer.remaining() < 2 + length) break;
+                readBuffer.position(readBuffer.position() + 2);
+                ByteBuffer response = ByteBuffer.allocate(length);
+                int limit = readBuffer.limit();
+                readBuffer.limit(readBuffer.position() + length);
+                response.put(readBuffer).flip();
+                readBuffer.limit(limit);
+                if (length >= 2) {
+                    CompletableFuture<ByteBuffer> query = pending.remove(response.getShort(0) & 0xFFFF);
+                    if (query != null) query.complete(response);
+                }
+            }
+            readBuffer.compact();
+            lastUsedNanos = System.nanoTime();
+        }
+
+        /** Closes the connection and fails every query waiting for a response on it.
+         */
+        private void close(Exception cause) {
+            closed = true;
+            connections.computeIfPresent(server, (key, list) -> {
+                List<Connection> remaining = new ArrayList<>(list);
+                remaining.remove(this);
+                return remaining.isEmpty() ? null : remaining;
+            });
+            SocketChannel channel = connected.getNow(null);
+            if (channel != null)
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            for (Map.Entry<Integer, CompletableFuture<ByteBuffer>> query : pending.entrySet())
+                if (pending.remove(query.getKey(), query.getValue()))
+                    query.getValue().completeExceptionally(cause);
+        }
+    }
+
+    /** A query waiting to be written on a connection: its length and its message.
+     */
+    private static class PendingWrite {
+        private final ByteBuffer[] message;
+        private final long deadlineNanos;
+
+        private PendingWrite(ByteBuffer[] message, long deadlineNanos) {
+            this.message = message;
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
+
+    /** Creates a pool and starts the thread reading responses.
+     *
+     * @param maxConnectionsPerServer Maximum number of connections opened to each server.
+     * @param maxPipelinedQueries     Number of outstanding queries on a connection after which a
+     *                                new connection is opened (if allowed).
+     * @param idleTimeoutMillis       Time after which a connection without outstanding queries
+     *                                is closed, in milliseconds.
+     * @throws IOException if the selector could not be opened
+     */
+    public TcpConnectionPool(int maxConnectionsPerServer, int maxPipelinedQueries, long idleTimeoutMillis)
+            throws IOException {
+        this.maxConnectionsPerServer = maxConnectionsPerServer;
+        this.maxPipelinedQueries = maxPipelinedQueries;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.selector = Selector.open();
+        Thread reader = new Thread(this::readResponses, "dns-tcp-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /** Sends a query to a server over TCP, using an existing connection if possible. This method
+     * does not block; the query is written once the connection is open.
+     *
+     * @param server        Address and port of the server.
+     * @param node          Host and record type to be used for search.
+     * @param timeoutMillis Time allowed to write the query, in milliseconds. If the query cannot be
+     *                      written in time, the connection is closed.
+     * @return A future completed with the response (a buffer containing only the response), or
+     *         completed exceptionally if the query could not be sent or the connection was closed.
+     *         Callers are expected to apply their own timeout to the response.
+     */
+    public CompletableFuture<ByteBuffer> sendQuery(InetSocketAddress server, DNSNode node, long timeoutMillis) {
+        long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        CompletableFuture<ByteBuffer> response = new CompletableFuture<>();
+        Connection connection = selectConnection(server);
+        int transactionId;
+        do {
+            transactionId = ThreadLocalRandom.current().nextInt(0x10000);
+        } while (connection.pending.putIfAbsent(transactionId, response) != null);
+        int id = transactionId;
+        response.whenComplete((result, error) -> connection.pending.remove(id, response));
+        if (connection.closed) {
+            response.completeExceptionally(new ClosedChannelException());
+            return response;
+        }
+
+        ByteBuffer query = ByteBuffer.allocate(DNSQueryHandler.MAX_QUERY_SIZE);
+        try {
+            DNSQueryHandler.encodeQuery(query, id, node);
+        } catch (DNSLookupException e) {
+            response.completeExceptionally(e);
+            return response;
+        }
+        connection.connected.thenAcceptAsync(channel -> {
+            try {
+                connection.write(channel, query, deadlineNanos);
+                connection.lastUsedNanos = System.nanoTime();
+            } catch (IOException e) {
+                connection.close(e);
+            }
+        }, connector).exceptionally(error -> {
+            response.completeExceptionally(error);
+            return null;
+        });
+        return response;
+    }
+
+    /** Closes every connection and stops the reader thread.
+     */
+    public void close() {
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+        ClosedChannelException closed = new ClosedChannelException();
+        for (List<Connection> list : connections.values())
+            for (Connection connection : list)
+                connection.close(closed);
+        connector.shutdownNow();
+    }
+
+    /** Returns the connection with the fewest outstanding queries to a server, opening a new
+     * connection if there is none, or if all of them are busy and the limit allows it.
+     */
+    private Connection selectConnection(InetSocketAddress server) {
+        Connection[] selected = new Connection[1];
+        boolean[] created = new boolean[1];
+        connections.compute(server, (key, list) -> {
+            Connection best = null;
+            if (list != null)
+                for (Connection connection : list)
+                    if (!connection.closed && (best == null || connection.pending.size() < best.pending.size()))
+                        best = connection;
+            int count = list == null ? 0 : list.size();
+            if (best != null && (best.pending.size() < maxPipelinedQueries || count >= maxConnectionsPerServer)) {
+                selected[0] = best;
+                return list;
+            }
+            Connection connection = new Connection(server);
+            selected[0] = connection;
+            created[0] = true;
+            List<Connection> updated = list == null ? new ArrayList<>() : new ArrayList<>(list);
+            updated.add(connection);
+            return updated;
+        });
+        if (created[0])
+            connector.execute(selected[0]::connect);
+        return selected[0];
+    }
+
+    /** Reads responses from all connections, writes the queries that could not be written
+     * immediately, and closes idle connections and connections whose queries could not be
+     * written in time. Runs on a background thread until the pool is closed.
+     */
+    private void readResponses() {
+        long checkInterval = Math.max(1, TimeUnit.NANOSECONDS.toMillis(idleTimeoutNanos) / 2);
+        while (selector.isOpen()) {
+            try {
+                Connection registered;
+                while ((registered = pendingRegistrations.poll()) != null) {
+                    SocketChannel channel = registered.connected.getNow(null);
+                    if (channel != null && channel.isOpen())
+                        try {
+                            registered.register(channel);
+                        } catch (ClosedChannelException e) {
+                            // closed since it was queued; the other connections are still registered
+                            registered.close(e);
+                        }
+                }
+
+                long now = System.nanoTime();
+                long nextWriteDeadline = Long.MAX_VALUE;
+                for (SelectionKey key : selector.keys()) {
+                    Connection connection = (Connection) key.attachment();
+                    if (!key.isValid()) continue;
+                    long writeDeadline = connection.getWriteDeadline();
+                    if (writeDeadline != Long.MAX_VALUE && now - writeDeadline >= 0) {
+                        key.cancel();
+                        connection.close(new SocketTimeoutException("Query not written in time to " +
+                                connection.server));
+                    } else if (writeDeadline != Long.MAX_VALUE) {
+                        if (nextWriteDeadline == Long.MAX_VALUE || writeDeadline - nextWriteDeadline < 0)
+                            nextWriteDeadline = writeDeadline;
+                    } else if (connection.pending.isEmpty() && now - connection.lastUsedNanos > idleTimeoutNanos) {
+                        key.cancel();
+                        connection.close(new ClosedChannelException());
+                    }
+                }
+
+                long timeout = checkInterval;
+                if (nextWriteDeadline != Long.MAX_VALUE)
+                    timeout = Math.max(1, Math.min(timeout,
+                            TimeUnit.NANOSECONDS.toMillis(nextWriteDeadline - System.nanoTime()) + 1));
+                selector.select(timeout);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Connection connection = (Connection) key.attachment();
+                    if (!key.isValid()) continue; // closed since it was selected
+                    try {
+                        if (key.isWritable())
+                            connection.writeQueued((SocketChannel) key.channel());
+                        if (key.isReadable())
+                            connection.read((SocketChannel) key.channel());
+                    } catch (IOException e) {
+                        key.cancel();
+                        connection.close(e);
+                    } catch (CancelledKeyException e) {
+                        // closed by another thread while its key was being used
+                        connection.close(new ClosedChannelException());
+                    }
+                }
+                selector.selectedKeys().clear();
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                // select failed; the next iteration tries again
+            }
+        }
+    }
+}
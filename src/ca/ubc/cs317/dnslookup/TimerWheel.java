@@ -0,0 +1,165 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/** A hierarchical timing wheel used to expire items (e.g., cached resource records) in the
+ * background. Time is divided in coarse ticks, and each item is placed in a bucket based on the
+ * tick in which it expires. The first level has one bucket per tick, and each following level
+ * has buckets covering an entire rotation of the previous level. When a level completes a
+ * rotation, the items in the next bucket of the level above are moved down, so each item is only
+ * touched a few times before it expires.
+ *
+ * Items may be scheduled by any thread. Buckets are only drained by the thread advancing the
+ * wheel, and expired items are passed to a handler provided when the wheel is created. Items
+ * are never cancelled; the handler is expected to ignore items that are no longer relevant.
+ * A thread scheduling an item does not lock the wheel: if the wheel advanced while the item was
+ * being added to a bucket, that bucket may already have been drained, so the item is taken back
+ * and placed again relative to the new tick.
+ *
+ * @param <T> Type of the items being expired.
+ */
+public class TimerWheel<T> {
+
+    private static final int LEVELS = 3;
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    private final long tickNanos;
+    private final long startNanos;
+    private final Consumer<T> expiryHandler;
+    private final Queue<Entry<T>>[][] buckets;
+    private volatile long currentTick = 0;
+    private ScheduledExecutorService ticker;
+
+    private static class Entry<T> {
+        private final T item;
+        private final long deadlineTick;
+
+        private Entry(T item, long deadlineTick) {
+            this.item = item;
+            this.deadlineTick = deadlineTick;
+        }
+    }
+
+    /** Creates a new timing wheel. The wheel is not advanced until start is called.
+     *
+     * @param tickMillis    Duration of each tick, in milliseconds. Items expire at most one tick
+     *                      after their deadline.
+     * @param expiryHandler Action performed on each item once its deadline is reached.
+     */
+    public TimerWheel(long tickMillis, Consumer<T> expiryHandler) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.startNanos = System.nanoTime();
+        this.expiryHandler = expiryHandler;
+        this.buckets = newBuckets();
+        for (int level = 0; level < LEVELS; level++)
+            for (int slot = 0; slot < SLOTS; slot++)
+                buckets[level][slot] = new ConcurrentLinkedQueue<>();
+    }
+
+    /** Creates the (empty) array of buckets. Arrays of a generic type cannot be created
+     * directly, so a raw array is created and cast; it only ever holds queues of entries.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <T> Queue<Entry<T>>[][] newBuckets() {
+        return new Queue[LEVELS][SLOTS];
+    }
+
+    /** Starts a background daemon thread that advances the wheel once every tick.
+     */
+    public synchronized void start() {
+        if (ticker != null) return;
+        ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "timer-wheel");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long tickMillis = TimeUnit.NANOSECONDS.toMillis(tickNanos);
+        ticker.scheduleAtFixedRate(() -> advance(System.nanoTime()), tickMillis, tickMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /** Schedules an item to be expired once a deadline is reached.
+     *
+     * @param item          Item to be expired.
+     * @param deadlineNanos Deadline, based on System.nanoTime(), after which the item expires.
+     */
+    public void schedule(T item, long deadlineNanos) {
+        long deadlineTick = Math.max(0, (deadlineNanos - startNanos + tickNanos - 1) / tickNanos);
+        place(new Entry<>(item, deadlineTick));
+    }
+
+    /** Advances the wheel up to a specific time, expiring every item whose deadline has been
+     * reached. This method is normally called by the background thread, and must not be called
+     * concurrently by multiple threads.
+     *
+     * @param nowNanos Current time, based on System.nanoTime().
+     */
+    public void advance(long nowNanos) {
+        long targetTick = (nowNanos - startNanos) / tickNanos;
+        while (currentTick < targetTick) {
+            long tick = currentTick + 1;
+            currentTick = tick;
+            for (int level = LEVELS - 1; level > 0; level--) {
+                int shift = level * SLOT_BITS;
+                if ((tick & ((1L << shift) - 1)) == 0)
+                    drain(buckets[level][(int) ((tick >>> shift) & SLOT_MASK)], tick);
+            }
+            drain(buckets[0][(int) (tick & SLOT_MASK)], tick);
+        }
+    }
+
+    /** Drains a bucket for a tick: items whose deadline is reached are expired, and the others
+     * are placed again, in a lower level. Items cascaded from a higher level are expired right
+     * away if their deadline is the current tick, rather than one tick later.
+     */
+    private void drain(Queue<Entry<T>> bucket, long tick) {
+        for (int count = bucket.size(); count > 0; count--) {
+            Entry<T> entry = bucket.poll();
+            if (entry == null) break;
+            if (entry.deadlineTick <= tick) {
+                try {
+                    expiryHandler.accept(entry.item);
+                } catch (RuntimeException ex) {
+                    ex.printStackTrace();
+                }
+            } else
+                place(entry);
+        }
+    }
+
+    /** Adds an entry to the bucket matching its deadline. The current tick is read again once
+     * the entry is added: if the wheel advanced in the meantime, the bucket may have been drained
+     * before the entry was added, and would then only be drained again a full rotation later, so
+     * the entry is removed (unless it was drained already) and placed again.
+     */
+    private void place(Entry<T> entry) {
+        while (true) {
+            long now = currentTick;
+            Queue<Entry<T>> bucket = bucketFor(entry.deadlineTick, now);
+            bucket.add(entry);
+            if (currentTick == now || !bucket.remove(entry)) return;
+        }
+    }
+
+    private Queue<Entry<T>> bucketFor(long deadlineTick, long now) {
+        long delta = deadlineTick - now;
+        if (delta <= 0) // already due: expired by the next tick
+            return buckets[0][(int) ((now + 1) & SLOT_MASK)];
+        for (int level = 0; level < LEVELS; level++) {
+            int shift = level * SLOT_BITS;
+            if (delta < (1L << (shift + SLOT_BITS)))
+                return buckets[level][(int) ((deadlineTick >>> shift) & SLOT_MASK)];
+        }
+        // Beyond the range of the wheel: park in the farthest bucket, it will be placed again
+        // once that bucket is cascaded.
+        int shift = (LEVELS - 1) * SLOT_BITS;
+        return buckets[LEVELS - 1][(int) (((now >>> shift) - 1) & SLOT_MASK)];
+    }
+}